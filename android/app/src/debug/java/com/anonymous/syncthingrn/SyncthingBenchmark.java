@@ -0,0 +1,458 @@
+package com.anonymous.syncthingrn;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Measures the hot paths of the native layer on the device itself: spawning and
+    stopping the stand-in daemon script from scripts/fake-syncthing/device, draining
+    and parsing daemon output, parsing event batches and converting them for the bridge.
+    With a base URL and API key it also measures event throughput and snapshot latency
+    against a daemon, usually FakeSyncthing.java on the host reached through adb
+    reverse. Every case runs a few warm-up iterations first, then reports throughput
+    and latency percentiles. The result is kept in benchmark.json so runs can be
+    pulled off the device and compared.
+
+    Only debug builds include the suite, release builds get a stub from src/release.
+*/
+public class SyncthingBenchmark {
+
+    public record Options(int iterations, int logLines, int events, String baseUrl, String apiKey, long durationMs) {}
+
+    public static final int DEFAULT_ITERATIONS = 50;
+    public static final int DEFAULT_LOG_LINES = 200000;
+    public static final int DEFAULT_EVENTS = 1000;
+    public static final long DEFAULT_DURATION_MS = 10000;
+    // False in the release stub, callers check it instead of catching whatever run throws
+    public static final boolean INCLUDED = true;
+
+    private static final String TAG = "SyncthingBenchmark";
+    private static final String RESULT_FILE = "benchmark.json";
+    private static final int WARMUP_ITERATIONS = 5;
+    // Packaged from scripts/fake-syncthing/device by the debug source set, run by the system shell
+    private static final String FAKE_DAEMON_ASSET = "fake-syncthing.sh";
+    private static final String SHELL = "/system/bin/sh";
+    private static final long LIFECYCLE_TIMEOUT_MS = 5000;
+    // Every drain run reads the whole fixture, a handful is enough to see the spread
+    private static final int DRAIN_RUNS = 5;
+    private static final int EVENTS_PAGE_LIMIT = 1000;
+    private static final String[] FACILITIES = {"model", "connections", "scanner", "protocol", "db", "api"};
+    private static final String[] EVENT_TYPES = {"FolderSummary", "StateChanged", "FolderCompletion", "ItemStarted", "ItemFinished", "DownloadProgress"};
+
+    /*
+        Elapsed times of one case, with the units of work behind them (lines, events or iterations).
+    */
+    private static class Samples {
+        private final String unit;
+        private long[] nanos = new long[16];
+        private int count = 0;
+        private long units = 0;
+
+        Samples(String unit) {
+            this.unit = unit;
+        }
+
+        void add(long elapsedNanos, long workUnits) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsedNanos;
+            units += workUnits;
+        }
+
+        JSONObject toJson() throws JSONException {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            long totalNanos = 0;
+            for (long sample : sorted) {
+                totalNanos += sample;
+            }
+            return new JSONObject()
+                .put("iterations", count)
+                .put("unit", unit)
+                .put("units", units)
+                .put("totalMs", totalNanos / 1e6)
+                .put("perSecond", totalNanos > 0 ? units * 1e9 / totalNanos : 0)
+                .put("p50Ms", percentile(sorted, 0.5))
+                .put("p90Ms", percentile(sorted, 0.9))
+                .put("p99Ms", percentile(sorted, 0.99))
+                .put("maxMs", count > 0 ? sorted[count - 1] / 1e6 : 0);
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+    }
+
+    private SyncthingBenchmark() {}
+
+    /**
+     * Runs every case in turn on the calling thread, which blocks for the whole run.
+     * Refuses to run while Syncthing is, the spawn and stop cases share its process registry.
+     * @return object with `startedAt`, `device`, `sdk` and `cases`, one entry per case
+     */
+    public static JSONObject run(Context context, Options options) throws IOException, JSONException, InterruptedException {
+        if (SyncthingSupervisor.getInstance().isRunning()) {
+            // Stopping goes through the registry, which signals every process it tracks
+            throw new IllegalStateException("Stop Syncthing before running the benchmark");
+        }
+        long startedAt = System.currentTimeMillis();
+        JSONObject cases = new JSONObject();
+
+        File workDirectory = new File(context.getCacheDir(), "benchmark");
+        try {
+            measureLifecycle(context, workDirectory, options.iterations(), cases);
+            File logFixture = writeLogFixture(workDirectory, options.logLines());
+            cases.put("logDrain", measureLogDrain(logFixture, new File(workDirectory, "logs"), options.logLines()));
+            cases.put("logParse", measureLogParse(logFixture, options.logLines()));
+        } finally {
+            deleteRecursively(workDirectory);
+        }
+
+        String eventStorm = buildEventStorm(options.events());
+        cases.put("eventParse", measureEventParse(eventStorm, options.iterations(), options.events()));
+        cases.put("bridgeConversion", measureBridgeConversion(new JSONArray(eventStorm), options.iterations()));
+
+        if (options.baseUrl() != null && options.apiKey() != null) {
+            SyncthingRestClient restClient = new SyncthingRestClient(options.baseUrl(), options.apiKey());
+            cases.put("eventThroughput", measureEventThroughput(restClient, options.durationMs()));
+            cases.put("snapshot", measureSnapshot(restClient, options.iterations()));
+        }
+
+        JSONObject result = new JSONObject()
+            .put("startedAt", startedAt)
+            .put("device", Build.MANUFACTURER + " " + Build.MODEL)
+            .put("sdk", Build.VERSION.SDK_INT)
+            .put("cases", cases);
+        writeResult(context.getFilesDir(), result);
+        Log.i(TAG, String.format("Benchmark finished in %1$d ms", System.currentTimeMillis() - startedAt));
+        return result;
+    }
+
+    /**
+     * Launches the stand-in daemon the way SyncthingCore launches the binary: from a launch profile,
+     * registered with the process registry and drained into a log buffer. Spawning is timed until
+     * the listening line has been parsed, stopping until the registry has seen every process exit.
+     */
+    private static void measureLifecycle(Context context, File workDirectory, int iterations, JSONObject cases) throws IOException, JSONException, InterruptedException {
+        File script = copyAsset(context, FAKE_DAEMON_ASSET, new File(workDirectory, FAKE_DAEMON_ASSET));
+        SyncthingLaunchProfile profile = new SyncthingLaunchProfile(SHELL, new String[] { script.getPath() },
+            Collections.emptyMap(), null, SyncthingMemoryGovernor.Pressure.NORMAL, Collections.emptyMap());
+        SyncthingProcessRegistry registry = SyncthingProcessRegistry.getInstance();
+        Samples spawnSamples = new Samples("processes");
+        Samples stopSamples = new Samples("processes");
+
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            checkInterrupted();
+            SyncthingLogBuffer logBuffer = new SyncthingLogBuffer(new File(workDirectory, "lifecycle"), 64, 64 * 1024);
+            CountDownLatch listening = new CountDownLatch(1);
+            logBuffer.addLineListener((template, line) -> {
+                if (template == SyncthingLogParser.TEMPLATE_GUI_LISTENING) {
+                    listening.countDown();
+                }
+            });
+
+            ProcessBuilder processBuilder = profile.newProcessBuilder();
+            processBuilder.redirectErrorStream(true);
+            long spawnStarted = System.nanoTime();
+            Process process = processBuilder.start();
+            registry.register(process);
+            Thread drainThread = logBuffer.attach(process);
+            try {
+                if (!listening.await(LIFECYCLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("The stand-in daemon never reported listening");
+                }
+                long spawnElapsed = System.nanoTime() - spawnStarted;
+
+                long stopStarted = System.nanoTime();
+                if (!registry.stopAll(FAKE_DAEMON_ASSET, LIFECYCLE_TIMEOUT_MS)) {
+                    throw new IOException("The stand-in daemon had to be killed");
+                }
+                long stopElapsed = System.nanoTime() - stopStarted;
+                if (i >= 0) {
+                    spawnSamples.add(spawnElapsed, 1);
+                    stopSamples.add(stopElapsed, 1);
+                }
+            } finally {
+                process.destroy();
+                registry.unregister(process);
+                drainThread.join(1000);
+                logBuffer.close();
+            }
+        }
+        cases.put("spawn", spawnSamples.toJson());
+        cases.put("stop", stopSamples.toJson());
+    }
+
+    /**
+     * Pipes the fixture through a child process into a buffer of its own, so the drain
+     * thread, parser and segment writes are measured together like they run for the daemon.
+     */
+    private static JSONObject measureLogDrain(File logFixture, File logDirectory, int lines) throws IOException, JSONException, InterruptedException {
+        Samples samples = new Samples("lines");
+        for (int i = -1; i < DRAIN_RUNS; i++) {
+            checkInterrupted();
+            SyncthingLogBuffer logBuffer = new SyncthingLogBuffer(logDirectory, 4096, 1024 * 1024);
+            long started = System.nanoTime();
+            Process process = new ProcessBuilder("cat", logFixture.getPath()).redirectErrorStream(true).start();
+            Thread drainThread = logBuffer.attach(process);
+            try {
+                drainThread.join();
+                process.waitFor();
+            } finally {
+                process.destroy();
+                logBuffer.close();
+            }
+            if (i >= 0) {
+                samples.add(System.nanoTime() - started, lines);
+            }
+        }
+        return samples.toJson();
+    }
+
+    /**
+     * Appends the fixture straight to a buffer, without the pipe and the drain thread.
+     */
+    private static JSONObject measureLogParse(File logFixture, int lines) throws IOException, JSONException, InterruptedException {
+        byte[] contents = readFile(logFixture);
+        File segmentDirectory = new File(logFixture.getParentFile(), "parse");
+        Samples samples = new Samples("lines");
+        for (int i = -1; i < DRAIN_RUNS; i++) {
+            checkInterrupted();
+            SyncthingLogBuffer logBuffer = new SyncthingLogBuffer(segmentDirectory, 4096, 1024 * 1024);
+            long now = System.currentTimeMillis();
+            long started = System.nanoTime();
+            int lineStart = 0;
+            for (int position = 0; position < contents.length; position++) {
+                if (contents[position] == '\n') {
+                    logBuffer.append(contents, lineStart, position - lineStart, now);
+                    lineStart = position + 1;
+                }
+            }
+            long elapsed = System.nanoTime() - started;
+            logBuffer.close();
+            if (i >= 0) {
+                samples.add(elapsed, lines);
+            }
+        }
+        return samples.toJson();
+    }
+
+    private static JSONObject measureEventParse(String eventStorm, int iterations, int events) throws JSONException, InterruptedException {
+        Samples samples = new Samples("events");
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            checkInterrupted();
+            long started = System.nanoTime();
+            new JSONArray(eventStorm);
+            if (i >= 0) {
+                samples.add(System.nanoTime() - started, events);
+            }
+        }
+        return samples.toJson();
+    }
+
+    private static JSONObject measureBridgeConversion(JSONArray events, int iterations) throws JSONException, InterruptedException {
+        Samples samples = new Samples("events");
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            checkInterrupted();
+            long started = System.nanoTime();
+            SyncthingModule.jsonArrayToWritableArray(events);
+            if (i >= 0) {
+                samples.add(System.nanoTime() - started, events.length());
+            }
+        }
+        return samples.toJson();
+    }
+
+    /**
+     * Long-polls the events endpoint the same way the event pump does, for as long as asked.
+     */
+    private static JSONObject measureEventThroughput(SyncthingRestClient restClient, long durationMs) throws IOException, JSONException, InterruptedException {
+        Samples samples = new Samples("events");
+        Map<String, String> params = new HashMap<>();
+        params.put("limit", String.valueOf(EVENTS_PAGE_LIMIT));
+        params.put("timeout", "1");
+        long since = 0;
+        long deadline = System.nanoTime() + durationMs * 1000000L;
+        while (System.nanoTime() < deadline) {
+            checkInterrupted();
+            params.put("since", String.valueOf(since));
+            long started = System.nanoTime();
+            JSONArray events = new JSONArray(restClient.get("events", params));
+            samples.add(System.nanoTime() - started, events.length());
+            if (events.length() > 0) {
+                since = events.getJSONObject(events.length() - 1).optLong("id", since);
+            }
+        }
+        return samples.toJson();
+    }
+
+    private static JSONObject measureSnapshot(SyncthingRestClient restClient, int iterations) throws IOException, JSONException, InterruptedException {
+        Samples samples = new Samples("snapshots");
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            checkInterrupted();
+            long started = System.nanoTime();
+            SyncthingSnapshot.fetch(restClient);
+            if (i >= 0) {
+                samples.add(System.nanoTime() - started, 1);
+            }
+        }
+        return samples.toJson();
+    }
+
+    /**
+     * Writes daemon output in the structured format, mostly debug lines like a verbose daemon
+     * with a templated line now and then. Seeded so every run parses the same bytes.
+     */
+    private static File writeLogFixture(File workDirectory, int lines) throws IOException {
+        if (!workDirectory.isDirectory() && !workDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + workDirectory);
+        }
+        File logFixture = new File(workDirectory, "fixture.log");
+        Random random = new Random(lines);
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(logFixture))) {
+            for (int i = 0; i < lines; i++) {
+                String facility = FACILITIES[random.nextInt(FACILITIES.length)];
+                String time = String.format("2025-01-02 15:%1$02d:%2$02d", (i / 60) % 60, i % 60);
+                String line;
+                if (i % 10 != 0) {
+                    line = time + " DBG Pulling block " + random.nextInt(1 << 20) + " of file \"docs/report-" + random.nextInt(1000) + ".pdf\" (log.pkg=" + facility + ")\n";
+                } else if (i % 50 == 0) {
+                    line = time + " INF Established secure connection (device=ABCDEFG address=192.168.1.20:22000) (log.pkg=connections)\n";
+                } else {
+                    line = time + " INF Completed initial scan (folder=default) (log.pkg=model)\n";
+                }
+                outputStream.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return logFixture;
+    }
+
+    /**
+     * Builds one events response like the daemon sends during a busy sync.
+     */
+    private static String buildEventStorm(int events) throws JSONException {
+        Random random = new Random(events);
+        JSONArray storm = new JSONArray();
+        for (int id = 1; id <= events; id++) {
+            String type = EVENT_TYPES[random.nextInt(EVENT_TYPES.length)];
+            String folder = "folder-" + random.nextInt(4);
+            JSONObject data = new JSONObject();
+            switch (type) {
+                case "FolderSummary":
+                    data.put("folder", folder).put("summary", new JSONObject()
+                        .put("state", "syncing")
+                        .put("globalBytes", 1048576L * random.nextInt(1024))
+                        .put("needBytes", random.nextInt(1 << 20))
+                        .put("needTotalItems", random.nextInt(100))
+                        .put("errors", 0)
+                        .put("pullErrors", 0));
+                    break;
+                case "StateChanged":
+                    data.put("folder", folder).put("from", "idle").put("to", "syncing");
+                    break;
+                case "FolderCompletion":
+                    data.put("folder", folder).put("device", "ABCDEFG").put("completion", random.nextInt(101)).put("needBytes", random.nextInt(1 << 20));
+                    break;
+                case "DownloadProgress":
+                    data.put(folder, new JSONObject().put("docs/report.pdf", new JSONObject().put("total", 100).put("pulled", random.nextInt(100))));
+                    break;
+                default:
+                    data.put("folder", folder).put("item", "docs/report-" + random.nextInt(1000) + ".pdf").put("type", "file").put("action", "update");
+                    break;
+            }
+            storm.put(new JSONObject()
+                .put("id", id)
+                .put("globalID", id)
+                .put("type", type)
+                .put("time", "2025-01-02T15:04:05.000000000Z")
+                .put("data", data));
+        }
+        return storm.toString();
+    }
+
+    private static File copyAsset(Context context, String assetName, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        try (InputStream inputStream = context.getAssets().open(assetName);
+             OutputStream outputStream = new FileOutputStream(target)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        return target;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                contents.write(buffer, 0, read);
+            }
+            return contents.toByteArray();
+        }
+    }
+
+    private static void writeResult(File directory, JSONObject result) {
+        File resultFile = new File(directory, RESULT_FILE);
+        File temporaryFile = new File(resultFile.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            outputStream.write(result.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the benchmark result", e);
+            return;
+        }
+        if (!temporaryFile.renameTo(resultFile)) {
+            Log.w(TAG, "Failed to replace " + resultFile);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // The call executor interrupts a run that is cancelled or past its deadline
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Benchmark interrupted");
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.anonymous.syncthingrn;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+    Adapts maxSendKbps and maxRecvKbps of the daemon to the power and network the
+    device is on: unlimited on a charger over an unmetered network, capped on
+    battery, lower still when the battery is low or the device runs hot, and
+    minimal on a metered network. Stricter limits apply at once, looser ones only
+    after the conditions have held for a while so the limits do not thrash.
+
+    The limits are written to config.xml, where they outlive the process. The
+    user's own limits and the ones last written are kept in SharedPreferences, so
+    a limit read back from the daemon is only taken as the user's when it differs
+    from ours. Stopping or disabling puts the user's limits back.
+*/
+public class SyncthingBandwidthScheduler extends BroadcastReceiver implements SyncthingReadiness.Listener {
+
+    // Ordered from the loosest to the strictest
+    public enum Tier {
+        UNLIMITED,
+        BATTERY,
+        CONSTRAINED,
+        METERED
+    }
+
+    // Rates in KiB/s as the daemon counts them, 0 means unlimited
+    public record Limits(int sendKbps, int recvKbps) {}
+
+    public record BandwidthState(Tier tier, int batteryPercent, boolean charging, int thermalStatus, boolean metered,
+                                 Limits appliedLimits, double inKbps, double outKbps) {}
+
+    private static final String TAG = "SyncthingBandwidthScheduler";
+    private static final long CHECK_INTERVAL_MS = 30000;
+    // A looser tier has to hold this long before it is applied
+    private static final long RELAX_AFTER_MS = 2 * 60 * 1000;
+    // Low battery is entered and left at different levels
+    private static final int LOW_BATTERY_ENTER_PERCENT = 20;
+    private static final int LOW_BATTERY_EXIT_PERCENT = 30;
+    private static final long RESTORE_TIMEOUT_MS = 5000;
+    private static final String PREF_USER_SEND_KBPS = "userSendKbps";
+    private static final String PREF_USER_RECV_KBPS = "userRecvKbps";
+    private static final String PREF_APPLIED_SEND_KBPS = "appliedSendKbps";
+    private static final String PREF_APPLIED_RECV_KBPS = "appliedRecvKbps";
+
+    private static SyncthingBandwidthScheduler instance;
+
+    public static synchronized SyncthingBandwidthScheduler getInstance(Context context) {
+        if (instance == null) {
+            instance = new SyncthingBandwidthScheduler(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SharedPreferences preferences;
+    private final Map<Tier, Limits> tierLimits = new EnumMap<>(Tier.class);
+    private SyncthingCore syncthingCore;
+    private ScheduledFuture<?> periodicCheck;
+    private boolean enabled = true;
+    private boolean lowBattery = false;
+    private boolean hot = false;
+    private Tier tier = Tier.UNLIMITED;
+    private Tier candidateTier = null;
+    private long candidateSince = 0;
+    // The user's own limits, an upper bound for every tier
+    private Limits configuredLimits;
+    // What config.xml holds since we last wrote it
+    private Limits appliedLimits;
+    private BandwidthState state;
+    private long lastInBytes = -1;
+    private long lastOutBytes = -1;
+    private long lastBytesAt = 0;
+
+    private SyncthingBandwidthScheduler(Context context) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        this.configuredLimits = loadLimits(PREF_USER_SEND_KBPS, PREF_USER_RECV_KBPS);
+        this.appliedLimits = loadLimits(PREF_APPLIED_SEND_KBPS, PREF_APPLIED_RECV_KBPS);
+        tierLimits.put(Tier.UNLIMITED, new Limits(0, 0));
+        tierLimits.put(Tier.BATTERY, new Limits(1024, 4096));
+        tierLimits.put(Tier.CONSTRAINED, new Limits(256, 1024));
+        tierLimits.put(Tier.METERED, new Limits(64, 256));
+    }
+
+    public synchronized void start(SyncthingCore syncthingCore) {
+        if (this.syncthingCore != null) {
+            return;
+        }
+        this.syncthingCore = syncthingCore;
+        this.lastInBytes = -1;
+        SyncthingReadiness.getInstance().addListener(this);
+        IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        context.registerReceiver(this, filter);
+        periodicCheck = executor.scheduleWithFixedDelay(this::check, 0, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (this.syncthingCore == null) {
+            return;
+        }
+        context.unregisterReceiver(this);
+        SyncthingReadiness.getInstance().removeListener(this);
+        if (periodicCheck != null) {
+            periodicCheck.cancel(false);
+            periodicCheck = null;
+        }
+        // The daemon has exited by now, limits that restoreUserLimits did not get to put back stay in the preferences
+        this.syncthingCore = null;
+    }
+
+    /**
+     * Puts the user's limits back while the daemon still runs. Called right before it is
+     * stopped on purpose, blocks for one or two requests.
+     */
+    public void restoreUserLimits() {
+        // Queued behind any check in progress so it cannot overwrite the restored limits
+        Future<?> restore = executor.submit(this::writeUserLimits);
+        try {
+            restore.get(RESTORE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Failed to restore bandwidth limits in time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeUserLimits() {
+        SyncthingCore core;
+        Limits configured;
+        Limits applied;
+        synchronized (this) {
+            core = syncthingCore;
+            configured = configuredLimits;
+            applied = appliedLimits;
+        }
+        SyncthingRestClient restClient = core != null ? core.createRestClient() : null;
+        if (restClient == null || configured == null || configured.equals(applied)) {
+            return;
+        }
+        try {
+            if (readLimits(restClient).equals(applied)) {
+                writeLimits(restClient, configured);
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to restore bandwidth limits, the next start uses them again", e);
+        }
+    }
+
+    /**
+     * Disabling puts back the user's own limits.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (this) {
+            this.enabled = enabled;
+        }
+        executor.execute(this::check);
+    }
+
+    public void setTierLimits(Tier tier, Limits limits) {
+        synchronized (this) {
+            tierLimits.put(tier, limits);
+        }
+        executor.execute(this::check);
+    }
+
+    public synchronized BandwidthState getState() {
+        return state;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // Plugging in or out is worth acting on before the next periodic check
+        executor.execute(this::check);
+    }
+
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        synchronized (this) {
+            // Byte totals start over with a fresh launch, the limits are read from it on every check
+            lastInBytes = -1;
+        }
+        executor.execute(this::check);
+    }
+
+    private void check() {
+        SyncthingCore core;
+        synchronized (this) {
+            core = syncthingCore;
+        }
+        if (core == null) {
+            return;
+        }
+
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int level = battery != null ? battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1) : -1;
+        int scale = battery != null ? battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100) : 100;
+        int batteryPercent = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+        boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        int thermalStatus = readThermalStatus();
+        boolean metered = isMetered();
+
+        SyncthingRestClient restClient = core.createRestClient();
+        boolean ready = restClient != null && SyncthingReadiness.getInstance().isReady();
+        double[] rates = ready ? readThroughput(restClient) : new double[] { 0, 0 };
+
+        Tier target;
+        Limits limits;
+        synchronized (this) {
+            target = chooseTier(batteryPercent, charging, thermalStatus, metered);
+            limits = enabled ? tierLimits.get(target) : new Limits(0, 0);
+            state = new BandwidthState(target, batteryPercent, charging, thermalStatus, metered, appliedLimits, rates[0], rates[1]);
+        }
+        SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+        metrics.setGauge(SyncthingMetrics.BANDWIDTH_IN_KBPS, Math.round(rates[0]));
+        metrics.setGauge(SyncthingMetrics.BANDWIDTH_OUT_KBPS, Math.round(rates[1]));
+        if (!ready) {
+            return;
+        }
+
+        try {
+            applyLimits(restClient, limits);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to apply bandwidth limits", e);
+        }
+    }
+
+    // Caller holds the lock
+    private Tier chooseTier(int batteryPercent, boolean charging, int thermalStatus, boolean metered) {
+        if (batteryPercent >= 0) {
+            lowBattery = !charging && batteryPercent <= (lowBattery ? LOW_BATTERY_EXIT_PERCENT : LOW_BATTERY_ENTER_PERCENT);
+        }
+        hot = thermalStatus >= (hot ? PowerManager.THERMAL_STATUS_MODERATE : PowerManager.THERMAL_STATUS_SEVERE);
+
+        Tier wanted;
+        if (metered) {
+            wanted = Tier.METERED;
+        } else if (lowBattery || hot) {
+            wanted = Tier.CONSTRAINED;
+        } else if (charging) {
+            wanted = Tier.UNLIMITED;
+        } else {
+            wanted = Tier.BATTERY;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (wanted.ordinal() >= tier.ordinal()) {
+            tier = wanted;
+            candidateTier = null;
+        } else if (wanted != candidateTier) {
+            candidateTier = wanted;
+            candidateSince = now;
+        } else if (now - candidateSince >= RELAX_AFTER_MS) {
+            tier = wanted;
+            candidateTier = null;
+        }
+        return tier;
+    }
+
+    private void applyLimits(SyncthingRestClient restClient, Limits tierLimit) throws IOException, JSONException {
+        Limits current = readLimits(restClient);
+        Limits configured;
+        synchronized (this) {
+            // Anything other than what we wrote last was set by the user, in settings or before we ever ran
+            if (configuredLimits == null || !current.equals(appliedLimits)) {
+                configuredLimits = current;
+                appliedLimits = current;
+                saveLimits(PREF_USER_SEND_KBPS, PREF_USER_RECV_KBPS, current);
+                saveLimits(PREF_APPLIED_SEND_KBPS, PREF_APPLIED_RECV_KBPS, current);
+            }
+            configured = configuredLimits;
+        }
+
+        Limits limits = new Limits(tighter(configured.sendKbps(), tierLimit.sendKbps()), tighter(configured.recvKbps(), tierLimit.recvKbps()));
+        if (limits.equals(current)) {
+            return;
+        }
+        writeLimits(restClient, limits);
+        synchronized (this) {
+            if (state != null) {
+                state = new BandwidthState(state.tier(), state.batteryPercent(), state.charging(), state.thermalStatus(), state.metered(),
+                    limits, state.inKbps(), state.outKbps());
+            }
+        }
+        SyncthingMetrics.getInstance().increment(SyncthingMetrics.BANDWIDTH_CHANGES);
+        Log.i(TAG, String.format("Bandwidth limited to %1$d KiB/s up and %2$d KiB/s down", limits.sendKbps(), limits.recvKbps()));
+    }
+
+    private Limits readLimits(SyncthingRestClient restClient) throws IOException, JSONException {
+        JSONObject options = new JSONObject(restClient.get("config/options", null));
+        return new Limits(options.optInt("maxSendKbps"), options.optInt("maxRecvKbps"));
+    }
+
+    private void writeLimits(SyncthingRestClient restClient, Limits limits) throws IOException, JSONException {
+        restClient.patch("config/options", new JSONObject()
+            .put("maxSendKbps", limits.sendKbps())
+            .put("maxRecvKbps", limits.recvKbps())
+            .toString());
+        synchronized (this) {
+            appliedLimits = limits;
+            saveLimits(PREF_APPLIED_SEND_KBPS, PREF_APPLIED_RECV_KBPS, limits);
+        }
+    }
+
+    private Limits loadLimits(String sendKey, String recvKey) {
+        if (!preferences.contains(sendKey) || !preferences.contains(recvKey)) {
+            return null;
+        }
+        return new Limits(preferences.getInt(sendKey, 0), preferences.getInt(recvKey, 0));
+    }
+
+    // Caller holds the lock
+    private void saveLimits(String sendKey, String recvKey, Limits limits) {
+        preferences.edit().putInt(sendKey, limits.sendKbps()).putInt(recvKey, limits.recvKbps()).apply();
+    }
+
+    /**
+     * @return {inKbps, outKbps} since the previous call from the daemon's byte totals
+     */
+    private double[] readThroughput(SyncthingRestClient restClient) {
+        try {
+            JSONObject total = new JSONObject(restClient.get("system/connections", null)).optJSONObject("total");
+            if (total == null) {
+                return new double[] { 0, 0 };
+            }
+            long inBytes = total.optLong("inBytesTotal");
+            long outBytes = total.optLong("outBytesTotal");
+            long now = SystemClock.elapsedRealtime();
+            double[] rates = { 0, 0 };
+            synchronized (this) {
+                // Totals start over with every launch
+                if (lastInBytes >= 0 && inBytes >= lastInBytes && outBytes >= lastOutBytes && now > lastBytesAt) {
+                    double seconds = (now - lastBytesAt) / 1000.0;
+                    rates[0] = (inBytes - lastInBytes) / 1024.0 / seconds;
+                    rates[1] = (outBytes - lastOutBytes) / 1024.0 / seconds;
+                }
+                lastInBytes = inBytes;
+                lastOutBytes = outBytes;
+                lastBytesAt = now;
+            }
+            return rates;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to read throughput", e);
+            return new double[] { 0, 0 };
+        }
+    }
+
+    private int readThermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return PowerManager.THERMAL_STATUS_NONE;
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return powerManager.getCurrentThermalStatus();
+    }
+
+    private boolean isMetered() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = connectivityManager.getActiveNetwork();
+        NetworkCapabilities capabilities = network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+        return capabilities != null && !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+    }
+
+    // 0 is unlimited, so it loses to any real limit
+    private static int tighter(int a, int b) {
+        if (a <= 0) {
+            return Math.max(0, b);
+        }
+        return b <= 0 ? a : Math.min(a, b);
+    }
+}
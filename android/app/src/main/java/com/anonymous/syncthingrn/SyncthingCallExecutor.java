@@ -0,0 +1,191 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Runs blocking module calls off the React native modules thread. The pool and its
+    queue are bounded, a call that does not fit is rejected straight away instead of
+    piling up. Every call has a deadline measured from submission and can be cancelled
+    through a token, both interrupt the thread running it. Tokens are issued here and
+    are good for one call, so callers cannot collide on or guess each other's.
+*/
+public class SyncthingCallExecutor {
+
+    public interface Call<T> {
+        T run() throws Exception;
+    }
+
+    public static class CallRejectedException extends Exception {
+        public CallRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private record PendingCall(Future<?> task, CompletableFuture<?> result) {}
+
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+
+    private static final String TAG = "SyncthingCallExecutor";
+    private static final int POOL_SIZE = 2;
+    private static final int QUEUE_CAPACITY = 16;
+    // Tokens handed out but not used yet, the oldest are forgotten first
+    private static final int MAX_ISSUED_TOKENS = 64;
+
+    private static SyncthingCallExecutor instance;
+
+    public static synchronized SyncthingCallExecutor getInstance() {
+        if (instance == null) {
+            instance = new SyncthingCallExecutor();
+        }
+        return instance;
+    }
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        POOL_SIZE, POOL_SIZE, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+        runnable -> {
+            Thread thread = new Thread(runnable, TAG + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        },
+        new ThreadPoolExecutor.AbortPolicy()
+    );
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG + "-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, PendingCall> pendingCalls = new ConcurrentHashMap<>();
+    private final Set<String> issuedTokens = new LinkedHashSet<>();
+    private final AtomicLong tokenCounter = new AtomicLong();
+
+    private SyncthingCallExecutor() {}
+
+    /**
+     * @return a token for one call to submit
+     */
+    public String issueToken() {
+        String token = "call-" + tokenCounter.incrementAndGet();
+        synchronized (issuedTokens) {
+            issuedTokens.add(token);
+            if (issuedTokens.size() > MAX_ISSUED_TOKENS) {
+                Iterator<String> oldest = issuedTokens.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Queues a call. The returned future fails with CallRejectedException when the queue is full,
+     * TimeoutException when the deadline passes and CancellationException when cancelled.
+     * @param token from issueToken() for cancel(), may be null
+     * @param timeoutMs deadline including the time spent queued
+     */
+    public <T> CompletableFuture<T> submit(String name, String token, long timeoutMs, Call<T> call) {
+        SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (token != null) {
+            boolean issued;
+            synchronized (issuedTokens) {
+                issued = issuedTokens.remove(token);
+            }
+            if (!issued) {
+                result.completeExceptionally(new IllegalArgumentException("Token " + token + " was not issued by createCallToken or is already used"));
+                return result;
+            }
+        }
+
+        long queuedAt = SystemClock.elapsedRealtime();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                long startedAt = SystemClock.elapsedRealtime();
+                metrics.record(SyncthingMetrics.EXECUTOR_WAIT_MS, startedAt - queuedAt);
+                updateQueueDepth();
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    result.complete(call.run());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    metrics.record(SyncthingMetrics.EXECUTOR_RUN_MS, SystemClock.elapsedRealtime() - startedAt);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.increment(SyncthingMetrics.EXECUTOR_REJECTED);
+            result.completeExceptionally(new CallRejectedException(String.format("%1$s rejected, %2$d calls are already queued", name, executor.getQueue().size())));
+            return result;
+        }
+        updateQueueDepth();
+
+        ScheduledFuture<?> deadline = timer.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(String.format("%1$s timed out after %2$d ms", name, timeoutMs)))) {
+                metrics.increment(SyncthingMetrics.EXECUTOR_TIMEOUTS);
+                task.cancel(true);
+                executor.purge();
+                updateQueueDepth();
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        PendingCall pendingCall = new PendingCall(task, result);
+        if (token != null) {
+            pendingCalls.put(token, pendingCall);
+        }
+        result.whenComplete((value, error) -> {
+            deadline.cancel(false);
+            if (token != null) {
+                pendingCalls.remove(token, pendingCall);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Cancels a queued or running call.
+     * @return false if no call with the token is pending
+     */
+    public boolean cancel(String token) {
+        PendingCall pendingCall = pendingCalls.remove(token);
+        if (pendingCall == null || !pendingCall.result().completeExceptionally(new CancellationException("Call " + token + " was cancelled"))) {
+            return false;
+        }
+        SyncthingMetrics.getInstance().increment(SyncthingMetrics.EXECUTOR_CANCELLED);
+        pendingCall.task().cancel(true);
+        // Cancelled tasks stay in the queue until purged, drop them so they stop taking up slots
+        executor.purge();
+        updateQueueDepth();
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    private void updateQueueDepth() {
+        SyncthingMetrics.getInstance().setGauge(SyncthingMetrics.EXECUTOR_QUEUE_DEPTH, executor.getQueue().size());
+    }
+}
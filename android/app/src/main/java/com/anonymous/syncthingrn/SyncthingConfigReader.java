@@ -0,0 +1,129 @@
+package com.anonymous.syncthingrn;
+
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+    Reads the <gui> section of Syncthing's config.xml without launching the binary.
+    Parsing stops as soon as the section ends and the result is cached until the
+    file's modification time or size changes.
+*/
+public class SyncthingConfigReader {
+
+    public record GuiConfig(String apiKey, String address, boolean tls) {
+
+        /**
+         * Base URL of the REST API. Wildcard listen addresses are reached through loopback.
+         */
+        public String getRestBaseUrl() {
+            String host = address;
+            if (host == null || host.isEmpty()) {
+                return SyncthingRestClient.DEFAULT_BASE_URL;
+            }
+            if (host.startsWith("0.0.0.0:")) {
+                host = "127.0.0.1" + host.substring("0.0.0.0".length());
+            } else if (host.startsWith("[::]:")) {
+                host = "[::1]" + host.substring("[::]".length());
+            } else if (host.startsWith(":")) {
+                host = "127.0.0.1" + host;
+            }
+            return String.format("%1$s://%2$s/rest", tls ? "https" : "http", host);
+        }
+    }
+
+    private static final String TAG = "SyncthingConfigReader";
+
+    private final File configFile;
+
+    private GuiConfig cachedConfig;
+    private long cachedModified = -1;
+    private long cachedLength = -1;
+
+    public SyncthingConfigReader(File configFile) {
+        this.configFile = configFile;
+    }
+
+    public File getConfigFile() {
+        return configFile;
+    }
+
+    /**
+     * @return the GUI section, or null if config.xml does not exist yet or has no API key
+     */
+    public synchronized GuiConfig getGuiConfig() {
+        long modified = configFile.lastModified();
+        long length = configFile.length();
+        if (modified == 0) {
+            cachedConfig = null;
+            return null;
+        }
+        if (cachedConfig != null && modified == cachedModified && length == cachedLength) {
+            return cachedConfig;
+        }
+
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(configFile))) {
+            GuiConfig config = parseGuiSection(inputStream);
+            cachedConfig = config != null && config.apiKey() != null && !config.apiKey().isEmpty() ? config : null;
+            cachedModified = modified;
+            cachedLength = length;
+        } catch (IOException | XmlPullParserException e) {
+            // Syncthing rewrites the file in place, a partial read is retried on the next call
+            Log.w(TAG, "Failed to read " + configFile, e);
+            cachedConfig = null;
+        }
+        return cachedConfig;
+    }
+
+    public String getApiKey() {
+        GuiConfig config = getGuiConfig();
+        return config != null ? config.apiKey() : null;
+    }
+
+    public synchronized void invalidate() {
+        cachedConfig = null;
+        cachedModified = -1;
+        cachedLength = -1;
+    }
+
+    private static GuiConfig parseGuiSection(InputStream inputStream) throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(inputStream, null);
+
+        int guiDepth = -1;
+        boolean tls = false;
+        String address = null;
+        String apiKey = null;
+
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                String name = parser.getName();
+                // Only the top level <gui> element under <configuration>
+                if (guiDepth < 0 && "gui".equals(name) && parser.getDepth() == 2) {
+                    guiDepth = parser.getDepth();
+                    tls = Boolean.parseBoolean(parser.getAttributeValue(null, "tls"));
+                } else if (guiDepth > 0 && parser.getDepth() == guiDepth + 1) {
+                    if ("address".equals(name)) {
+                        address = parser.nextText().trim();
+                    } else if ("apikey".equals(name)) {
+                        apiKey = parser.nextText().trim();
+                    }
+                }
+            } else if (eventType == XmlPullParser.END_TAG && guiDepth > 0 && parser.getDepth() == guiDepth) {
+                return new GuiConfig(apiKey, address, tls);
+            }
+            eventType = parser.next();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,398 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Batches config edits into a single write. A transaction collects patches to the
+    options, the GUI settings, devices and folders. Committing it merges them into a
+    copy of the config, leaves out the ones that change nothing and sends what is left
+    as one PUT of rest/config. The daemon persists config.xml once and is restarted at
+    most once, and only if one of the changes needs it.
+
+    The config is cached from the last read and stays valid while the event pump
+    delivers ConfigSaved events and none has arrived since. Otherwise it is read again
+    before the commit. A ConfigSaved that arrives while a commit merges means another
+    writer got in between, the merge is then redone on a fresh read. New devices and
+    folders start from the daemon's defaults, like ones added in its own GUI.
+*/
+public class SyncthingConfigWriter {
+
+    public record CommitResult(List<String> changedSections, boolean written, boolean restarted, long durationMs) {}
+
+    public static final String SECTION_OPTIONS = "options";
+    public static final String SECTION_GUI = "gui";
+    public static final String SECTION_DEVICES = "devices";
+    public static final String SECTION_FOLDERS = "folders";
+
+    private static final String TAG = "SyncthingConfigWriter";
+    // Transactions that are never committed or aborted are dropped oldest first
+    private static final int MAX_OPEN_TRANSACTIONS = 8;
+    // Merges redone because another write landed meanwhile, before writing anyway
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+
+    /*
+        Staged patches. Entries are keyed by device or folder ID, JSONObject.NULL removes one.
+    */
+    private static class Transaction {
+        final JSONObject options = new JSONObject();
+        final JSONObject gui = new JSONObject();
+        final Map<String, Object> devices = new LinkedHashMap<>();
+        final Map<String, Object> folders = new LinkedHashMap<>();
+    }
+
+    private static SyncthingConfigWriter instance;
+
+    public static synchronized SyncthingConfigWriter getInstance() {
+        if (instance == null) {
+            instance = new SyncthingConfigWriter();
+        }
+        return instance;
+    }
+
+    private final LinkedHashMap<String, Transaction> transactions = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Transaction> eldest) {
+            return size() > MAX_OPEN_TRANSACTIONS;
+        }
+    };
+    // Commits are serialised so each one merges onto the result of the previous
+    private final Object commitLock = new Object();
+    private long transactionCount = 0;
+    private JSONObject cachedConfig;
+    private long cachedSession = -1;
+    private long cachedConfigSavedId = -1;
+
+    private SyncthingConfigWriter() {}
+
+    /**
+     * @return ID to stage changes under and commit
+     */
+    public synchronized String begin() {
+        String transactionId = "config-" + (++transactionCount);
+        transactions.put(transactionId, new Transaction());
+        return transactionId;
+    }
+
+    /**
+     * Stages a patch. Fields of the patch replace the same fields of the current value, later
+     * patches to the same target are merged on top of earlier ones.
+     * @param section one of the SECTION_ constants
+     * @param id device or folder ID, ignored for options and gui
+     * @param patch fields to change, or null to remove the device or folder
+     */
+    public synchronized void stage(String transactionId, String section, String id, JSONObject patch) throws JSONException {
+        Transaction transaction = getTransaction(transactionId);
+        switch (section) {
+            case SECTION_OPTIONS:
+                mergeInto(transaction.options, patch);
+                break;
+            case SECTION_GUI:
+                mergeInto(transaction.gui, patch);
+                break;
+            case SECTION_DEVICES:
+                stageEntry(transaction.devices, id, patch);
+                break;
+            case SECTION_FOLDERS:
+                stageEntry(transaction.folders, id, patch);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown config section " + section);
+        }
+    }
+
+    /**
+     * @return false if there was no such transaction
+     */
+    public synchronized boolean abort(String transactionId) {
+        return transactions.remove(transactionId) != null;
+    }
+
+    /**
+     * Writes the staged changes and ends the transaction.
+     * @param restartIfRequired restart the daemon if it reports that a change needs one
+     */
+    public CommitResult commit(String transactionId, SyncthingRestClient restClient, boolean restartIfRequired) throws IOException, JSONException {
+        Transaction transaction;
+        synchronized (this) {
+            transaction = getTransaction(transactionId);
+            transactions.remove(transactionId);
+        }
+
+        synchronized (commitLock) {
+            long startedAt = SystemClock.elapsedRealtime();
+            SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+            JSONObject config;
+            List<String> changedSections;
+            for (int attempt = 1; ; attempt++) {
+                config = new JSONObject(getConfig(restClient).toString());
+                changedSections = merge(config, transaction, restClient);
+                if (changedSections.isEmpty()) {
+                    metrics.increment(SyncthingMetrics.CONFIG_COMMITS_SKIPPED);
+                    return new CommitResult(changedSections, false, false, SystemClock.elapsedRealtime() - startedAt);
+                }
+                if (isCachedConfigCurrent() || attempt == MAX_COMMIT_ATTEMPTS) {
+                    break;
+                }
+                // Another write landed after the read, merging onto a fresh copy keeps it
+                synchronized (this) {
+                    cachedConfig = null;
+                }
+            }
+
+            restClient.put("config", config.toString());
+            synchronized (this) {
+                // The ConfigSaved of this write invalidates it, the daemon may have normalised values
+                cachedConfig = config;
+            }
+            boolean restarted = restartIfRequired && requiresRestart(restClient);
+            if (restarted) {
+                restart(restClient);
+            }
+            long durationMs = SystemClock.elapsedRealtime() - startedAt;
+            metrics.increment(SyncthingMetrics.CONFIG_COMMITS);
+            metrics.record(SyncthingMetrics.CONFIG_COMMIT_MS, durationMs);
+            Log.i(TAG, String.format("Committed %1$s to the config, restarted %2$b", changedSections, restarted));
+            return new CommitResult(changedSections, true, restarted, durationMs);
+        }
+    }
+
+    /**
+     * @return the sections that changed
+     */
+    private static List<String> merge(JSONObject config, Transaction transaction, SyncthingRestClient restClient) throws IOException, JSONException {
+        List<String> changedSections = new ArrayList<>();
+        if (mergeSection(config, SECTION_OPTIONS, transaction.options)) {
+            changedSections.add(SECTION_OPTIONS);
+        }
+        if (mergeSection(config, SECTION_GUI, transaction.gui)) {
+            changedSections.add(SECTION_GUI);
+        }
+        JSONObject deviceDefaults = hasNewEntries(config, SECTION_DEVICES, "deviceID", transaction.devices)
+            ? new JSONObject(restClient.get("config/defaults/device", null)) : null;
+        if (mergeEntries(config, SECTION_DEVICES, "deviceID", transaction.devices, deviceDefaults)) {
+            changedSections.add(SECTION_DEVICES);
+        }
+        JSONObject folderDefaults = hasNewEntries(config, SECTION_FOLDERS, "id", transaction.folders)
+            ? new JSONObject(restClient.get("config/defaults/folder", null)) : null;
+        if (mergeEntries(config, SECTION_FOLDERS, "id", transaction.folders, folderDefaults)) {
+            changedSections.add(SECTION_FOLDERS);
+        }
+        return changedSections;
+    }
+
+    // Caller holds the lock
+    private Transaction getTransaction(String transactionId) {
+        Transaction transaction = transactions.get(transactionId);
+        if (transaction == null) {
+            throw new IllegalArgumentException("Unknown or expired config transaction " + transactionId);
+        }
+        return transaction;
+    }
+
+    private static void stageEntry(Map<String, Object> entries, String id, JSONObject patch) throws JSONException {
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Devices and folders are staged by ID");
+        }
+        Object staged = entries.get(id);
+        if (patch == null) {
+            entries.put(id, JSONObject.NULL);
+        } else if (staged instanceof JSONObject) {
+            mergeInto((JSONObject) staged, patch);
+        } else {
+            // Also replaces a staged removal, the entry is then written from this patch alone
+            entries.put(id, mergeInto(new JSONObject(), patch));
+        }
+    }
+
+    private static JSONObject mergeInto(JSONObject target, JSONObject patch) throws JSONException {
+        if (patch == null) {
+            throw new IllegalArgumentException("Only devices and folders can be removed");
+        }
+        Iterator<String> keys = patch.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            target.put(key, patch.get(key));
+        }
+        return target;
+    }
+
+    private JSONObject getConfig(SyncthingRestClient restClient) throws IOException, JSONException {
+        SyncthingEventPump eventPump = SyncthingEventPump.getInstance();
+        synchronized (this) {
+            if (cachedConfig != null && eventPump.delivers("ConfigSaved")
+                && cachedSession == eventPump.getSession() && cachedConfigSavedId == eventPump.getLastConfigSavedId()) {
+                return cachedConfig;
+            }
+        }
+        // Read the markers first, a save that lands during the read then invalidates the copy
+        long session = eventPump.getSession();
+        long configSavedId = eventPump.getLastConfigSavedId();
+        JSONObject config = new JSONObject(restClient.get("config", null));
+        synchronized (this) {
+            cachedConfig = config;
+            cachedSession = session;
+            cachedConfigSavedId = configSavedId;
+        }
+        return config;
+    }
+
+    /**
+     * @return false if a ConfigSaved arrived since the cached config was read, true as well
+     *         when the pump does not deliver them and there is no telling
+     */
+    private boolean isCachedConfigCurrent() {
+        SyncthingEventPump eventPump = SyncthingEventPump.getInstance();
+        synchronized (this) {
+            return !eventPump.delivers("ConfigSaved")
+                || (cachedSession == eventPump.getSession() && cachedConfigSavedId == eventPump.getLastConfigSavedId());
+        }
+    }
+
+    /**
+     * @return true if any field of the patch differs from the config
+     */
+    static boolean mergeSection(JSONObject config, String section, JSONObject patch) throws JSONException {
+        if (patch.length() == 0) {
+            return false;
+        }
+        JSONObject target = config.optJSONObject(section);
+        if (target == null) {
+            target = new JSONObject();
+            config.put(section, target);
+        }
+        return mergeChanged(target, patch);
+    }
+
+    private static boolean hasNewEntries(JSONObject config, String section, String idField, Map<String, Object> staged) {
+        JSONArray entries = config.optJSONArray(section);
+        for (Map.Entry<String, Object> stagedEntry : staged.entrySet()) {
+            if (stagedEntry.getValue() != JSONObject.NULL && (entries == null || indexOf(entries, idField, stagedEntry.getKey()) < 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param defaults what a new entry starts from before its patch is applied, null for nothing
+     * @return true if an entry was added, removed or changed
+     */
+    static boolean mergeEntries(JSONObject config, String section, String idField, Map<String, Object> staged, JSONObject defaults) throws JSONException {
+        if (staged.isEmpty()) {
+            return false;
+        }
+        JSONArray entries = config.optJSONArray(section);
+        if (entries == null) {
+            entries = new JSONArray();
+            config.put(section, entries);
+        }
+        boolean changed = false;
+        for (Map.Entry<String, Object> stagedEntry : staged.entrySet()) {
+            int index = indexOf(entries, idField, stagedEntry.getKey());
+            if (stagedEntry.getValue() == JSONObject.NULL) {
+                if (index >= 0) {
+                    entries.remove(index);
+                    changed = true;
+                }
+            } else if (index >= 0) {
+                changed |= mergeChanged(entries.getJSONObject(index), (JSONObject) stagedEntry.getValue());
+            } else {
+                JSONObject entry = defaults != null ? new JSONObject(defaults.toString()) : new JSONObject();
+                mergeInto(entry, (JSONObject) stagedEntry.getValue());
+                entries.put(entry.put(idField, stagedEntry.getKey()));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static int indexOf(JSONArray entries, String idField, String id) {
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.optJSONObject(i);
+            if (entry != null && id.equals(entry.optString(idField))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean mergeChanged(JSONObject target, JSONObject patch) throws JSONException {
+        boolean changed = false;
+        Iterator<String> keys = patch.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = patch.get(key);
+            if (!jsonEquals(target.opt(key), value)) {
+                target.put(key, value);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Structural equality, numbers compare by value since JS hands every number over as a double.
+     */
+    private static boolean jsonEquals(Object left, Object right) {
+        if (left == null || left == JSONObject.NULL || right == null || right == JSONObject.NULL) {
+            return (left == null || left == JSONObject.NULL) && (right == null || right == JSONObject.NULL);
+        }
+        if (left instanceof Number && right instanceof Number) {
+            return ((Number) left).doubleValue() == ((Number) right).doubleValue();
+        }
+        if (left instanceof JSONObject && right instanceof JSONObject) {
+            JSONObject leftObject = (JSONObject) left;
+            JSONObject rightObject = (JSONObject) right;
+            if (leftObject.length() != rightObject.length()) {
+                return false;
+            }
+            Iterator<String> keys = leftObject.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!rightObject.has(key) || !jsonEquals(leftObject.opt(key), rightObject.opt(key))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (left instanceof JSONArray && right instanceof JSONArray) {
+            JSONArray leftArray = (JSONArray) left;
+            JSONArray rightArray = (JSONArray) right;
+            if (leftArray.length() != rightArray.length()) {
+                return false;
+            }
+            for (int i = 0; i < leftArray.length(); i++) {
+                if (!jsonEquals(leftArray.opt(i), rightArray.opt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return left.equals(right);
+    }
+
+    private static boolean requiresRestart(SyncthingRestClient restClient) throws IOException, JSONException {
+        return new JSONObject(restClient.get("config/restart-required", null)).optBoolean("requiresRestart");
+    }
+
+    /**
+     * Goes through the supervisor when it runs the daemon, so the restart is not counted as a crash.
+     */
+    private static void restart(SyncthingRestClient restClient) throws IOException {
+        if (!SyncthingSupervisor.getInstance().restart()) {
+            restClient.post("system/restart", null, null);
+        }
+    }
+}
@@ -52,8 +52,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import android.os.Environment;
 import javax.inject.Inject;
@@ -82,6 +85,14 @@ public class SyncthingCore {
 
     private static final String TAG = "SyncthingCore";
 
+    private static final long SHELL_COMMAND_TIMEOUT_MS = 30000;
+
+    // CLI invocations print a few lines, anything beyond this is dropped
+    private static final long SYNCTHING_COMMAND_TIMEOUT_MS = 60000;
+    private static final int MAX_COMMAND_OUTPUT_CHARS = 64 * 1024;
+    // The daemon plus the handful of CLI invocations the app makes
+    private static final int MAX_CACHED_PROFILES = 8;
+
     public static String[] createCommandWithBinary(String binary, String[] command) {
         String[] fullCommand = new String[command.length + 1];
         fullCommand[0] = binary;
@@ -89,78 +100,146 @@ public class SyncthingCore {
         return fullCommand;
     }
 
+    /**
+     * Runs a command on one of the pooled shell sessions rather than forking a new `sh` each time.
+     */
     public static ShellCommandResponse runShellCommand(String command) {
-        int exitCode = 255;
-        Process shellProcess = null;
-        DataOutputStream shellOutput = null;
-        List<String> logs = new ArrayList<String>(); 
+        return runShellCommand(command, SHELL_COMMAND_TIMEOUT_MS);
+    }
 
+    public static ShellCommandResponse runShellCommand(String command, long timeoutMs) {
         try {
-            shellProcess = Runtime.getRuntime().exec(new String[]{"sh"});
-            shellOutput = new DataOutputStream(shellProcess.getOutputStream());
+            return SyncthingShellPool.getInstance().execute(command, timeoutMs);
+        } catch (IOException | InterruptedException | SyncthingShellPool.ShellTimeoutException e) {
+            List<String> logs = new ArrayList<String>();
+            logs.add(String.format("Error running shell command: %1$s", e));
+            return new ShellCommandResponse(255, logs);
+        }
+    }
 
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(shellOutput));
+    private Context context;
 
-            bufferedWriter.write(command);
-            bufferedWriter.flush();
-            shellOutput.close();
-            shellOutput = null;
 
-            BufferedReader bufferedReader = null;
+    private final String SYNCTHING_BINARY_STRING = "libsyncthing.so";
 
-            bufferedReader = new BufferedReader(new InputStreamReader(shellProcess.getInputStream(), StandardCharsets.UTF_8));
-            logs = bufferedReader.lines().toList();
+    // Syncthing needs a moment to flush its database on SIGINT
+    private static final long STOP_TIMEOUT_MS = 10000;
 
-            if (bufferedReader != null) {
-                bufferedReader.close();
-            }
-            exitCode = shellProcess.waitFor();
-        } catch (IOException | InterruptedException e) {
-            logs.add(String.format("Error running shell command: %1$s", e));
-        } finally {
-            try {
-                if (shellOutput != null) {
-                    shellOutput.close();
-                }
-            } catch (IOException e) {
-                logs.add("Failed to close stream");
-            }
-            if (shellProcess != null) {
-                shellProcess.destroy();
-            }
-        }
+    private record GatewayLookup(Network network, String gatewayIpV4) {}
 
-        return new ShellCommandResponse(exitCode, logs);
+    /**
+     * Cheap enough for the startup path, the binary is checked on the first launch.
+     */
+    public SyncthingCore(Context context) {
+        this.context = context;
+        this.binaryLocation = String.format("%1$s/%2$s", context.getApplicationInfo().nativeLibraryDir, SYNCTHING_BINARY_STRING);
+        // Generated next to config.xml, used when the GUI has TLS enabled
+        SyncthingRestClient.pinCertificate(new File(context.getFilesDir(), "https-cert.pem"));
     }
 
-    private Context context;
+    private final String binaryLocation;
+    private volatile boolean binaryValidated = false;
+    private SyncthingConfigReader configReader;
+    private final SyncthingReadiness readiness = SyncthingReadiness.getInstance();
+    // Profile of the most recent daemon launch
+    private volatile SyncthingLaunchProfile launchProfile;
+    // Keyed by the parameters, in access order so the least recently launched goes first
+    private final LinkedHashMap<List<String>, SyncthingLaunchProfile> launchProfiles = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, SyncthingLaunchProfile> eldest) {
+            return size() > MAX_CACHED_PROFILES;
+        }
+    };
+    private volatile GatewayLookup gatewayLookup;
 
+    /**
+     * Reader for config.xml in the default STHOMEDIR, shared so its cache survives between calls.
+     */
+    public synchronized SyncthingConfigReader getConfigReader() {
+        if (configReader == null) {
+            configReader = new SyncthingConfigReader(new File(context.getFilesDir(), "config.xml"));
+        }
+        return configReader;
+    }
 
-    private final String SYNCTHING_BINARY_STRING = "libsyncthing.so";
+    /**
+     * Creates a REST client for the running instance using the address and API key from config.xml.
+     * @return null if config.xml has not been generated yet
+     */
+    public SyncthingRestClient createRestClient() {
+        SyncthingConfigReader.GuiConfig guiConfig = getConfigReader().getGuiConfig();
+        if (guiConfig == null) {
+            return null;
+        }
+        return new SyncthingRestClient(guiConfig.getRestBaseUrl(), guiConfig.apiKey());
+    }
 
-    public SyncthingCore(Context context) throws ExecutableNotFoundException {
-        this.context = context;
-        this.validateBinaryExists();
+    /**
+     * @return the environment the running daemon was launched with, empty before the first launch
+     */
+    public HashMap<String, String> getLaunchEnvironment() {
+        SyncthingLaunchProfile profile = launchProfile;
+        return profile != null ? new HashMap<>(profile.getEnvironment()) : new HashMap<>();
+    }
+
+    public String getRestBaseUrl() {
+        SyncthingConfigReader.GuiConfig guiConfig = getConfigReader().getGuiConfig();
+        return guiConfig != null ? guiConfig.getRestBaseUrl() : SyncthingRestClient.DEFAULT_BASE_URL;
     }
 
     public String getBinaryLocation() {
-        return String.format("%1$s/%2$s", context.getApplicationInfo().nativeLibraryDir, SYNCTHING_BINARY_STRING);
+        return binaryLocation;
     }
 
+    public Context getContext() {
+        return context;
+    }
+
+    /**
+     * The binary ships with the APK and cannot disappear while the app is installed,
+     * so once it has been found it is not looked for again.
+     */
     public void validateBinaryExists() throws ExecutableNotFoundException {
-        String binaryLocation = getBinaryLocation();
+        if (binaryValidated) {
+            return;
+        }
         File libSyncthing = new File(binaryLocation);
         if (!libSyncthing.exists()) {
             Log.e(TAG, "CRITICAL - Syncthing core binary is missing in APK package location " + binaryLocation);
             throw new ExecutableNotFoundException(binaryLocation);
-        } {
-            Log.e(TAG, "Binary: " + binaryLocation);
         }
+        Log.d(TAG, "Binary: " + binaryLocation);
+        binaryValidated = true;
     }
 
+    /**
+     * Looks up the gateway of the active network and remembers it for the next launch.
+     */
     public String getGatewayIpV4() {
         ConnectivityManager cm = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
         Network activeNetwork = cm.getActiveNetwork();
+        String gatewayIpV4 = lookupGatewayIpV4(cm, activeNetwork);
+        gatewayLookup = new GatewayLookup(activeNetwork, gatewayIpV4);
+        return gatewayIpV4;
+    }
+
+    /**
+     * Reuses the last lookup while the active network is the same one. A gateway that moves
+     * within a network is picked up by SyncthingNetworkMonitor, which looks it up afresh.
+     */
+    private String getLaunchGatewayIpV4() {
+        ConnectivityManager cm = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network activeNetwork = cm.getActiveNetwork();
+        GatewayLookup lookup = gatewayLookup;
+        if (lookup != null && Objects.equals(lookup.network(), activeNetwork)) {
+            return lookup.gatewayIpV4();
+        }
+        String gatewayIpV4 = lookupGatewayIpV4(cm, activeNetwork);
+        gatewayLookup = new GatewayLookup(activeNetwork, gatewayIpV4);
+        return gatewayIpV4;
+    }
+
+    private static String lookupGatewayIpV4(ConnectivityManager cm, Network activeNetwork) {
         if (activeNetwork == null) return null;
 
         LinkProperties props = cm.getLinkProperties(activeNetwork);
@@ -199,170 +278,193 @@ public class SyncthingCore {
     }
 
 
+    /**
+     * Builds, without starting, a one-off invocation of the binary such as a `cli` call.
+     */
+    public ProcessBuilder createSyncthingCommand(String[] parameters, HashMap<String, String> environmentVariables) {
+        SyncthingLaunchProfile profile = getLaunchProfile(parameters, environmentVariables);
+        Log.d(TAG, profile.toString());
+        return profile.newProcessBuilder();
+    }
+
+    /**
+     * The resolved command and environment for these inputs, built again only when the
+     * parameters, the requested environment, the gateway or the memory pressure changed.
+     */
+    public SyncthingLaunchProfile getLaunchProfile(String[] parameters, Map<String, String> environmentVariables) {
+        String gatewayIpV4 = getLaunchGatewayIpV4();
+        SyncthingMemoryGovernor.Pressure pressure = SyncthingMemoryGovernor.getInstance(context).getPressure();
+        List<String> key = Arrays.asList(parameters.clone());
+        synchronized (launchProfiles) {
+            SyncthingLaunchProfile profile = launchProfiles.get(key);
+            if (profile != null && profile.matches(parameters, environmentVariables, gatewayIpV4, pressure)) {
+                return profile;
+            }
+            HashMap<String, String> environment = validateSyncthingEnvironment(new HashMap<>(environmentVariables), gatewayIpV4);
+            profile = new SyncthingLaunchProfile(binaryLocation, parameters, environmentVariables, gatewayIpV4, pressure, environment);
+            launchProfiles.put(key, profile);
+            SyncthingMetrics.getInstance().increment(SyncthingMetrics.LAUNCH_PROFILE_BUILDS);
+            return profile;
+        }
+    }
+
     public StringBuilder runSyncthingCommand(String[] parameters, HashMap<String, String> environmentVariables) throws IOException, ExecutableNotFoundException {
+        return runSyncthingCommand(parameters, environmentVariables, SYNCTHING_COMMAND_TIMEOUT_MS);
+    }
+
+    ///
+    /// Output is read on a helper thread so the calling thread only ever blocks in waitFor, which
+    /// wakes on interrupt. The process is killed when it outlives the timeout or the caller is interrupted.
+    ///
+    public StringBuilder runSyncthingCommand(String[] parameters, HashMap<String, String> environmentVariables, long timeoutMs) throws IOException, ExecutableNotFoundException {
         Process syncthingProcess = null;
         StringBuilder logs = new StringBuilder();
 
         try {
-            // Set up the full command with parameters, and the environment variables
-            String[] command = createCommandWithBinary(getBinaryLocation(), parameters);
-            Log.e(TAG, Arrays.toString(command));
+            validateBinaryExists();
+            syncthingProcess = createSyncthingCommand(parameters, environmentVariables).start();
 
-            HashMap<String, String> validatedEnvironmentVariables = validateSyncthingEnvironment(environmentVariables);
-            Log.e(TAG, validatedEnvironmentVariables.toString());
+            Process process = syncthingProcess;
+            Thread outputThread = new Thread(() -> readCommandOutput(process, logs), TAG + "-command");
+            outputThread.setDaemon(true);
+            outputThread.start();
 
-            // Creates a process with the environment variables
-            ProcessBuilder processBuilder = new ProcessBuilder(command);
-            processBuilder.environment().putAll(validateSyncthingEnvironment(environmentVariables));
-            syncthingProcess = processBuilder.start();
+            if (!syncthingProcess.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+                synchronized (logs) {
+                    logs.append(String.format("Syncthing command timed out after %1$d ms", timeoutMs));
+                }
+                syncthingProcess.destroy();
+            }
+            outputThread.join(1000);
 
-            // Get logs
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(syncthingProcess.getInputStream()));
+        } catch (IOException e) {
+            logs.append(String.format("Failed to execute syncthing binary or read output: %1$s", e));
+        } catch (InterruptedException e) {
+            synchronized (logs) {
+                logs.append("Syncthing command was interrupted");
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            if (syncthingProcess != null && syncthingProcess.isAlive()) {
+                syncthingProcess.destroy();
+            }
+        }
 
-            // Grab the results
+        synchronized (logs) {
+            return new StringBuilder(logs);
+        }
+    }
+
+    private static void readCommandOutput(Process process, StringBuilder logs) {
+        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            // Keep reading past the cap so the process never blocks on a full pipe
             String line;
             while ((line = bufferedReader.readLine()) != null) {
-                logs.append(line + "\n");
+                synchronized (logs) {
+                    if (logs.length() + line.length() < MAX_COMMAND_OUTPUT_CHARS) {
+                        logs.append(line).append('\n');
+                    }
+                }
             }
-            bufferedReader.close();
-            // When the process is done this will run.
-            syncthingProcess.waitFor();
-
-            Log.e(TAG, "LOGS: " + logs.toString());
-
-        } catch (IOException | InterruptedException e) {
-            logs.append(String.format("Failed to execute syncthing binary or read output: %1$s", e));
+        } catch (IOException e) {
+            // Stream closed because the process was killed
         }
-
-        return logs;
     }
 
     ///
-    /// This Method does not react output from file, if you run a worker in the background and try to read logs it causes a hang.
-    /// You have to inherit the IO to the worker.
+    /// Output is drained on a separate thread into the shared SyncthingLogBuffer, reading it on the
+    /// worker thread would block waitFor and hang the worker.
     ///
     public int runSyncthing(String[] parameters, HashMap<String, String> environmentVariables) throws IOException, ExecutableNotFoundException {
         Process syncthingProcess = null;
         int exitCode = 0;
 
+        validateBinaryExists();
         try {
-            // Set up the full command with parameters, and the environment variables
-            String[] command = createCommandWithBinary(getBinaryLocation(), parameters);
-            Log.e(TAG, Arrays.toString(command));
-            
-            HashMap<String, String> validatedEnvironmentVariables = validateSyncthingEnvironment(environmentVariables);
-            Log.e(TAG, validatedEnvironmentVariables.toString());
+            SyncthingLaunchProfile profile = getLaunchProfile(parameters, environmentVariables);
+            Log.i(TAG, profile.toString());
+
+            ProcessBuilder processBuilder = profile.newProcessBuilder();
+            processBuilder.redirectErrorStream(true);
+            launchProfile = profile;
+            SyncthingMemoryGovernor.getInstance(context).onLaunched(profile.getPressure());
 
-            // Creates a process with the environment variables
-            ProcessBuilder processBuilder = new ProcessBuilder(command);
-            processBuilder.inheritIO();
-            processBuilder.environment().putAll(validateSyncthingEnvironment(environmentVariables));
+            // Readiness is detected from the output as it is drained
+            SyncthingLogBuffer logBuffer = SyncthingLogBuffer.getInstance(context);
+            logBuffer.removeLineListener(readiness);
+            logBuffer.addLineListener(readiness);
+            readiness.onLaunch(this::getRestBaseUrl);
+
+            long spawnStartedAt = SystemClock.elapsedRealtime();
             syncthingProcess = processBuilder.start();
+            SyncthingMetrics.getInstance().record(SyncthingMetrics.PROCESS_SPAWN_MS, SystemClock.elapsedRealtime() - spawnStartedAt);
+            SyncthingProcessRegistry.getInstance().register(syncthingProcess);
+            Thread drainThread = logBuffer.attach(syncthingProcess);
             
             // When the process is done this will run.
             exitCode = syncthingProcess.waitFor();
+            // Let the drain pick up the last lines written before exit
+            drainThread.join(1000);
             
         } catch (IOException | InterruptedException e) {
             exitCode = 255;
+        } finally {
+            if (syncthingProcess != null) {
+                SyncthingProcessRegistry.getInstance().unregister(syncthingProcess);
+            }
+            readiness.onExit(exitCode);
         }
 
         return exitCode;
     }
 
     /**
-     * Look for running libsyncthingnative.so processes and end them gracefully.
+     * Look for running libsyncthing.so processes and end them gracefully.
+     * Processes that do not exit within the timeout after SIGINT are sent SIGKILL.
      */
     public void killSyncthingInternal() {
-        List<String> syncthingPIDs = getSyncthingPIDs();
-
-        Log.e(TAG, syncthingPIDs.toString());
-
-        KillSyncthingResponse response = new KillSyncthingResponse(null);
-
-        if (syncthingPIDs.isEmpty()) { return; }
-        
-        for (String syncthingPID : syncthingPIDs) {
-            response.responses.add(runShellCommand(String.format("kill -SIGINT %1$s \n", syncthingPID)));
-        }
-
-        /**
-         * Wait for the syncthing instance to end.
-         */
-        while (!getSyncthingPIDs().isEmpty()) {
-            SystemClock.sleep(50);
+        boolean graceful = SyncthingProcessRegistry.getInstance().stopAll(SYNCTHING_BINARY_STRING, STOP_TIMEOUT_MS);
+        if (!graceful) {
+            Log.w(TAG, "Syncthing did not shut down in time and was killed");
         }
     }
 
     public List<String> getSyncthingPIDs() {
         List<String> syncthingPIDs = new ArrayList<String>();
-        ShellCommandResponse response = runShellCommand("ps -A\n");
-        
-        if (response.logs.size() == 0) {
-            return syncthingPIDs;
-        }
-
-        for (String line : response.logs) {
-            Log.e(TAG, line);
-            if (line.contains(this.SYNCTHING_BINARY_STRING)) {
-                syncthingPIDs.add(line.trim().split("\\s+")[1]);
-            }
+        for (int pid : SyncthingProcessRegistry.getInstance().getPids(SYNCTHING_BINARY_STRING)) {
+            syncthingPIDs.add(Integer.toString(pid));
         }
-
         return syncthingPIDs;
     }
 
-    private List<String> getSyncthingLogs(Process process) throws IOException {
-        BufferedReader outputReader = null;
-        List<String> syncthingLogs = new ArrayList<>();
-        try {
-            outputReader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
-            
-            String line;
-            while ((line = outputReader.readLine()) != null) {
-                Log.i(TAG, line);
-                syncthingLogs.add(line);
-            }
-
-        } catch (IOException e) {
-            Log.w(TAG, "Error getting syncthing logs", e);
-        } finally {
-            if (outputReader != null) outputReader.close();
-        }
-
-        return syncthingLogs;
-    }
-
-    private String getSyncthingHomeDirectoryAbsolutePath() {
+    public String getSyncthingHomeDirectoryAbsolutePath() {
         return Environment.getExternalStorageDirectory().getAbsolutePath() + "/syncthing";
     }
 
-    public HashMap<String, String> validateSyncthingEnvironment(HashMap<String, String> environment) {
+    private HashMap<String, String> validateSyncthingEnvironment(HashMap<String, String> environment, String gatewayIpV4) {
         
-        if (!environment.containsKey("HOME") || environment.get("HOME") == "") {
+        if (TextUtils.isEmpty(environment.get("HOME"))) {
             environment.put("HOME", getSyncthingHomeDirectoryAbsolutePath());
         }
 
-        if (!environment.containsKey("STHOMEDIR") || environment.get("HOME") == "") {
+        if (TextUtils.isEmpty(environment.get("STHOMEDIR"))) {
             environment.put("STHOMEDIR", this.context.getFilesDir().toString());
         }
 
-        if (!environment.containsKey("STVERSIONEXTRA") || environment.get("STVERSIONEXTRA") == "") {
+        if (TextUtils.isEmpty(environment.get("STVERSIONEXTRA"))) {
             environment.put("STVERSIONEXTRA", context.getPackageName());
         }
 
-        if (!environment.containsKey("SQLITE_TMPDIR") || environment.get("SQLITE_TMPDIR") == "") {
+        if (TextUtils.isEmpty(environment.get("SQLITE_TMPDIR"))) {
             environment.put("SQLITE_TMPDIR", context.getCacheDir().getAbsolutePath());
         }
 
-        final String gatewayIpV4 = this.getGatewayIpV4();
         if (gatewayIpV4 != null) {
             environment.put("FALLBACK_NET_GATEWAY_IPV4", gatewayIpV4);
         }
 
-        // Memory usage optimization
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            environment.put("GOGC", "75"); 
-        }
+        // Memory usage optimization, sized to the device and current memory pressure
+        SyncthingMemoryGovernor.getInstance(context).applyTo(environment);
 
         return environment;
     }
@@ -0,0 +1,295 @@
+package com.anonymous.syncthingrn;
+
+import android.net.wifi.WifiManager.MulticastLock;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Receives local discovery in short windows instead of holding the multicast lock
+    all day. A window opens when a network is joined, when a device disconnects and
+    at a fixed interval. The multicast lock is held while it is open and released
+    when the window times out or every LAN device is connected again. All state is
+    confined to a single thread.
+
+    Only the lock is cycled. localAnnounceEnabled is left to the user's config,
+    toggling it would save config.xml and emit ConfigSaved twice per window.
+*/
+public class SyncthingDiscoveryScheduler implements SyncthingEventPump.Listener {
+
+    private static final String TAG = "SyncthingDiscoveryScheduler";
+    public static final long DEFAULT_WINDOW_MS = 60 * 1000;
+    public static final long DEFAULT_INTERVAL_MS = 15 * 60 * 1000;
+    private static final long CONVERGENCE_CHECK_MS = 10000;
+
+    private static SyncthingDiscoveryScheduler instance;
+
+    public static synchronized SyncthingDiscoveryScheduler getInstance() {
+        if (instance == null) {
+            instance = new SyncthingDiscoveryScheduler();
+        }
+        return instance;
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Devices that have been seen on a LAN address, the ones local discovery can help
+    private final Set<String> lanDevices = new HashSet<>();
+    private SyncthingCore syncthingCore;
+    private volatile MulticastLock multicastLock;
+    private ScheduledFuture<?> periodicWindow;
+    private ScheduledFuture<?> windowEnd;
+    private ScheduledFuture<?> convergenceCheck;
+    private boolean allowed = false;
+    private long windowOpenedAt = 0;
+    private long windowMs = DEFAULT_WINDOW_MS;
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+
+    private SyncthingDiscoveryScheduler() {}
+
+    public void start(SyncthingCore syncthingCore) {
+        executor.execute(() -> {
+            if (this.syncthingCore != null) {
+                return;
+            }
+            this.syncthingCore = syncthingCore;
+            SyncthingEventPump eventPump = SyncthingEventPump.getInstance();
+            eventPump.addListener(this, new String[] {"DeviceConnected", "DeviceDisconnected"});
+            // Nothing else may be running the pump in a background run
+            eventPump.ensureStarted(syncthingCore::createRestClient, SyncthingEventPump.SINCE_LATEST);
+            schedulePeriodicWindow();
+        });
+    }
+
+    public void stop() {
+        executor.execute(() -> {
+            if (this.syncthingCore == null) {
+                return;
+            }
+            SyncthingEventPump.getInstance().removeListener(this);
+            closeWindow("stopped");
+            if (periodicWindow != null) {
+                periodicWindow.cancel(false);
+                periodicWindow = null;
+            }
+            allowed = false;
+            this.syncthingCore = null;
+        });
+    }
+
+    /**
+     * @param windowMs how long a discovery window stays open at most
+     * @param intervalMs how often a window opens without any other trigger
+     */
+    public void configure(long windowMs, long intervalMs) {
+        executor.execute(() -> {
+            this.windowMs = windowMs;
+            this.intervalMs = intervalMs;
+            if (syncthingCore != null) {
+                schedulePeriodicWindow();
+            }
+        });
+    }
+
+    /**
+     * Called by the network monitor whenever it has applied a network.
+     * @param allowed whether local discovery may run on the current network at all
+     * @param networkJoined whether this is a different network from before
+     */
+    public void onNetworkChanged(boolean allowed, boolean networkJoined) {
+        executor.execute(() -> {
+            boolean wasAllowed = this.allowed;
+            this.allowed = allowed;
+            if (!allowed) {
+                closeWindow("network does not allow local discovery");
+            } else if (networkJoined || !wasAllowed) {
+                openWindow("network joined", false);
+            }
+        });
+    }
+
+    public boolean isWindowOpen() {
+        return multicastLock != null;
+    }
+
+    @Override
+    public void onEvents(JSONArray events) {
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.optJSONObject(i);
+            JSONObject data = event != null ? event.optJSONObject("data") : null;
+            if (data == null) {
+                continue;
+            }
+            String type = event.optString("type");
+            if ("DeviceDisconnected".equals(type)) {
+                executor.execute(() -> openWindow("device disconnected", false));
+            } else if ("DeviceConnected".equals(type)) {
+                String deviceId = data.optString("id");
+                boolean lan = isLanAddress(data.optString("addr"));
+                executor.execute(() -> {
+                    if (lan) {
+                        lanDevices.add(deviceId);
+                    }
+                    if (multicastLock != null) {
+                        checkConvergence();
+                    }
+                });
+            }
+        }
+    }
+
+    private void schedulePeriodicWindow() {
+        if (periodicWindow != null) {
+            periodicWindow.cancel(false);
+        }
+        periodicWindow = executor.scheduleWithFixedDelay(() -> openWindow("interval", true), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param skipIfConverged do not bother when every LAN device is already connected
+     */
+    private void openWindow(String reason, boolean skipIfConverged) {
+        SyncthingCore core = syncthingCore;
+        if (core == null || !allowed) {
+            return;
+        }
+        if (multicastLock != null) {
+            // Already discovering, just give it the full window again
+            scheduleWindowEnd();
+            return;
+        }
+        if (skipIfConverged) {
+            SyncthingRestClient restClient = core.createRestClient();
+            if (restClient == null) {
+                return;
+            }
+            try {
+                if (isConverged(restClient)) {
+                    return;
+                }
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Failed to check connections, opening the window anyway", e);
+            }
+        }
+        multicastLock = core.getMulticastLock();
+        if (multicastLock == null) {
+            return;
+        }
+
+        windowOpenedAt = SystemClock.elapsedRealtime();
+        SyncthingMetrics.getInstance().increment(SyncthingMetrics.DISCOVERY_WINDOWS);
+        Log.i(TAG, "Discovery window opened, " + reason);
+        scheduleWindowEnd();
+        convergenceCheck = executor.scheduleWithFixedDelay(this::checkConvergence, CONVERGENCE_CHECK_MS, CONVERGENCE_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleWindowEnd() {
+        if (windowEnd != null) {
+            windowEnd.cancel(false);
+        }
+        windowEnd = executor.schedule(() -> closeWindow("window elapsed"), windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeWindow(String reason) {
+        if (windowEnd != null) {
+            windowEnd.cancel(false);
+            windowEnd = null;
+        }
+        if (convergenceCheck != null) {
+            convergenceCheck.cancel(false);
+            convergenceCheck = null;
+        }
+
+        if (multicastLock == null) {
+            return;
+        }
+        SyncthingCore core = syncthingCore;
+        if (core != null) {
+            core.releaseMulticastLock(multicastLock);
+        } else {
+            multicastLock.release();
+        }
+        multicastLock = null;
+        long openMs = SystemClock.elapsedRealtime() - windowOpenedAt;
+        SyncthingMetrics.getInstance().record(SyncthingMetrics.DISCOVERY_WINDOW_MS, openMs);
+        Log.i(TAG, String.format("Discovery window closed after %1$d ms, %2$s", openMs, reason));
+    }
+
+    private void checkConvergence() {
+        SyncthingCore core = syncthingCore;
+        SyncthingRestClient restClient = core != null ? core.createRestClient() : null;
+        if (restClient == null || multicastLock == null) {
+            return;
+        }
+        try {
+            if (isConverged(restClient)) {
+                closeWindow("all LAN devices connected");
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to check connections", e);
+        }
+    }
+
+    /**
+     * @return true if every unpaused device that was ever seen on the LAN is connected, or every
+     *         unpaused device when none has been seen on the LAN yet
+     */
+    private boolean isConverged(SyncthingRestClient restClient) throws IOException, JSONException {
+        JSONObject connections = new JSONObject(restClient.get("system/connections", null)).optJSONObject("connections");
+        JSONArray devices = new JSONArray(restClient.get("config/devices", null));
+        String localDeviceId = new JSONObject(restClient.get("system/status", null)).optString("myID");
+
+        for (int i = 0; i < devices.length(); i++) {
+            JSONObject device = devices.getJSONObject(i);
+            String deviceId = device.getString("deviceID");
+            if (deviceId.equals(localDeviceId) || device.optBoolean("paused")) {
+                continue;
+            }
+            if (!lanDevices.isEmpty() && !lanDevices.contains(deviceId)) {
+                continue;
+            }
+            JSONObject connection = connections != null ? connections.optJSONObject(deviceId) : null;
+            if (connection == null || !connection.optBoolean("connected")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param address connection address such as tcp://192.168.1.20:22000 or quic://[fe80::1]:22000
+     */
+    private static boolean isLanAddress(String address) {
+        int schemeEnd = address.indexOf("://");
+        String hostPort = schemeEnd >= 0 ? address.substring(schemeEnd + 3) : address;
+        int portStart = hostPort.lastIndexOf(':');
+        String host = portStart > 0 ? hostPort.substring(0, portStart) : hostPort;
+        host = host.replace("[", "").replace("]", "");
+        // Only literal addresses, a host name here would mean a DNS lookup
+        if (host.isEmpty() || !(Character.isDigit(host.charAt(0)) || host.indexOf(':') >= 0)) {
+            return false;
+        }
+        try {
+            InetAddress inetAddress = InetAddress.getByName(host);
+            return inetAddress.isSiteLocalAddress() || inetAddress.isLinkLocalAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.anonymous.syncthingrn;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Sits between the event pump and the bridge. High frequency events are folded
+    according to a per-type policy and the result is flushed downstream no more
+    often than the configured rate.
+*/
+public class SyncthingEventCoalescer implements SyncthingEventPump.Listener {
+
+    public enum Policy {
+        // Forward every event untouched
+        PASS_THROUGH,
+        // Keep only the newest event per type, folder and device
+        LATEST,
+        // Replace events with a single per type and folder counter
+        COUNT;
+
+        public static Policy fromString(String value) {
+            return Policy.valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    public record Stats(long received, long emitted, long merged, long forcedFlushes, long batches) {}
+
+    private static final String TAG = "SyncthingEventCoalescer";
+    private static final double DEFAULT_MAX_BATCHES_PER_SECOND = 4;
+    private static final int DEFAULT_MAX_PENDING = 2000;
+
+    private final SyncthingEventPump.Listener downstream;
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Policy> policies = new HashMap<>();
+    private final LinkedHashMap<String, JSONObject> pending = new LinkedHashMap<>();
+
+    private long minFlushIntervalMs = (long) (1000 / DEFAULT_MAX_BATCHES_PER_SECOND);
+    private int maxPending = DEFAULT_MAX_PENDING;
+    private long lastFlushAt = 0;
+    private boolean flushScheduled = false;
+    private boolean forcedFlushScheduled = false;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong emitted = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong forcedFlushes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public SyncthingEventCoalescer(SyncthingEventPump.Listener downstream) {
+        this.downstream = downstream;
+        policies.put("DownloadProgress", Policy.LATEST);
+        policies.put("FolderScanProgress", Policy.LATEST);
+        policies.put("RemoteDownloadProgress", Policy.LATEST);
+        // COUNT changes the shape of an event, so it is only used where a caller asks for it
+    }
+
+    /**
+     * @param maxBatchesPerSecond upper bound on downstream flushes, 0 or less disables the limit
+     */
+    public synchronized void setMaxBatchesPerSecond(double maxBatchesPerSecond) {
+        minFlushIntervalMs = maxBatchesPerSecond > 0 ? (long) (1000 / maxBatchesPerSecond) : 0;
+    }
+
+    public synchronized void setMaxPending(int maxPending) {
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    public synchronized void setPolicy(String eventType, Policy policy) {
+        policies.put(eventType, policy);
+    }
+
+    public Stats getStats() {
+        return new Stats(received.get(), emitted.get(), merged.get(), forcedFlushes.get(), batches.get());
+    }
+
+    @Override
+    public synchronized void onEvents(JSONArray events) {
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.optJSONObject(i);
+            if (event == null) {
+                continue;
+            }
+            received.incrementAndGet();
+            try {
+                stage(event);
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to coalesce event", e);
+            }
+        }
+        scheduleFlush();
+    }
+
+    public void shutdown() {
+        flushExecutor.shutdownNow();
+    }
+
+    private void stage(JSONObject event) throws JSONException {
+        String type = event.optString("type");
+        Policy policy = policies.getOrDefault(type, Policy.PASS_THROUGH);
+
+        switch (policy) {
+            case LATEST: {
+                String key = entityKey("latest", type, event.optJSONObject("data"));
+                JSONObject previous = pending.remove(key);
+                if (previous != null) {
+                    event.put("merged", previous.optInt("merged", 1) + 1);
+                    merged.incrementAndGet();
+                }
+                pending.put(key, event);
+                break;
+            }
+            case COUNT: {
+                String key = entityKey("count", type, event.optJSONObject("data"));
+                JSONObject counter = pending.remove(key);
+                if (counter == null) {
+                    JSONObject data = new JSONObject();
+                    JSONObject eventData = event.optJSONObject("data");
+                    if (eventData != null && eventData.has("folder")) {
+                        data.put("folder", eventData.optString("folder"));
+                    }
+                    data.put("count", 0);
+                    counter = new JSONObject().put("type", type).put("data", data);
+                } else {
+                    merged.incrementAndGet();
+                }
+                JSONObject data = counter.getJSONObject("data");
+                data.put("count", data.optInt("count") + 1);
+                counter.put("id", event.optLong("id"));
+                counter.put("globalID", event.optLong("globalID"));
+                counter.put("time", event.optString("time"));
+                pending.put(key, counter);
+                break;
+            }
+            default:
+                pending.put("event|" + event.optLong("id"), event);
+        }
+    }
+
+    private static String entityKey(String prefix, String type, JSONObject data) {
+        StringBuilder key = new StringBuilder(prefix).append('|').append(type);
+        if (data != null) {
+            key.append('|').append(data.optString("folder")).append('|').append(data.optString("device"));
+        }
+        return key.toString();
+    }
+
+    private void scheduleFlush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (pending.size() >= maxPending && !forcedFlushScheduled) {
+            // Events that cannot be folded are never dropped, a full queue goes out ahead of the rate limit
+            forcedFlushScheduled = true;
+            forcedFlushes.incrementAndGet();
+            flushExecutor.execute(this::flush);
+            return;
+        }
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        long delay = Math.max(0, lastFlushAt + minFlushIntervalMs - System.currentTimeMillis());
+        flushExecutor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        JSONArray batch = new JSONArray();
+        synchronized (this) {
+            flushScheduled = false;
+            forcedFlushScheduled = false;
+            lastFlushAt = System.currentTimeMillis();
+            for (JSONObject event : pending.values()) {
+                batch.put(event);
+            }
+            pending.clear();
+        }
+
+        if (batch.length() == 0) {
+            return;
+        }
+        emitted.addAndGet(batch.length());
+        batches.incrementAndGet();
+        downstream.onEvents(batch);
+    }
+}
@@ -0,0 +1,353 @@
+package com.anonymous.syncthingrn;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+    Long-polls /rest/events on a single background thread and hands each batch of
+    events to the registered listeners. The `since` cursor is tracked here so the
+    JS side never has to re-arm a poll itself.
+
+    Every listener names the event types it wants. The pump polls for the union of
+    them, hands each listener only its own types and stops once the last listener
+    is gone.
+*/
+public class SyncthingEventPump implements SyncthingReadiness.Listener {
+
+    public interface Listener {
+        void onEvents(JSONArray events);
+    }
+
+    // Starts from the newest event the daemon has instead of replaying its buffer
+    public static final long SINCE_LATEST = -1;
+
+    private static final String TAG = "SyncthingEventPump";
+    private static final int LONG_POLL_TIMEOUT_SECONDS = 60;
+    private static final int MIN_RETRY_DELAY_MS = 1000;
+    private static final int MAX_RETRY_DELAY_MS = 10000;
+
+    /*
+        A listener and the event types it asked for, null for every type.
+    */
+    private record Subscription(Listener listener, Set<String> eventTypes) {
+
+        JSONArray select(JSONArray events) {
+            if (eventTypes == null) {
+                return events;
+            }
+            JSONArray selected = new JSONArray();
+            for (int i = 0; i < events.length(); i++) {
+                JSONObject event = events.optJSONObject(i);
+                if (event != null && eventTypes.contains(event.optString("type"))) {
+                    selected.put(event);
+                }
+            }
+            return selected;
+        }
+    }
+
+    private static SyncthingEventPump instance;
+
+    public static synchronized SyncthingEventPump getInstance() {
+        if (instance == null) {
+            instance = new SyncthingEventPump();
+        }
+        return instance;
+    }
+
+    /**
+     * @return ID of the newest event the daemon has, 0 if it has none
+     */
+    public static long latestEventId(SyncthingRestClient restClient) throws IOException, JSONException {
+        HashMap<String, String> params = new HashMap<>();
+        params.put("limit", "1");
+        params.put("timeout", "1");
+        JSONArray events = new JSONArray(restClient.get("events", params));
+        JSONObject lastEvent = events.optJSONObject(events.length() - 1);
+        return lastEvent != null ? lastEvent.optLong("id") : 0;
+    }
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    // A stopped thread can outlive a quick restart, each loop only runs while it is the current one
+    private volatile Thread pumpThread;
+    private volatile boolean running = false;
+    private volatile long since = 0;
+    private volatile SyncthingRestClient restClient;
+    private Supplier<SyncthingRestClient> restClientSupplier;
+    // Comma separated union of the listeners' types, null for every event
+    private volatile String eventTypes;
+    // Bumped whenever events may have been missed, a new filter or a new daemon instance
+    private final AtomicLong session = new AtomicLong();
+    private volatile long lastConfigSavedId = 0;
+
+    private SyncthingEventPump() {
+        SyncthingReadiness.getInstance().addListener(this);
+    }
+
+    /**
+     * Registers a listener for every event type.
+     */
+    public void addListener(Listener listener) {
+        addListener(listener, null);
+    }
+
+    /**
+     * Registers a listener, replacing its earlier registration. The filter of a running pump
+     * is widened from the next poll on.
+     * @param eventTypes the types to hand to the listener, null or empty for every type
+     */
+    public synchronized void addListener(Listener listener, String[] eventTypes) {
+        removeSubscription(listener);
+        Set<String> types = eventTypes != null && eventTypes.length > 0 ? new HashSet<>(Arrays.asList(eventTypes)) : null;
+        subscriptions.add(new Subscription(listener, types));
+        updateFilter();
+    }
+
+    /**
+     * Unregisters a listener and stops the pump if it was the last one.
+     */
+    public synchronized void removeListener(Listener listener) {
+        if (!removeSubscription(listener)) {
+            return;
+        }
+        if (subscriptions.isEmpty()) {
+            stop();
+        } else {
+            updateFilter();
+        }
+    }
+
+    public boolean hasListeners() {
+        return !subscriptions.isEmpty();
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true if the pump is running and its filter lets events of this type through
+     */
+    public boolean delivers(String eventType) {
+        String filter = eventTypes;
+        return running && (filter == null || Arrays.asList(filter.split(",")).contains(eventType));
+    }
+
+    /**
+     * Changes whenever the pump may have missed events. Within one session every event
+     * that passes the filter is seen.
+     */
+    public long getSession() {
+        return session.get();
+    }
+
+    /**
+     * Lets readers tell whether a config they cached in this session is still current.
+     * @return ID of the last ConfigSaved event seen, 0 if there has been none
+     */
+    public long getLastConfigSavedId() {
+        return lastConfigSavedId;
+    }
+
+    /**
+     * Starts pumping events. Calling this while running swaps the client in place and
+     * keeps the existing thread and cursor.
+     * @param restClient client carrying the address and API key
+     * @param since last event ID already seen, 0 to start from the daemon's buffer or SINCE_LATEST
+     */
+    public synchronized void start(SyncthingRestClient restClient, long since) {
+        this.restClient = restClient;
+        if (running) {
+            return;
+        }
+
+        session.incrementAndGet();
+        this.since = since;
+        this.running = true;
+        this.pumpThread = new Thread(this::pump, TAG);
+        this.pumpThread.setDaemon(true);
+        this.pumpThread.start();
+    }
+
+    /**
+     * Starts the pump unless it is running. Before config.xml exists there is no client,
+     * the pump then starts once a launch becomes ready.
+     * @param restClientSupplier supplies a client for the current launch, may return null
+     * @param since where to start if the pump is not running yet, usually SINCE_LATEST
+     */
+    public void ensureStarted(Supplier<SyncthingRestClient> restClientSupplier, long since) {
+        synchronized (this) {
+            this.restClientSupplier = restClientSupplier;
+            if (running || subscriptions.isEmpty()) {
+                return;
+            }
+        }
+        SyncthingRestClient client = restClientSupplier.get();
+        if (client != null) {
+            start(client, since);
+        }
+    }
+
+    /**
+     * A new launch numbers its events from 1 again, a cursor from the old one would skip them.
+     * Everything it has sent so far is new, so the pump reads it from the start.
+     */
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        since = 0;
+        session.incrementAndGet();
+        Supplier<SyncthingRestClient> supplier;
+        synchronized (this) {
+            supplier = restClientSupplier;
+        }
+        if (supplier != null) {
+            ensureStarted(supplier, 0);
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (pumpThread != null) {
+            // Interrupting unblocks the retry sleep, the open long-poll ends on its own timeout
+            pumpThread.interrupt();
+            pumpThread = null;
+        }
+    }
+
+    // Caller holds the lock
+    private boolean removeSubscription(Listener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener() == listener) {
+                return subscriptions.remove(subscription);
+            }
+        }
+        return false;
+    }
+
+    // Caller holds the lock
+    private void updateFilter() {
+        Set<String> union = new TreeSet<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.eventTypes() == null) {
+                union = null;
+                break;
+            }
+            union.addAll(subscription.eventTypes());
+        }
+        String filter = union != null ? String.join(",", union) : null;
+        String previous = eventTypes;
+        eventTypes = filter;
+        boolean widened = filter == null ? previous != null
+            : previous != null && !Arrays.asList(previous.split(",")).containsAll(union);
+        if (widened) {
+            // Events of the new types before this point were never seen
+            session.incrementAndGet();
+        }
+    }
+
+    private void pump() {
+        int retryDelay = MIN_RETRY_DELAY_MS;
+
+        while (isCurrent()) {
+            try {
+                if (since == SINCE_LATEST) {
+                    since = latestEventId(restClient);
+                }
+                JSONArray events = poll();
+                retryDelay = MIN_RETRY_DELAY_MS;
+
+                if (!isCurrent() || events.length() == 0) {
+                    continue;
+                }
+
+                JSONObject lastEvent = events.optJSONObject(events.length() - 1);
+                if (lastEvent != null) {
+                    long lastId = lastEvent.optLong("id", since);
+                    if (lastId < since) {
+                        // Only a restarted daemon hands out lower IDs than asked for
+                        session.incrementAndGet();
+                    }
+                    since = lastId;
+                }
+                for (int i = events.length() - 1; i >= 0; i--) {
+                    JSONObject event = events.optJSONObject(i);
+                    if (event != null && "ConfigSaved".equals(event.optString("type"))) {
+                        lastConfigSavedId = event.optLong("id");
+                        break;
+                    }
+                }
+
+                deliver(events);
+            } catch (IOException | JSONException e) {
+                if (!isCurrent()) {
+                    break;
+                }
+                if (e instanceof ConnectException) {
+                    // The daemon is down or restarting, a new instance numbers its events from 1 again
+                    since = 0;
+                    session.incrementAndGet();
+                }
+                Log.w(TAG, String.format("Event poll failed, retrying in %1$d ms: %2$s", retryDelay, e));
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Hands each listener its share of the batch. A listener that throws only loses this batch,
+     * it must not take the pump thread and every other listener down with it.
+     */
+    void deliver(JSONArray events) {
+        for (Subscription subscription : subscriptions) {
+            JSONArray selected = subscription.select(events);
+            if (selected.length() == 0) {
+                continue;
+            }
+            try {
+                subscription.listener().onEvents(selected);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Event listener failed, continuing with the next one", e);
+            }
+        }
+    }
+
+    private boolean isCurrent() {
+        return running && Thread.currentThread() == pumpThread;
+    }
+
+    private JSONArray poll() throws IOException, JSONException {
+        HashMap<String, String> params = new HashMap<>();
+        params.put("since", Long.toString(since));
+        params.put("timeout", Integer.toString(LONG_POLL_TIMEOUT_SECONDS));
+        params.put("events", eventTypes);
+
+        // Give the read timeout some headroom over the server side long-poll timeout
+        String body = restClient.get("events", params, (LONG_POLL_TIMEOUT_SECONDS + 15) * 1000);
+        return new JSONArray(body);
+    }
+}
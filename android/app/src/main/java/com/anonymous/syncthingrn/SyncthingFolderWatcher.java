@@ -0,0 +1,418 @@
+package com.anonymous.syncthingrn;
+
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.RequiresApi;
+
+/*
+    Watches the configured folders with FileObserver and asks the daemon to rescan
+    only what changed through db/scan with `sub`. Bursts are debounced, paths are
+    deduplicated and collapsed into their closest watched parent, so one large copy
+    becomes a handful of targeted scans rather than a full rescan.
+
+    FileObserver is not recursive, each directory costs one inotify watch. The
+    number of watched directories is capped, a change below the cap is scanned as
+    the subtree of the deepest watched directory.
+*/
+public class SyncthingFolderWatcher implements SyncthingReadiness.Listener, SyncthingEventPump.Listener {
+
+    private static final String TAG = "SyncthingFolderWatcher";
+    private static final int EVENT_MASK = FileObserver.CREATE | FileObserver.DELETE | FileObserver.CLOSE_WRITE
+        | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF;
+    // Leaves room for the daemon's own watcher and the rest of the app under the inotify limit
+    private static final int MAX_WATCHED_DIRECTORIES = 2048;
+    private static final long DEBOUNCE_MS = 2000;
+    // A folder that never goes quiet is still scanned this often
+    private static final long MAX_DELAY_MS = 10000;
+    // Past this many separate paths a scan of the whole folder is cheaper
+    private static final int MAX_SUBS_PER_FOLDER = 64;
+    private static final int MAX_SUBS_PER_REQUEST = 16;
+
+    // Orders a directory directly before its descendants, which plain string order does not for names like "a b"
+    private static final Comparator<String> PATH_ORDER = Comparator.comparing(path -> path.replace('/', '\u0000'));
+
+    private static SyncthingFolderWatcher instance;
+
+    public static synchronized SyncthingFolderWatcher getInstance() {
+        if (instance == null) {
+            instance = new SyncthingFolderWatcher();
+        }
+        return instance;
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Keyed by absolute directory path
+    private final Map<String, DirectoryObserver> observers = new HashMap<>();
+    // Changed paths relative to the folder root, keyed by folder ID
+    private final Map<String, TreeSet<String>> pendingScans = new HashMap<>();
+    private SyncthingCore syncthingCore;
+    private ScheduledFuture<?> flush;
+    private long firstPendingAt = 0;
+
+    private SyncthingFolderWatcher() {}
+
+    public synchronized void start(SyncthingCore syncthingCore) {
+        if (this.syncthingCore != null) {
+            return;
+        }
+        this.syncthingCore = syncthingCore;
+        SyncthingReadiness readiness = SyncthingReadiness.getInstance();
+        readiness.addListener(this);
+        SyncthingEventPump eventPump = SyncthingEventPump.getInstance();
+        eventPump.addListener(this, new String[] {"ConfigSaved"});
+        // Nothing else may be running the pump in a background run
+        eventPump.ensureStarted(syncthingCore::createRestClient, SyncthingEventPump.SINCE_LATEST);
+        if (readiness.isReady()) {
+            executor.execute(this::refreshFolders);
+        }
+    }
+
+    public synchronized void stop() {
+        SyncthingReadiness.getInstance().removeListener(this);
+        SyncthingEventPump.getInstance().removeListener(this);
+        unwatchAll();
+        pendingScans.clear();
+        if (flush != null) {
+            flush.cancel(false);
+            flush = null;
+        }
+        this.syncthingCore = null;
+    }
+
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        executor.execute(this::refreshFolders);
+    }
+
+    @Override
+    public void onEvents(JSONArray events) {
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.optJSONObject(i);
+            if (event != null && "ConfigSaved".equals(event.optString("type"))) {
+                executor.execute(this::refreshFolders);
+                return;
+            }
+        }
+    }
+
+    /*
+        A folder's directories, relative to its root, in the order they get watched.
+    */
+    private record FolderTree(String folderId, File root, List<String> directories) {}
+
+    /*
+        Rebuilds every watch from the folder list. The trees are listed before the lock is
+        taken, so file events are not held up by a walk of a large folder.
+    */
+    private void refreshFolders() {
+        SyncthingCore core;
+        synchronized (this) {
+            core = syncthingCore;
+        }
+        SyncthingRestClient restClient = core != null ? core.createRestClient() : null;
+        if (restClient == null) {
+            return;
+        }
+        JSONArray folders;
+        try {
+            folders = new JSONArray(restClient.get("config/folders", null));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to read folders, keeping the current watches", e);
+            return;
+        }
+
+        List<FolderTree> trees = new ArrayList<>();
+        int remaining = MAX_WATCHED_DIRECTORIES;
+        for (int i = 0; i < folders.length() && remaining > 0; i++) {
+            JSONObject folder = folders.optJSONObject(i);
+            if (folder == null || folder.optBoolean("paused")) {
+                continue;
+            }
+            File root = new File(expandHome(core, folder.optString("path")));
+            if (root.isDirectory()) {
+                List<String> directories = listTree(root, "", remaining);
+                trees.add(new FolderTree(folder.optString("id"), root, directories));
+                remaining -= directories.size();
+            }
+        }
+
+        synchronized (this) {
+            if (syncthingCore != core) {
+                return;
+            }
+            unwatchAll();
+            for (FolderTree tree : trees) {
+                watchDirectories(tree.folderId(), tree.root(), tree.directories());
+            }
+            SyncthingMetrics.getInstance().setGauge(SyncthingMetrics.WATCHER_DIRECTORIES, observers.size());
+            Log.i(TAG, String.format("Watching %1$d directories", observers.size()));
+        }
+    }
+
+    /*
+        Watches a directory that appeared after the last refresh, along with whatever
+        was moved in with it.
+    */
+    private void watchNewTree(String folderId, File root, String rootRelativePath) {
+        SyncthingCore core;
+        int remaining;
+        synchronized (this) {
+            core = syncthingCore;
+            remaining = MAX_WATCHED_DIRECTORIES - observers.size();
+        }
+        if (core == null || remaining <= 0) {
+            return;
+        }
+        List<String> directories = listTree(root, rootRelativePath, remaining);
+
+        synchronized (this) {
+            if (syncthingCore != core) {
+                return;
+            }
+            watchDirectories(folderId, root, directories);
+            SyncthingMetrics.getInstance().setGauge(SyncthingMetrics.WATCHER_DIRECTORIES, observers.size());
+        }
+    }
+
+    /**
+     * Walks breadth first so a limit cuts off the deepest levels, whose changes still reach their parent.
+     * @return paths relative to the root, starting with rootRelativePath itself
+     */
+    private static List<String> listTree(File root, String rootRelativePath, int limit) {
+        List<String> directories = new ArrayList<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(rootRelativePath);
+        while (!queue.isEmpty() && directories.size() < limit) {
+            String relativePath = queue.poll();
+            directories.add(relativePath);
+
+            File directory = relativePath.isEmpty() ? root : new File(root, relativePath);
+            File[] children = directory.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (child.isDirectory() && !isIgnored(child.getName())) {
+                    queue.add(relativePath.isEmpty() ? child.getName() : relativePath + "/" + child.getName());
+                }
+            }
+        }
+        return directories;
+    }
+
+    // Caller holds the lock
+    private void watchDirectories(String folderId, File root, List<String> relativePaths) {
+        for (String relativePath : relativePaths) {
+            if (observers.size() >= MAX_WATCHED_DIRECTORIES) {
+                return;
+            }
+            File directory = relativePath.isEmpty() ? root : new File(root, relativePath);
+            if (observers.containsKey(directory.getAbsolutePath())) {
+                continue;
+            }
+            DirectoryObserver observer = DirectoryObserver.create(this, folderId, directory, relativePath);
+            observers.put(directory.getAbsolutePath(), observer);
+            observer.startWatching();
+        }
+    }
+
+    // Caller holds the lock
+    private void unwatchAll() {
+        for (DirectoryObserver observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+    }
+
+    private synchronized void onChange(DirectoryObserver observer, int event, String name) {
+        if (syncthingCore == null) {
+            return;
+        }
+        SyncthingMetrics.getInstance().increment(SyncthingMetrics.WATCHER_EVENTS);
+
+        String changedPath;
+        if ((event & FileObserver.DELETE_SELF) != 0) {
+            observer.stopWatching();
+            observers.remove(observer.directory.getAbsolutePath());
+            changedPath = observer.relativePath;
+        } else {
+            if (name == null || isIgnored(name)) {
+                return;
+            }
+            changedPath = observer.relativePath.isEmpty() ? name : observer.relativePath + "/" + name;
+            File changed = new File(observer.directory, name);
+            // New directories need watches of their own, whatever is already inside is covered by the scan
+            if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0 && changed.isDirectory()
+                && !observers.containsKey(changed.getAbsolutePath())) {
+                File root = observer.relativePath.isEmpty() ? observer.directory : rootOf(observer);
+                executor.execute(() -> watchNewTree(observer.folderId, root, changedPath));
+            }
+        }
+
+        pendingScans.computeIfAbsent(observer.folderId, key -> new TreeSet<>(PATH_ORDER)).add(changedPath);
+        scheduleFlush();
+    }
+
+    // Caller holds the lock
+    private void scheduleFlush() {
+        long now = SystemClock.elapsedRealtime();
+        if (flush == null) {
+            firstPendingAt = now;
+        } else {
+            flush.cancel(false);
+        }
+        long delay = Math.min(DEBOUNCE_MS, Math.max(0, firstPendingAt + MAX_DELAY_MS - now));
+        flush = executor.schedule(this::flushScans, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushScans() {
+        Map<String, TreeSet<String>> scans;
+        synchronized (this) {
+            flush = null;
+            scans = new HashMap<>(pendingScans);
+            pendingScans.clear();
+        }
+        SyncthingRestClient restClient = createRestClient();
+        if (restClient == null) {
+            return;
+        }
+
+        for (Map.Entry<String, TreeSet<String>> folderScans : scans.entrySet()) {
+            List<String> subs = collapse(folderScans.getValue());
+            try {
+                if (subs.size() > MAX_SUBS_PER_FOLDER || subs.contains("")) {
+                    requestScan(restClient, folderScans.getKey(), new ArrayList<>());
+                } else {
+                    for (int start = 0; start < subs.size(); start += MAX_SUBS_PER_REQUEST) {
+                        requestScan(restClient, folderScans.getKey(), subs.subList(start, Math.min(subs.size(), start + MAX_SUBS_PER_REQUEST)));
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to request a scan of " + folderScans.getKey(), e);
+            }
+        }
+    }
+
+    private void requestScan(SyncthingRestClient restClient, String folderId, List<String> subs) throws IOException {
+        // db/scan takes `sub` more than once, which a parameter map cannot express
+        StringBuilder endpoint = new StringBuilder("db/scan?folder=").append(encode(folderId));
+        for (String sub : subs) {
+            endpoint.append("&sub=").append(encode(sub));
+        }
+        restClient.post(endpoint.toString(), null, null);
+        SyncthingMetrics.getInstance().increment(SyncthingMetrics.WATCHER_SCANS);
+        Log.d(TAG, String.format("Scanning %1$s %2$s", folderId, subs.isEmpty() ? "completely" : subs));
+    }
+
+    /**
+     * Drops every path that lies inside another path of the set.
+     */
+    private static List<String> collapse(TreeSet<String> paths) {
+        List<String> collapsed = new ArrayList<>();
+        String parent = null;
+        // PATH_ORDER puts a directory directly before its descendants
+        for (String path : paths) {
+            if (parent != null && (parent.isEmpty() || path.equals(parent) || path.startsWith(parent + "/"))) {
+                continue;
+            }
+            collapsed.add(path);
+            parent = path;
+        }
+        return collapsed;
+    }
+
+    private File rootOf(DirectoryObserver observer) {
+        String absolutePath = observer.directory.getAbsolutePath();
+        return new File(absolutePath.substring(0, absolutePath.length() - observer.relativePath.length() - 1));
+    }
+
+    private static String expandHome(SyncthingCore core, String path) {
+        if (path.equals("~") || path.startsWith("~/")) {
+            return core.getSyncthingHomeDirectoryAbsolutePath() + path.substring(1);
+        }
+        return path;
+    }
+
+    // The daemon's own bookkeeping, temporary files and versions would only cause scans of themselves
+    private static boolean isIgnored(String name) {
+        return name.equals(".stfolder") || name.equals(".stversions") || name.startsWith(".syncthing.") || name.startsWith("~syncthing~");
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private SyncthingRestClient createRestClient() {
+        SyncthingCore core;
+        synchronized (this) {
+            core = syncthingCore;
+        }
+        return core != null ? core.createRestClient() : null;
+    }
+
+    private static class DirectoryObserver extends FileObserver {
+        private final SyncthingFolderWatcher watcher;
+        private final String folderId;
+        private final File directory;
+        private final String relativePath;
+
+        static DirectoryObserver create(SyncthingFolderWatcher watcher, String folderId, File directory, String relativePath) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                return new DirectoryObserver(watcher, folderId, directory, relativePath);
+            }
+            return new DirectoryObserver(watcher, folderId, directory.getAbsolutePath(), relativePath);
+        }
+
+        @RequiresApi(api = Build.VERSION_CODES.Q)
+        private DirectoryObserver(SyncthingFolderWatcher watcher, String folderId, File directory, String relativePath) {
+            super(directory, EVENT_MASK);
+            this.watcher = watcher;
+            this.folderId = folderId;
+            this.directory = directory;
+            this.relativePath = relativePath;
+        }
+
+        // The path constructor is all there is before Android 10
+        @SuppressWarnings("deprecation")
+        private DirectoryObserver(SyncthingFolderWatcher watcher, String folderId, String directoryPath, String relativePath) {
+            super(directoryPath, EVENT_MASK);
+            this.watcher = watcher;
+            this.folderId = folderId;
+            this.directory = new File(directoryPath);
+            this.relativePath = relativePath;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            watcher.onChange(this, event, path);
+        }
+    }
+}
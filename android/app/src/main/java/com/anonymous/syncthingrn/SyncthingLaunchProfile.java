@@ -0,0 +1,80 @@
+package com.anonymous.syncthingrn;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+    Everything one invocation of the binary needs, resolved up front: the binary path,
+    the command line and the environment with every default filled in. A profile never
+    changes once built. SyncthingCore keeps the profiles it built and only builds a new
+    one when an input differs, so a relaunch by the supervisor costs a comparison rather
+    than another round of system queries.
+*/
+public final class SyncthingLaunchProfile {
+
+    private final String binaryPath;
+    private final String[] parameters;
+    private final Map<String, String> requestedEnvironment;
+    private final String gatewayIpV4;
+    private final SyncthingMemoryGovernor.Pressure pressure;
+    private final String[] command;
+    private final Map<String, String> environment;
+
+    /**
+     * @param requestedEnvironment the variables the caller asked for, kept to compare against later launches
+     * @param environment the requested variables with the defaults filled in
+     */
+    SyncthingLaunchProfile(String binaryPath, String[] parameters, Map<String, String> requestedEnvironment,
+                           String gatewayIpV4, SyncthingMemoryGovernor.Pressure pressure, Map<String, String> environment) {
+        this.binaryPath = binaryPath;
+        this.parameters = parameters.clone();
+        this.requestedEnvironment = Collections.unmodifiableMap(new HashMap<>(requestedEnvironment));
+        this.gatewayIpV4 = gatewayIpV4;
+        this.pressure = pressure;
+        this.command = SyncthingCore.createCommandWithBinary(binaryPath, parameters);
+        this.environment = Collections.unmodifiableMap(new HashMap<>(environment));
+    }
+
+    /**
+     * @return true if a launch with these inputs would resolve to this profile
+     */
+    public boolean matches(String[] parameters, Map<String, String> requestedEnvironment, String gatewayIpV4, SyncthingMemoryGovernor.Pressure pressure) {
+        return Arrays.equals(this.parameters, parameters)
+            && this.requestedEnvironment.equals(requestedEnvironment)
+            && Objects.equals(this.gatewayIpV4, gatewayIpV4)
+            && this.pressure == pressure;
+    }
+
+    public String getBinaryPath() {
+        return binaryPath;
+    }
+
+    public String[] getCommand() {
+        return command.clone();
+    }
+
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    public SyncthingMemoryGovernor.Pressure getPressure() {
+        return pressure;
+    }
+
+    /**
+     * A fresh builder for the command and environment, ready to start.
+     */
+    public ProcessBuilder newProcessBuilder() {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.environment().putAll(environment);
+        return processBuilder;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(command);
+    }
+}
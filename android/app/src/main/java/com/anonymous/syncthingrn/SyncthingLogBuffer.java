@@ -0,0 +1,387 @@
+package com.anonymous.syncthingrn;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+    Captures the daemon's output. A drain thread per process reads the raw bytes,
+    parses each line in place with SyncthingLogParser and copies it into a fixed
+    size byte arena next to typed columns for time, level, facility and template,
+    addressed by an ever increasing sequence number. Lines are only decoded into
+    strings when they are read. Everything also goes to size-capped log segments
+    on disk. Memory use does not grow with uptime.
+*/
+public class SyncthingLogBuffer {
+
+    public interface LineListener {
+        /**
+         * Only called for lines that match one of the parser's templates.
+         */
+        void onLine(int template, String line);
+    }
+
+    public record LogEntry(long sequence, long timestamp, String line, long loggedAt, int level, int facility, int template) {}
+
+    public record LogPage(List<LogEntry> entries, long nextCursor, long firstSequence) {}
+
+    /**
+     * @param minLevel lowest level returned, LEVEL_UNKNOWN for all lines
+     * @param facilities facility IDs to return, null for any
+     * @param templates bit per template to return, 0 for any
+     */
+    public record LogFilter(int minLevel, BitSet facilities, int templates) {
+        boolean matches(int level, int facility, int template) {
+            if (level < minLevel) {
+                return false;
+            }
+            if (facilities != null && (facility < 0 || !facilities.get(facility))) {
+                return false;
+            }
+            return templates == 0 || (templates & (1 << template)) != 0;
+        }
+    }
+
+    private static final String TAG = "SyncthingLogBuffer";
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int DEFAULT_ARENA_BYTES = 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 2048;
+    private static final byte[] ELLIPSIS = { '.', '.', '.' };
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    // Lines scanned per read when a filter skips most of them
+    private static final int MAX_SCAN = 16384;
+    private static final long SEGMENT_MAX_BYTES = 1024 * 1024;
+    private static final int MAX_SEGMENTS = 3;
+    private static final String SEGMENT_PREFIX = "syncthing.";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static SyncthingLogBuffer instance;
+
+    public static synchronized SyncthingLogBuffer getInstance(Context context) {
+        if (instance == null) {
+            instance = new SyncthingLogBuffer(new File(context.getFilesDir(), "logs"), DEFAULT_CAPACITY, DEFAULT_ARENA_BYTES);
+        }
+        return instance;
+    }
+
+    private final List<LineListener> lineListeners = new CopyOnWriteArrayList<>();
+    private final File logDirectory;
+    private final SyncthingLogParser parser = new SyncthingLogParser();
+    private final SyncthingLogParser.ParsedLine parsed = new SyncthingLogParser.ParsedLine();
+
+    // Line bytes back to back, wrapping to the start when the next line does not fit
+    private final byte[] arena;
+    private int writePosition = 0;
+    // Columns indexed by sequence modulo capacity
+    private final int[] offsets;
+    private final short[] lengths;
+    private final long[] timestamps;
+    private final long[] loggedAts;
+    private final byte[] levels;
+    private final short[] facilities;
+    private final byte[] templates;
+    private long firstSequence = 0;
+    private long nextSequence = 0;
+
+    private OutputStream segmentStream;
+    private long segmentBytes = 0;
+
+    public SyncthingLogBuffer(File logDirectory, int capacity, int arenaBytes) {
+        this.logDirectory = logDirectory;
+        this.arena = new byte[Math.max(arenaBytes, MAX_LINE_LENGTH + ELLIPSIS.length)];
+        this.offsets = new int[capacity];
+        this.lengths = new short[capacity];
+        this.timestamps = new long[capacity];
+        this.loggedAts = new long[capacity];
+        this.levels = new byte[capacity];
+        this.facilities = new short[capacity];
+        this.templates = new byte[capacity];
+    }
+
+    /**
+     * Starts a daemon thread that drains the process output until it closes.
+     * The process should be started with redirectErrorStream(true) so stderr is captured too.
+     */
+    public Thread attach(Process process) {
+        Thread drainThread = new Thread(() -> drain(process), TAG);
+        drainThread.setDaemon(true);
+        drainThread.start();
+        return drainThread;
+    }
+
+    /**
+     * Listeners are called on the drain thread as lines are read, so they must be quick.
+     */
+    public void addLineListener(LineListener listener) {
+        lineListeners.add(listener);
+    }
+
+    public void removeLineListener(LineListener listener) {
+        lineListeners.remove(listener);
+    }
+
+    public void append(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        append(bytes, 0, bytes.length, System.currentTimeMillis());
+    }
+
+    /**
+     * Parses and stores one line without its line terminator.
+     * @return the template the line matched
+     */
+    public synchronized int append(byte[] buffer, int offset, int length, long now) {
+        boolean truncated = length > MAX_LINE_LENGTH;
+        if (truncated) {
+            length = MAX_LINE_LENGTH;
+            // Never cut a multi-byte character in half
+            while (length > 0 && (buffer[offset + length] & 0xC0) == 0x80) {
+                length--;
+            }
+        }
+        int stored = length + (truncated ? ELLIPSIS.length : 0);
+        parser.parse(buffer, offset, length, now, parsed);
+
+        int position = writePosition;
+        boolean wrapped = position + stored > arena.length;
+        if (wrapped) {
+            position = 0;
+        }
+        evictFor(position, position + stored, wrapped);
+
+        System.arraycopy(buffer, offset, arena, position, length);
+        if (truncated) {
+            System.arraycopy(ELLIPSIS, 0, arena, position + length, ELLIPSIS.length);
+        }
+        int slot = slot(nextSequence);
+        offsets[slot] = position;
+        lengths[slot] = (short) stored;
+        timestamps[slot] = now;
+        loggedAts[slot] = parsed.loggedAt;
+        levels[slot] = (byte) parsed.level;
+        facilities[slot] = (short) parsed.facility;
+        templates[slot] = (byte) parsed.template;
+        writePosition = position + stored;
+        nextSequence++;
+
+        writeToSegment(arena, position, stored);
+        return parsed.template;
+    }
+
+    /**
+     * @param cursor sequence number to start from, older entries that were overwritten are skipped
+     * @param limit maximum number of entries to return
+     */
+    public LogPage read(long cursor, int limit) {
+        return read(cursor, limit, null);
+    }
+
+    /**
+     * Only lines that match the filter are decoded and returned. `nextCursor` moves past
+     * skipped lines too, so paging through a sparse filter does not rescan them.
+     */
+    public synchronized LogPage read(long cursor, int limit, LogFilter filter) {
+        long start = Math.max(cursor, firstSequence);
+        List<LogEntry> entries = new ArrayList<>(Math.max(0, Math.min(limit, (int) Math.min(Integer.MAX_VALUE, nextSequence - start))));
+        long sequence = start;
+        long scanEnd = Math.min(nextSequence, start + MAX_SCAN);
+        for (; sequence < scanEnd && entries.size() < limit; sequence++) {
+            int slot = slot(sequence);
+            if (filter != null && !filter.matches(levels[slot], facilities[slot], templates[slot])) {
+                continue;
+            }
+            entries.add(new LogEntry(sequence, timestamps[slot], new String(arena, offsets[slot], lengths[slot], StandardCharsets.UTF_8),
+                loggedAts[slot], levels[slot], facilities[slot], templates[slot]));
+        }
+        return new LogPage(entries, sequence, firstSequence);
+    }
+
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    public synchronized String getFacilityName(int facility) {
+        return parser.getFacilityName(facility);
+    }
+
+    /**
+     * @return the ID of a facility that has been logged, or SyncthingLogParser.NO_FACILITY
+     */
+    public synchronized int findFacility(String name) {
+        return parser.findFacility(name);
+    }
+
+    /**
+     * Drops the oldest lines until the region is free and a column slot is available.
+     * @param wrapped whether the write skips the tail of the arena, whose lines are the oldest
+     */
+    private void evictFor(int regionStart, int regionEnd, boolean wrapped) {
+        while (firstSequence < nextSequence) {
+            int slot = slot(firstSequence);
+            int entryStart = offsets[slot];
+            int entryEnd = entryStart + lengths[slot];
+            boolean full = nextSequence - firstSequence >= offsets.length;
+            boolean overlaps = entryStart < regionEnd && regionStart < entryEnd;
+            boolean skipped = wrapped && entryStart >= writePosition;
+            if (!full && !overlaps && !skipped) {
+                return;
+            }
+            firstSequence++;
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % offsets.length);
+    }
+
+    private void drain(Process process) {
+        byte[] buffer = new byte[READ_BUFFER_BYTES];
+        int filled = 0;
+        // Set while the rest of a line that was already stored cut short is skipped
+        boolean discarding = false;
+        SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+        try (InputStream inputStream = process.getInputStream()) {
+            int read;
+            while ((read = inputStream.read(buffer, filled, buffer.length - filled)) != -1) {
+                long now = System.currentTimeMillis();
+                int end = filled + read;
+                int lineStart = 0;
+                int lines = 0;
+                for (int i = filled; i < end; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    if (discarding) {
+                        discarding = false;
+                    } else {
+                        int lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+                        onLine(buffer, lineStart, lineEnd - lineStart, now);
+                        lines++;
+                    }
+                    lineStart = i + 1;
+                }
+                if (lineStart == 0 && end == buffer.length) {
+                    // A line longer than the buffer, it is truncated on append anyway and its remainder dropped
+                    if (!discarding) {
+                        onLine(buffer, 0, end, now);
+                        lines++;
+                        discarding = true;
+                    }
+                    lineStart = end;
+                }
+                // Carry the partial last line over to the next read
+                filled = end - lineStart;
+                System.arraycopy(buffer, lineStart, buffer, 0, filled);
+                metrics.add(SyncthingMetrics.LOG_LINES, lines);
+
+                // Only hit the disk once the burst of output has been consumed
+                if (inputStream.available() == 0) {
+                    flush();
+                }
+            }
+            if (filled > 0 && !discarding) {
+                onLine(buffer, 0, filled, System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Stopped draining Syncthing output", e);
+        } finally {
+            flush();
+        }
+    }
+
+    private void onLine(byte[] buffer, int offset, int length, long now) {
+        int template = append(buffer, offset, length, now);
+        if (template == SyncthingLogParser.TEMPLATE_NONE || lineListeners.isEmpty()) {
+            return;
+        }
+        String line = new String(buffer, offset, length, StandardCharsets.UTF_8);
+        for (LineListener listener : lineListeners) {
+            listener.onLine(template, line);
+        }
+    }
+
+    /**
+     * Closes the current segment, for buffers that are not the process wide instance.
+     */
+    public synchronized void close() {
+        closeSegment();
+    }
+
+    public synchronized void flush() {
+        if (segmentStream == null) {
+            return;
+        }
+        try {
+            segmentStream.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to flush log segment", e);
+            closeSegment();
+        }
+    }
+
+    private void writeToSegment(byte[] buffer, int offset, int length) {
+        try {
+            if (segmentStream == null || segmentBytes >= SEGMENT_MAX_BYTES) {
+                rotateSegments();
+            }
+            segmentStream.write(buffer, offset, length);
+            segmentStream.write('\n');
+            segmentBytes += length + 1;
+        } catch (IOException e) {
+            // Disk logging is best effort, the arena still has the line
+            Log.w(TAG, "Failed to write log segment", e);
+            closeSegment();
+        }
+    }
+
+    /**
+     * syncthing.0.log is always the segment being written, older ones shift up and
+     * the oldest is deleted.
+     */
+    private void rotateSegments() throws IOException {
+        closeSegment();
+        if (!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + logDirectory);
+        }
+
+        File current = segmentFile(0);
+        if (current.length() > 0) {
+            segmentFile(MAX_SEGMENTS - 1).delete();
+            for (int index = MAX_SEGMENTS - 2; index >= 0; index--) {
+                File segment = segmentFile(index);
+                if (segment.exists()) {
+                    segment.renameTo(segmentFile(index + 1));
+                }
+            }
+        }
+
+        segmentStream = new BufferedOutputStream(new FileOutputStream(current, false));
+        segmentBytes = 0;
+    }
+
+    private void closeSegment() {
+        if (segmentStream == null) {
+            return;
+        }
+        try {
+            segmentStream.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close log segment", e);
+        }
+        segmentStream = null;
+    }
+
+    private File segmentFile(int index) {
+        return new File(logDirectory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX);
+    }
+}
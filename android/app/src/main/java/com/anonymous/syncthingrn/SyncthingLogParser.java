@@ -0,0 +1,408 @@
+package com.anonymous.syncthingrn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+/*
+    Parses daemon log lines straight from the output bytes. Timestamp, level,
+    facility and a handful of message templates are picked out by scanning the
+    bytes once, without regexes, substrings or decoding, so a line costs no
+    allocation. Understands both the classic format
+
+        [ABCDE] 2024/01/02 15:04:05 INFO: message
+        [ABCDE] 2024/01/02 15:04:05.123456 model.go:123: DEBUG: message
+
+    and the structured one
+
+        2025-01-02 15:04:05 INF message (key=value log.pkg=model)
+
+    One instance is used by one thread at a time.
+*/
+public class SyncthingLogParser {
+
+    public static final int LEVEL_UNKNOWN = -1;
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_WARNING = 2;
+    public static final int LEVEL_ERROR = 3;
+
+    public static final int TEMPLATE_NONE = 0;
+    public static final int TEMPLATE_GUI_LISTENING = 1;
+    public static final int TEMPLATE_LISTENER = 2;
+    public static final int TEMPLATE_CONNECTION_ESTABLISHED = 3;
+    public static final int TEMPLATE_CONNECTION_LOST = 4;
+    public static final int TEMPLATE_FOLDER_ERROR = 5;
+    public static final int TEMPLATE_READY = 6;
+    public static final int TEMPLATE_PANIC = 7;
+
+    public static final int NO_FACILITY = -1;
+    private static final int MAX_FACILITIES = 256;
+
+    // Indexed by template, any of the markers anywhere in the message selects it
+    private static final byte[][][] TEMPLATE_MARKERS = {
+        {},
+        { bytes("GUI and API listening") },
+        { bytes(" listener (") },
+        { bytes("Established secure connection") },
+        { bytes("Lost device connection"), bytes("Lost connection to") },
+        { bytes("Error on folder"), bytes("isn't making sync progress"), bytes("Failed to sync") },
+        { bytes("Ready to synchronize") },
+        {},
+    };
+    private static final byte[] PANIC = bytes("panic:");
+    private static final byte[] FATAL_ERROR = bytes("fatal error:");
+    private static final byte[] FACILITY_KEY = bytes("log.pkg=");
+    private static final long TIME_ZONE_REFRESH_MS = 60000;
+
+    /**
+     * Result of a parse, overwritten by the next one.
+     */
+    public static final class ParsedLine {
+        // Epoch milliseconds from the line itself, -1 without a full date
+        public long loggedAt;
+        public int level;
+        public int facility;
+        public int template;
+        // Where the message starts after timestamp, level and source location
+        public int messageOffset;
+
+        void reset(int offset) {
+            loggedAt = -1;
+            level = LEVEL_UNKNOWN;
+            facility = NO_FACILITY;
+            template = TEMPLATE_NONE;
+            messageOffset = offset;
+        }
+    }
+
+    // Facility names are interned once, a lookup compares bytes against the table
+    private final byte[][] facilityBytes = new byte[MAX_FACILITIES][];
+    private final String[] facilityNames = new String[MAX_FACILITIES];
+    private int facilityCount = 0;
+
+    private long timeZoneOffsetMs;
+    private long timeZoneCheckedAt = Long.MIN_VALUE;
+
+    /**
+     * @param now capture time, used to pick the time zone offset of local timestamps
+     */
+    public void parse(byte[] buffer, int offset, int length, long now, ParsedLine result) {
+        int end = offset + length;
+        int position = offset;
+        result.reset(offset);
+
+        // Device ID prefix of the classic format, or [start] / [monitor]
+        if (position < end && buffer[position] == '[') {
+            int close = indexOf(buffer, position, Math.min(end, position + 16), (byte) ']');
+            if (close > 0) {
+                position = skipSpaces(buffer, close + 1, end);
+            }
+        }
+
+        int timestampStart = position;
+        position = parseTimestamp(buffer, position, end, now, result);
+        if (position == timestampStart) {
+            // The Go runtime writing to stderr, or the daemon logging with timestamps turned off
+            if (startsWith(buffer, position, end, PANIC) || startsWith(buffer, position, end, FATAL_ERROR)) {
+                result.level = LEVEL_ERROR;
+                result.template = TEMPLATE_PANIC;
+            } else {
+                result.template = matchTemplate(buffer, position, end);
+            }
+            result.messageOffset = position;
+            return;
+        }
+
+        position = parseLevel(buffer, position, end, result);
+        result.messageOffset = position;
+
+        if (result.facility == NO_FACILITY) {
+            int key = lastIndexOf(buffer, position, end, FACILITY_KEY);
+            if (key >= 0) {
+                int nameStart = key + FACILITY_KEY.length;
+                int nameEnd = nameStart;
+                while (nameEnd < end && buffer[nameEnd] != ' ' && buffer[nameEnd] != ')') {
+                    nameEnd++;
+                }
+                result.facility = facility(buffer, nameStart, nameEnd - nameStart);
+            }
+        }
+
+        // Trace output is where the volume is, and none of the templates are logged at that level
+        if (result.level != LEVEL_DEBUG) {
+            result.template = matchTemplate(buffer, position, end);
+        }
+    }
+
+    public String getFacilityName(int facility) {
+        return facility >= 0 && facility < facilityCount ? facilityNames[facility] : null;
+    }
+
+    /**
+     * @return the ID of a facility seen so far, or NO_FACILITY
+     */
+    public int findFacility(String name) {
+        for (int i = 0; i < facilityCount; i++) {
+            if (facilityNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return NO_FACILITY;
+    }
+
+    public int getFacilityCount() {
+        return facilityCount;
+    }
+
+    public static String levelName(int level) {
+        switch (level) {
+            case LEVEL_DEBUG: return "debug";
+            case LEVEL_INFO: return "info";
+            case LEVEL_WARNING: return "warning";
+            case LEVEL_ERROR: return "error";
+            default: return "unknown";
+        }
+    }
+
+    public static String templateName(int template) {
+        switch (template) {
+            case TEMPLATE_GUI_LISTENING: return "guiListening";
+            case TEMPLATE_LISTENER: return "listener";
+            case TEMPLATE_CONNECTION_ESTABLISHED: return "connectionEstablished";
+            case TEMPLATE_CONNECTION_LOST: return "connectionLost";
+            case TEMPLATE_FOLDER_ERROR: return "folderError";
+            case TEMPLATE_READY: return "ready";
+            case TEMPLATE_PANIC: return "panic";
+            default: return null;
+        }
+    }
+
+    /**
+     * Accepts `YYYY/MM/DD hh:mm:ss[.ffffff] `, `YYYY-MM-DD hh:mm:ss[.ffffff] ` or just the time.
+     * @return the position after the timestamp, or the given position if there is none
+     */
+    private int parseTimestamp(byte[] buffer, int position, int end, long now, ParsedLine result) {
+        int start = position;
+        long days = Long.MIN_VALUE;
+        if (position + 11 <= end && isDigits(buffer, position, 4) && (buffer[position + 4] == '/' || buffer[position + 4] == '-')
+            && isDigits(buffer, position + 5, 2) && isDigits(buffer, position + 8, 2) && buffer[position + 10] == ' ') {
+            int year = digits(buffer, position, 4);
+            int month = digits(buffer, position + 5, 2);
+            int day = digits(buffer, position + 8, 2);
+            days = daysFromCivil(year, month, day);
+            position += 11;
+        }
+        if (position + 8 > end || !isDigits(buffer, position, 2) || buffer[position + 2] != ':'
+            || !isDigits(buffer, position + 3, 2) || buffer[position + 5] != ':' || !isDigits(buffer, position + 6, 2)) {
+            return start;
+        }
+        long secondOfDay = digits(buffer, position, 2) * 3600L + digits(buffer, position + 3, 2) * 60L + digits(buffer, position + 6, 2);
+        position += 8;
+        long millis = 0;
+        if (position < end && buffer[position] == '.') {
+            position++;
+            int scale = 100;
+            while (position < end && buffer[position] >= '0' && buffer[position] <= '9') {
+                millis += (buffer[position] - '0') * scale;
+                scale /= 10;
+                position++;
+            }
+        }
+        if (days != Long.MIN_VALUE) {
+            result.loggedAt = days * 86400000L + secondOfDay * 1000 + millis - timeZoneOffset(now);
+        }
+        return skipSpaces(buffer, position, end);
+    }
+
+    /**
+     * Reads `INF `, `INFO: ` and `file.go:123: DEBUG: ` style levels.
+     * @return the position after the level
+     */
+    private int parseLevel(byte[] buffer, int position, int end, ParsedLine result) {
+        int tokenEnd = position;
+        while (tokenEnd < end && buffer[tokenEnd] != ' ') {
+            tokenEnd++;
+        }
+
+        // Source location of classic debug output, the file names the facility
+        int goSuffix = tokenEnd - position > 4 ? indexOf(buffer, position, tokenEnd, (byte) '.') : -1;
+        if (goSuffix > position && buffer[tokenEnd - 1] == ':' && goSuffix + 3 < tokenEnd
+            && buffer[goSuffix + 1] == 'g' && buffer[goSuffix + 2] == 'o' && buffer[goSuffix + 3] == ':') {
+            result.facility = facility(buffer, position, goSuffix - position);
+            position = skipSpaces(buffer, tokenEnd, end);
+            tokenEnd = position;
+            while (tokenEnd < end && buffer[tokenEnd] != ' ') {
+                tokenEnd++;
+            }
+        }
+
+        int tokenLength = tokenEnd - position;
+        if (tokenLength > 0 && buffer[tokenEnd - 1] == ':') {
+            tokenLength--;
+        }
+        int level = levelOf(buffer, position, tokenLength);
+        if (level == LEVEL_UNKNOWN) {
+            return position;
+        }
+        result.level = level;
+        return skipSpaces(buffer, tokenEnd, end);
+    }
+
+    private static int levelOf(byte[] buffer, int position, int length) {
+        if (length < 3) {
+            return LEVEL_UNKNOWN;
+        }
+        byte first = buffer[position];
+        if (length == 3) {
+            if (first == 'I' && buffer[position + 1] == 'N' && buffer[position + 2] == 'F') return LEVEL_INFO;
+            if (first == 'W' && buffer[position + 1] == 'R' && buffer[position + 2] == 'N') return LEVEL_WARNING;
+            if (first == 'E' && buffer[position + 1] == 'R' && buffer[position + 2] == 'R') return LEVEL_ERROR;
+            if (first == 'D' && buffer[position + 1] == 'B' && buffer[position + 2] == 'G') return LEVEL_DEBUG;
+            return LEVEL_UNKNOWN;
+        }
+        if (regionEquals(buffer, position, length, "INFO")) return LEVEL_INFO;
+        if (regionEquals(buffer, position, length, "WARNING")) return LEVEL_WARNING;
+        if (regionEquals(buffer, position, length, "FATAL")) return LEVEL_ERROR;
+        if (regionEquals(buffer, position, length, "DEBUG") || regionEquals(buffer, position, length, "VERBOSE")) return LEVEL_DEBUG;
+        return LEVEL_UNKNOWN;
+    }
+
+    private static int matchTemplate(byte[] buffer, int start, int end) {
+        for (int template = 1; template < TEMPLATE_MARKERS.length; template++) {
+            for (byte[] marker : TEMPLATE_MARKERS[template]) {
+                if (indexOf(buffer, start, end, marker) >= 0) {
+                    return template;
+                }
+            }
+        }
+        if (startsWith(buffer, start, end, PANIC)) {
+            return TEMPLATE_PANIC;
+        }
+        return TEMPLATE_NONE;
+    }
+
+    private int facility(byte[] buffer, int start, int length) {
+        if (length <= 0) {
+            return NO_FACILITY;
+        }
+        for (int i = 0; i < facilityCount; i++) {
+            byte[] name = facilityBytes[i];
+            if (name.length == length && regionMatches(buffer, start, name)) {
+                return i;
+            }
+        }
+        if (facilityCount == MAX_FACILITIES) {
+            return NO_FACILITY;
+        }
+        // Only the first sighting of a facility allocates
+        byte[] name = new byte[length];
+        System.arraycopy(buffer, start, name, 0, length);
+        facilityBytes[facilityCount] = name;
+        facilityNames[facilityCount] = new String(name, StandardCharsets.UTF_8);
+        return facilityCount++;
+    }
+
+    private long timeZoneOffset(long now) {
+        // Offsets only change at DST transitions, looking them up for every line is wasted work
+        if (now - timeZoneCheckedAt >= TIME_ZONE_REFRESH_MS || now < timeZoneCheckedAt) {
+            timeZoneOffsetMs = TimeZone.getDefault().getOffset(now);
+            timeZoneCheckedAt = now;
+        }
+        return timeZoneOffsetMs;
+    }
+
+    // Days since 1970-01-01 of a proleptic Gregorian date
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static boolean isDigits(byte[] buffer, int position, int count) {
+        for (int i = 0; i < count; i++) {
+            byte b = buffer[position + i];
+            if (b < '0' || b > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int digits(byte[] buffer, int position, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = value * 10 + (buffer[position + i] - '0');
+        }
+        return value;
+    }
+
+    private static int skipSpaces(byte[] buffer, int position, int end) {
+        while (position < end && buffer[position] == ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int indexOf(byte[] buffer, int start, int end, byte[] marker) {
+        byte first = marker[0];
+        int last = end - marker.length;
+        for (int i = start; i <= last; i++) {
+            if (buffer[i] == first && regionMatches(buffer, i, marker)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buffer, int start, int end, byte[] marker) {
+        byte first = marker[0];
+        for (int i = end - marker.length; i >= start; i--) {
+            if (buffer[i] == first && regionMatches(buffer, i, marker)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] buffer, int position, int end, byte[] marker) {
+        return end - position >= marker.length && regionMatches(buffer, position, marker);
+    }
+
+    private static boolean regionMatches(byte[] buffer, int position, byte[] marker) {
+        for (int i = 0; i < marker.length; i++) {
+            if (buffer[position + i] != marker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ASCII only, which all level names are
+    private static boolean regionEquals(byte[] buffer, int position, int length, String value) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[position + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,325 @@
+package com.anonymous.syncthingrn;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Sizes the Go runtime of the daemon to the device and reacts to Android memory
+    pressure. Moderate pressure relaunches the daemon with a lower GOMEMLIMIT,
+    critical pressure also pauses the folders through REST. Both are undone once
+    the system has been calm for a while.
+
+    Pausing is saved in config.xml, so the folders paused here are remembered in
+    SharedPreferences as well. A daemon that was killed while they were paused gets
+    them back on its next launch.
+*/
+public class SyncthingMemoryGovernor implements ComponentCallbacks2, SyncthingReadiness.Listener {
+
+    public enum Pressure {
+        NORMAL,
+        MODERATE,
+        CRITICAL
+    }
+
+    public record MemoryLimits(long goMemLimitBytes, int goGc) {}
+
+    private static final String TAG = "SyncthingMemoryGovernor";
+    private static final long MB = 1024 * 1024;
+    private static final long MIN_MEMORY_LIMIT_BYTES = 96 * MB;
+    private static final long MAX_MEMORY_LIMIT_BYTES = 1024 * MB;
+    // Devices at or below this much RAM get the conservative budget
+    private static final long LOW_RAM_THRESHOLD_BYTES = 3L * 1024 * MB;
+    private static final long CHECK_INTERVAL_MS = 60000;
+    private static final long RELAX_AFTER_MS = 5 * 60 * 1000;
+    private static final String PREF_PAUSED_FOLDERS = "pausedFolders";
+
+    private static SyncthingMemoryGovernor instance;
+
+    public static synchronized SyncthingMemoryGovernor getInstance(Context context) {
+        if (instance == null) {
+            instance = new SyncthingMemoryGovernor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @return resident set size of a process in bytes from /proc/<pid>/status, or -1
+     */
+    public static long readRssBytes(int pid) {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.substring("VmRSS:".length()).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Process exited between listing and reading
+        }
+        return -1;
+    }
+
+    private final Context context;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SharedPreferences preferences;
+    private final List<String> pausedFolders = new ArrayList<>();
+    private SyncthingCore syncthingCore;
+    private ScheduledFuture<?> periodicCheck;
+    private Pressure pressure = Pressure.NORMAL;
+    // Pressure the running daemon was launched under
+    private Pressure launchedPressure = Pressure.NORMAL;
+    private long lastPressureAt = 0;
+
+    private SyncthingMemoryGovernor(Context context) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        pausedFolders.addAll(preferences.getStringSet(PREF_PAUSED_FOLDERS, new HashSet<>()));
+    }
+
+    public synchronized Pressure getPressure() {
+        return pressure;
+    }
+
+    /**
+     * Computes the Go runtime limits for the current pressure level.
+     */
+    public synchronized MemoryLimits getLimits() {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+
+        boolean lowRam = activityManager.isLowRamDevice() || memoryInfo.totalMem <= LOW_RAM_THRESHOLD_BYTES;
+        // Start from the larger of 1/8 (1/12 on small devices) of RAM and the per-app heap class
+        long budget = Math.max(memoryInfo.totalMem / (lowRam ? 12 : 8), activityManager.getMemoryClass() * MB);
+
+        int goGc = lowRam ? 75 : 100;
+        if (pressure == Pressure.MODERATE) {
+            budget = budget * 3 / 4;
+            goGc = 50;
+        } else if (pressure == Pressure.CRITICAL) {
+            budget = budget / 2;
+            goGc = 25;
+        }
+        return new MemoryLimits(Math.max(MIN_MEMORY_LIMIT_BYTES, Math.min(MAX_MEMORY_LIMIT_BYTES, budget)), goGc);
+    }
+
+    /**
+     * Writes GOMEMLIMIT and GOGC into the launch environment unless they were set explicitly.
+     */
+    public synchronized void applyTo(HashMap<String, String> environment) {
+        MemoryLimits limits = getLimits();
+        if (!environment.containsKey("GOMEMLIMIT") || environment.get("GOMEMLIMIT").isEmpty()) {
+            environment.put("GOMEMLIMIT", (limits.goMemLimitBytes() / MB) + "MiB");
+        }
+        if (!environment.containsKey("GOGC") || environment.get("GOGC").isEmpty()) {
+            environment.put("GOGC", Integer.toString(limits.goGc()));
+        }
+    }
+
+    /**
+     * Called when the daemon is launched with limits computed at this pressure level.
+     */
+    public synchronized void onLaunched(Pressure launched) {
+        launchedPressure = launched;
+    }
+
+    public synchronized void start(SyncthingCore syncthingCore) {
+        this.syncthingCore = syncthingCore;
+        context.registerComponentCallbacks(this);
+        SyncthingReadiness.getInstance().addListener(this);
+        if (periodicCheck == null) {
+            periodicCheck = executor.scheduleWithFixedDelay(this::checkPressure, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        context.unregisterComponentCallbacks(this);
+        SyncthingReadiness.getInstance().removeListener(this);
+        if (periodicCheck != null) {
+            periodicCheck.cancel(false);
+            periodicCheck = null;
+        }
+        this.syncthingCore = null;
+    }
+
+    /**
+     * Resumes folders still paused from an earlier run, unless the pressure that paused them is back.
+     */
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        if (getPressure() != Pressure.CRITICAL) {
+            executor.execute(this::resumeFolders);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            onPressure(Pressure.CRITICAL);
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            onPressure(Pressure.MODERATE);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onPressure(Pressure.CRITICAL);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {}
+
+    private void onPressure(Pressure level) {
+        synchronized (this) {
+            lastPressureAt = SystemClock.elapsedRealtime();
+            if (level.ordinal() <= pressure.ordinal()) {
+                return;
+            }
+            pressure = level;
+        }
+        Log.w(TAG, String.format("Memory pressure %1$s, Syncthing RSS %2$d MiB", level, currentRssBytes() / MB));
+        // Callbacks arrive on the main thread, REST calls and restarts happen on our own
+        executor.execute(() -> applyPressure(level));
+    }
+
+    private void applyPressure(Pressure level) {
+        if (level == Pressure.CRITICAL) {
+            pauseFolders();
+        }
+        boolean relaunch;
+        synchronized (this) {
+            relaunch = launchedPressure.ordinal() < level.ordinal();
+        }
+        if (relaunch && SyncthingSupervisor.getInstance().restart()) {
+            Log.i(TAG, "Restarting Syncthing with limits " + getLimits());
+        }
+    }
+
+    private void checkPressure() {
+        Log.i(TAG, String.format("Syncthing RSS %1$d MiB, pressure %2$s", currentRssBytes() / MB, getPressure()));
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+
+        synchronized (this) {
+            boolean calm = !memoryInfo.lowMemory && SystemClock.elapsedRealtime() - lastPressureAt >= RELAX_AFTER_MS;
+            if (pressure == Pressure.NORMAL || !calm) {
+                return;
+            }
+            // Relaxed limits take effect on the next launch, restarting again would only add churn
+            Log.i(TAG, "Memory pressure cleared");
+            pressure = Pressure.NORMAL;
+        }
+        resumeFolders();
+    }
+
+    private long currentRssBytes() {
+        SyncthingCore core = syncthingCore;
+        if (core == null) {
+            return -1;
+        }
+        long total = 0;
+        for (String pid : core.getSyncthingPIDs()) {
+            total += Math.max(0, readRssBytes(Integer.parseInt(pid)));
+        }
+        return total;
+    }
+
+    private void pauseFolders() {
+        SyncthingRestClient restClient = createRestClient();
+        if (restClient == null) {
+            return;
+        }
+        try {
+            JSONArray folders = new JSONArray(restClient.get("config/folders", null));
+            for (int i = 0; i < folders.length(); i++) {
+                JSONObject folder = folders.getJSONObject(i);
+                String folderId = folder.getString("id");
+                if (folder.optBoolean("paused")) {
+                    continue;
+                }
+                restClient.patch("config/folders/" + folderId, new JSONObject().put("paused", true).toString());
+                synchronized (this) {
+                    pausedFolders.add(folderId);
+                    savePausedFolders();
+                }
+            }
+            Log.w(TAG, "Paused folders " + pausedFolders);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to pause folders", e);
+        }
+    }
+
+    private void resumeFolders() {
+        List<String> folders;
+        synchronized (this) {
+            folders = new ArrayList<>(pausedFolders);
+        }
+        if (folders.isEmpty()) {
+            return;
+        }
+
+        SyncthingRestClient restClient = createRestClient();
+        if (restClient == null) {
+            return;
+        }
+        // Only resume what we paused, folders the user paused stay paused
+        List<String> resumed = new ArrayList<>();
+        for (String folderId : folders) {
+            try {
+                restClient.patch("config/folders/" + folderId, new JSONObject().put("paused", false).toString());
+                resumed.add(folderId);
+            } catch (SyncthingRestClient.RestException e) {
+                // The folder was removed meanwhile, there is nothing left to resume
+                Log.w(TAG, "Failed to resume folder " + folderId, e);
+                resumed.add(folderId);
+            } catch (IOException | JSONException e) {
+                // Kept, the next ready signal or calm check tries again
+                Log.w(TAG, "Failed to resume folder " + folderId, e);
+            }
+        }
+        synchronized (this) {
+            pausedFolders.removeAll(resumed);
+            savePausedFolders();
+        }
+        Log.i(TAG, "Resumed folders " + resumed);
+    }
+
+    // Caller holds the lock
+    private void savePausedFolders() {
+        preferences.edit().putStringSet(PREF_PAUSED_FOLDERS, new HashSet<>(pausedFolders)).apply();
+    }
+
+    private SyncthingRestClient createRestClient() {
+        SyncthingCore core = syncthingCore;
+        return core != null ? core.createRestClient() : null;
+    }
+}
@@ -0,0 +1,271 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+    Process wide counters, gauges and latency histograms for the native layer.
+    Recording is lock free apart from histograms, which take a short lock per
+    sample. A sampler adds CPU and RSS of the daemon read from /proc and writes
+    a snapshot file at a fixed interval.
+*/
+public class SyncthingMetrics {
+
+    public static final String PROCESS_SPAWN_MS = "process.spawn_ms";
+    public static final String PROCESS_TIME_TO_READY_MS = "process.time_to_ready_ms";
+    public static final String PROCESS_RESTARTS = "process.restarts";
+    public static final String PROCESS_CPU_MS = "process.cpu_ms";
+    public static final String PROCESS_CPU_PERCENT = "process.cpu_percent";
+    public static final String PROCESS_RSS_BYTES = "process.rss_bytes";
+    public static final String SHELL_COMMAND_MS = "shell.command_ms";
+    public static final String BRIDGE_EVENTS = "bridge.events";
+    public static final String BRIDGE_BATCHES = "bridge.batches";
+    public static final String REST_SNAPSHOT_MS = "rest.snapshot_ms";
+    public static final String STREAM_CHUNKS = "stream.chunks";
+    public static final String STREAM_CHARS = "stream.chars";
+    public static final String WATCHER_DIRECTORIES = "watcher.directories";
+    public static final String WATCHER_EVENTS = "watcher.events";
+    public static final String WATCHER_SCANS = "watcher.scans";
+    public static final String NETWORK_CHANGES = "network.changes";
+    public static final String NETWORK_RESTARTS = "network.restarts";
+    public static final String DISCOVERY_WINDOWS = "discovery.windows";
+    public static final String DISCOVERY_WINDOW_MS = "discovery.window_ms";
+    public static final String BANDWIDTH_CHANGES = "bandwidth.changes";
+    public static final String BANDWIDTH_IN_KBPS = "bandwidth.in_kbps";
+    public static final String BANDWIDTH_OUT_KBPS = "bandwidth.out_kbps";
+    public static final String SYNC_WINDOW_MS = "sync_window.ms";
+    public static final String SYNC_WINDOW_BYTES = "sync_window.bytes";
+    public static final String LOG_LINES = "log.lines";
+    public static final String LAUNCH_PROFILE_BUILDS = "launch.profile_builds";
+    public static final String STARTUP_HOST_MS = "startup.host_ms";
+    public static final String STARTUP_MODULE_INIT_MS = "startup.module_init_ms";
+    public static final String CONFIG_COMMITS = "config.commits";
+    public static final String CONFIG_COMMITS_SKIPPED = "config.commits_skipped";
+    public static final String CONFIG_COMMIT_MS = "config.commit_ms";
+    public static final String PROGRESS_REPORTS = "progress.reports";
+    public static final String EXECUTOR_QUEUE_DEPTH = "executor.queue_depth";
+    public static final String EXECUTOR_WAIT_MS = "executor.wait_ms";
+    public static final String EXECUTOR_RUN_MS = "executor.run_ms";
+    public static final String EXECUTOR_REJECTED = "executor.rejected";
+    public static final String EXECUTOR_TIMEOUTS = "executor.timeouts";
+    public static final String EXECUTOR_CANCELLED = "executor.cancelled";
+
+    /*
+        Fixed exponential buckets in milliseconds, the last bucket catches everything above.
+    */
+    public static class Histogram {
+        private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+        private final long[] buckets = new long[BOUNDS.length + 1];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        public synchronized void record(long value) {
+            int index = 0;
+            while (index < BOUNDS.length && value > BOUNDS[index]) {
+                index++;
+            }
+            buckets[index]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        public synchronized JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("sum", sum);
+            json.put("min", count > 0 ? min : 0);
+            json.put("max", count > 0 ? max : 0);
+            json.put("mean", count > 0 ? (double) sum / count : 0);
+            json.put("p50", percentile(0.50));
+            json.put("p90", percentile(0.90));
+            json.put("p99", percentile(0.99));
+            return json;
+        }
+
+        // Upper bound of the bucket holding the percentile, capped by the largest value seen
+        private long percentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int index = 0; index < buckets.length; index++) {
+                seen += buckets[index];
+                if (seen >= rank) {
+                    return index < BOUNDS.length ? Math.min(BOUNDS[index], max) : max;
+                }
+            }
+            return max;
+        }
+    }
+
+    private static final String TAG = "SyncthingMetrics";
+    private static final long SAMPLE_INTERVAL_MS = 60000;
+    private static final String SNAPSHOT_FILE = "metrics.json";
+
+    private static SyncthingMetrics instance;
+
+    public static synchronized SyncthingMetrics getInstance() {
+        if (instance == null) {
+            instance = new SyncthingMetrics();
+        }
+        return instance;
+    }
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, Double> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScheduledFuture<?> sampling;
+    private long lastCpuMs = -1;
+    private long lastSampleAt = 0;
+
+    private SyncthingMetrics() {}
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public void setGauge(String name, double value) {
+        gauges.put(name, value);
+    }
+
+    public void record(String name, long valueMs) {
+        histograms.computeIfAbsent(name, key -> new Histogram()).record(valueMs);
+    }
+
+    public JSONObject snapshot() {
+        JSONObject snapshot = new JSONObject();
+        try {
+            JSONObject counterJson = new JSONObject();
+            for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet()) {
+                counterJson.put(counter.getKey(), counter.getValue().get());
+            }
+            JSONObject gaugeJson = new JSONObject();
+            for (Map.Entry<String, Double> gauge : new TreeMap<>(gauges).entrySet()) {
+                gaugeJson.put(gauge.getKey(), gauge.getValue().doubleValue());
+            }
+            JSONObject histogramJson = new JSONObject();
+            for (Map.Entry<String, Histogram> histogram : new TreeMap<>(histograms).entrySet()) {
+                histogramJson.put(histogram.getKey(), histogram.getValue().toJson());
+            }
+            snapshot.put("timestamp", System.currentTimeMillis());
+            snapshot.put("counters", counterJson);
+            snapshot.put("gauges", gaugeJson);
+            snapshot.put("histograms", histogramJson);
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to build metrics snapshot", e);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Samples CPU and RSS of the daemon and writes a snapshot to the directory at a fixed interval.
+     * @param syncthingPids supplies the PIDs of the running daemon
+     */
+    public synchronized void startSampling(File snapshotDirectory, Supplier<List<String>> syncthingPids) {
+        if (sampling != null) {
+            return;
+        }
+        sampling = sampler.scheduleWithFixedDelay(() -> {
+            sampleProcess(syncthingPids.get());
+            writeSnapshot(new File(snapshotDirectory, SNAPSHOT_FILE));
+        }, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSampling() {
+        if (sampling != null) {
+            sampling.cancel(false);
+            sampling = null;
+        }
+        lastCpuMs = -1;
+    }
+
+    private void sampleProcess(List<String> pids) {
+        long cpuMs = 0;
+        long rssBytes = 0;
+        for (String pid : pids) {
+            int processId = Integer.parseInt(pid);
+            cpuMs += Math.max(0, readCpuMs(processId));
+            rssBytes += Math.max(0, SyncthingMemoryGovernor.readRssBytes(processId));
+        }
+        setGauge(PROCESS_CPU_MS, cpuMs);
+        setGauge(PROCESS_RSS_BYTES, rssBytes);
+
+        long now = SystemClock.elapsedRealtime();
+        if (lastCpuMs >= 0 && cpuMs >= lastCpuMs && now > lastSampleAt) {
+            setGauge(PROCESS_CPU_PERCENT, 100.0 * (cpuMs - lastCpuMs) / (now - lastSampleAt));
+        }
+        lastCpuMs = cpuMs;
+        lastSampleAt = now;
+    }
+
+    /**
+     * @return user plus system CPU time of a process from /proc/<pid>/stat, or -1
+     */
+    private static long readCpuMs(int pid) {
+        byte[] buffer = new byte[1024];
+        try (FileInputStream inputStream = new FileInputStream("/proc/" + pid + "/stat")) {
+            int read = inputStream.read(buffer);
+            if (read <= 0) {
+                return -1;
+            }
+            String stat = new String(buffer, 0, read, StandardCharsets.US_ASCII);
+            // The command name may contain spaces, fields are counted from the closing parenthesis
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            return ticks * 1000 / Os.sysconf(OsConstants._SC_CLK_TCK);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private void writeSnapshot(File snapshotFile) {
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            outputStream.write(snapshot().toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write metrics snapshot", e);
+            return;
+        }
+        // Readers never see a half written file
+        if (!temporaryFile.renameTo(snapshotFile)) {
+            Log.w(TAG, "Failed to replace " + snapshotFile);
+        }
+    }
+}
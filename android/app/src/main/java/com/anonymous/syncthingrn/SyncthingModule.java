@@ -1,10 +1,12 @@
 package com.anonymous.syncthingrn;
 
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
-import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.module.annotations.ReactModule;
 import com.facebook.react.bridge.ReadableArray;
@@ -14,18 +16,37 @@ import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableNativeArray;
 import com.facebook.react.bridge.WritableNativeMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
     This class manages the connection between react native and native code.
 */
 @ReactModule(name = SyncthingModule.NAME)
-public class SyncthingModule extends ReactContextBaseJavaModule {
+public class SyncthingModule extends NativeSyncthingModuleSpec {
 
-    public static final String NAME = "SyncthingModule";
     private static final String TAG = "SyncthingModule";
+    public static final String EVENTS_EVENT = "SyncthingEvents";
+    public static final String READY_EVENT = "SyncthingReady";
+    public static final String SUPERVISOR_STATE_EVENT = "SyncthingSupervisorState";
+    public static final String STATE_DIFF_EVENT = "SyncthingStateDiff";
+    public static final String STREAM_CHUNK_EVENT = "SyncthingStreamChunk";
+    public static final String PROGRESS_EVENT = "SyncthingProgress";
+    private static final long MIN_SYNC_WINDOW_INTERVAL_MS = 15 * 60 * 1000;
+    private static final long DEFAULT_SYNC_WINDOW_INTERVAL_MS = 60 * 60 * 1000;
+    private static final long DEFAULT_SYNC_WINDOW_DEADLINE_MS = 10 * 60 * 1000;
     
     public static String[] readableArrayToStringArray(ReadableArray readableArray) {
         String[] stringArray = new String[readableArray.size()];
@@ -43,21 +64,130 @@ public class SyncthingModule extends ReactContextBaseJavaModule {
         }
         return hashMap;
     }
+    public static WritableArray jsonArrayToWritableArray(JSONArray jsonArray) {
+        WritableArray writableArray = new WritableNativeArray();
+        for (int i = 0; i < jsonArray.length(); i++) {
+            Object value = jsonArray.opt(i);
+            if (value instanceof JSONObject) {
+                writableArray.pushMap(jsonObjectToWritableMap((JSONObject) value));
+            } else if (value instanceof JSONArray) {
+                writableArray.pushArray(jsonArrayToWritableArray((JSONArray) value));
+            } else if (value instanceof Boolean) {
+                writableArray.pushBoolean((Boolean) value);
+            } else if (value instanceof Integer) {
+                writableArray.pushInt((Integer) value);
+            } else if (value instanceof Number) {
+                writableArray.pushDouble(((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                writableArray.pushString((String) value);
+            } else {
+                writableArray.pushNull();
+            }
+        }
+        return writableArray;
+    }
+    public static WritableMap jsonObjectToWritableMap(JSONObject jsonObject) {
+        WritableMap writableMap = new WritableNativeMap();
+        Iterator<String> keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = jsonObject.opt(key);
+            if (value instanceof JSONObject) {
+                writableMap.putMap(key, jsonObjectToWritableMap((JSONObject) value));
+            } else if (value instanceof JSONArray) {
+                writableMap.putArray(key, jsonArrayToWritableArray((JSONArray) value));
+            } else if (value instanceof Boolean) {
+                writableMap.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                writableMap.putInt(key, (Integer) value);
+            } else if (value instanceof Number) {
+                writableMap.putDouble(key, ((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                writableMap.putString(key, (String) value);
+            } else {
+                writableMap.putNull(key);
+            }
+        }
+        return writableMap;
+    }
+
+    private static final AtomicBoolean coldStartRecorded = new AtomicBoolean(false);
 
     private SyncthingCore syncthingCore;
     private ReactApplicationContext reactContext;
+    private final SyncthingEventCoalescer eventBridge = new SyncthingEventCoalescer(this::emitEvents);
+    private final SyncthingReadiness.Listener readyBridge = this::emitReady;
+    private final SyncthingSupervisor.Listener supervisorBridge = this::emitSupervisorState;
+    private final SyncthingStateModel.Listener stateBridge = this::emitStateDiff;
+    private final SyncthingProgressAggregator.Listener progressBridge = this::emitProgress;
 
-    public SyncthingModule(ReactApplicationContext reactContext) throws SyncthingCore.ExecutableNotFoundException {
+    /**
+     * Created lazily the first time JS uses the module, so nothing here may block.
+     */
+    public SyncthingModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
         this.syncthingCore = new SyncthingCore(reactContext.getApplicationContext());
-        this.syncthingCore.validateBinaryExists();
+        SyncthingReadiness.getInstance().addListener(readyBridge);
+        SyncthingSupervisor.getInstance().addListener(supervisorBridge);
+        SyncthingStateModel.getInstance().addListener(stateBridge);
+        SyncthingProgressAggregator.getInstance().addListener(progressBridge);
     }
 
-    @ReactMethod
-    public void runShellCommand(String command, Promise promise) {
+    @Override
+    public void initialize() {
+        super.initialize();
+        // Only the first module of the process measures the cold start, later ones come from reloads
+        if (coldStartRecorded.compareAndSet(false, true)) {
+            SyncthingMetrics.getInstance().record(SyncthingMetrics.STARTUP_HOST_MS,
+                SystemClock.elapsedRealtime() - android.os.Process.getStartElapsedRealtime());
+        }
+        Thread initThread = new Thread(this::initializeInBackground, TAG + "-init");
+        initThread.setDaemon(true);
+        initThread.start();
+    }
+
+    /**
+     * Does the disk work the first calls would otherwise pay for, off the thread that created the module.
+     */
+    private void initializeInBackground() {
+        long startedAt = SystemClock.elapsedRealtime();
         try {
-            SyncthingCore.ShellCommandResponse response = this.syncthingCore.runShellCommand(command);
+            this.syncthingCore.validateBinaryExists();
+        } catch (SyncthingCore.ExecutableNotFoundException e) {
+            Log.e(TAG, "Syncthing binary is missing, launches will fail", e);
+        }
+        this.syncthingCore.getConfigReader().getGuiConfig();
+        SyncthingLogBuffer.getInstance(this.reactContext);
+        SyncthingMetrics.getInstance().record(SyncthingMetrics.STARTUP_MODULE_INIT_MS, SystemClock.elapsedRealtime() - startedAt);
+    }
+
+    public static WritableMap supervisorStateToWritableMap(SyncthingSupervisor.State state, int restartCount, int lastExitCode) {
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putString("state", state.name());
+        resultMap.putInt("restartCount", restartCount);
+        resultMap.putInt("lastExitCode", lastExitCode);
+        return resultMap;
+    }
+
+    public static WritableMap readyInfoToWritableMap(SyncthingReadiness.ReadyInfo readyInfo) {
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putString("address", readyInfo.address());
+        resultMap.putDouble("timeToReadyMs", readyInfo.timeToReadyMs());
+        resultMap.putString("source", readyInfo.source());
+        return resultMap;
+    }
+
+    /**
+     * Runs a shell command on the call executor.
+     * @param options optional `timeoutMs` and a `token` from createCallToken, pass the token to cancelCall to abort
+     */
+    @Override
+    @ReactMethod
+    public void runShellCommand(String command, @Nullable ReadableMap options, Promise promise) {
+        long timeoutMs = getTimeoutMs(options);
+        submitCall("runShellCommand", "RUN_SHELL_COMMAND_ERROR", options, promise, () -> {
+            SyncthingCore.ShellCommandResponse response = SyncthingCore.runShellCommand(command, timeoutMs);
             // Convert response to JS object
             WritableMap resultMap = new WritableNativeMap();
             
@@ -72,29 +202,814 @@ public class SyncthingModule extends ReactContextBaseJavaModule {
             // Add the command that was executed
             resultMap.putString("command", command);
             
-            promise.resolve(resultMap);
-        } catch (Exception e) {
-            promise.reject("RUN_SHELL_COMMAND_ERROR", e.getMessage());
+            return resultMap;
+        });
+    }
+
+    /**
+     * Runs a shell command and streams its output as STREAM_CHUNK_EVENT while it runs.
+     * @param options optional `chunkChars` and initial `credits`, grant more with grantStreamCredits
+     */
+    @Override
+    @ReactMethod
+    public void startShellStream(String streamId, String command, ReadableMap options, Promise promise) {
+        startStream(streamId, new ProcessBuilder("sh", "-c", command), options, promise);
+    }
+
+    /**
+     * Runs the Syncthing binary with the parameters, for example `cli debug`, and streams its output.
+     * @param options optional `chunkChars` and initial `credits`, grant more with grantStreamCredits
+     */
+    @Override
+    @ReactMethod
+    public void startSyncthingCommandStream(String streamId, ReadableArray parameters, ReadableMap options, Promise promise) {
+        startStream(streamId, this.syncthingCore.createSyncthingCommand(readableArrayToStringArray(parameters), new HashMap<>()), options, promise);
+    }
+
+    /**
+     * Allows the stream to send more chunks. Resolves false if it has already finished.
+     * @param credits at least 1, larger grants are capped at SyncthingOutputStreamer.MAX_CREDITS
+     */
+    @Override
+    @ReactMethod
+    public void grantStreamCredits(String streamId, double credits, Promise promise) {
+        try {
+            promise.resolve(SyncthingOutputStreamer.getInstance().grant(streamId, checkCredits(credits)));
+        } catch (IllegalArgumentException e) {
+            promise.reject("GRANT_STREAM_CREDITS_ERROR", e.getMessage());
+        }
+    }
+
+    /**
+     * Kills the process behind a stream. Resolves false if it has already finished.
+     */
+    @Override
+    @ReactMethod
+    public void cancelStream(String streamId, Promise promise) {
+        promise.resolve(SyncthingOutputStreamer.getInstance().cancel(streamId));
+    }
+
+    /**
+     * Aborts a call started with the given token. Resolves false if it already finished.
+     */
+    @Override
+    @ReactMethod
+    public void cancelCall(String token, Promise promise) {
+        promise.resolve(SyncthingCallExecutor.getInstance().cancel(token));
+    }
+
+    /**
+     * @return a token to pass in the options of one call, tokens are only issued here
+     */
+    @Override
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public String createCallToken() {
+        return SyncthingCallExecutor.getInstance().issueToken();
+    }
+
+
+    @Override
+    @ReactMethod
+    public void spawnSyncthingWorker(ReadableMap environmentVariables, Promise promise) {
+        startSyncthing(environmentVariables, promise);
+    }
+
+    /**
+     * Starts the supervised daemon. Does nothing if it is already running.
+     */
+    @Override
+    @ReactMethod
+    public void startSyncthing(ReadableMap environmentVariables, Promise promise) {
+        SyncthingSupervisor supervisor = SyncthingSupervisor.getInstance();
+        if (!supervisor.isRunning()) {
+            Log.i(TAG, "Spawning Syncthing Worker");
+            SyncthingWorker.startWorker(this.reactContext, readableMapToHashMap(environmentVariables));
+        }
+        promise.resolve(supervisorStateToWritableMap(supervisor.getState(), supervisor.getRestartCount(), supervisor.getLastExitCode()));
+    }
+
+    /**
+     * Stops the daemon and its worker. Does nothing if it is already stopped.
+     */
+    @Override
+    @ReactMethod
+    public void stopSyncthing(Promise promise) {
+        // Stopping waits for the process to exit, keep that off the native modules thread
+        submitCall("stopSyncthing", "STOP_SYNCTHING_ERROR", null, promise, () -> {
+            SyncthingWorker.stopWorker(this.reactContext);
+            return null;
+        });
+    }
+
+    /**
+     * Runs the daemon in periodic windows that end once it has converged. Accepts `intervalMs`
+     * and `deadlineMs`, the interval is raised to the 15 minutes WorkManager allows at least.
+     */
+    @Override
+    @ReactMethod
+    public void startSyncWindows(ReadableMap options, Promise promise) {
+        long intervalMs = options.hasKey("intervalMs") ? (long) options.getDouble("intervalMs") : DEFAULT_SYNC_WINDOW_INTERVAL_MS;
+        long deadlineMs = options.hasKey("deadlineMs") ? (long) options.getDouble("deadlineMs") : DEFAULT_SYNC_WINDOW_DEADLINE_MS;
+        if (deadlineMs <= 0) {
+            promise.reject("START_SYNC_WINDOWS_ERROR", "deadlineMs must be positive");
+            return;
+        }
+        SyncthingWorker.startSyncWindows(this.reactContext, Math.max(MIN_SYNC_WINDOW_INTERVAL_MS, intervalMs), deadlineMs);
+        promise.resolve(null);
+    }
+
+    @Override
+    @ReactMethod
+    public void stopSyncWindows(Promise promise) {
+        SyncthingWorker.stopSyncWindows(this.reactContext);
+        promise.resolve(null);
+    }
+
+    /**
+     * Elapsed time, bytes transferred and whether the last sync window converged, null if none ran yet.
+     */
+    @Override
+    @ReactMethod
+    public void getLastSyncWindowReport(Promise promise) {
+        JSONObject report = SyncthingSyncWindow.readLastReport(this.reactContext.getFilesDir());
+        if (report == null) {
+            promise.resolve(null);
+            return;
         }
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putDouble("startedAt", report.optLong("startedAt"));
+        resultMap.putDouble("elapsedMs", report.optLong("elapsedMs"));
+        resultMap.putBoolean("converged", report.optBoolean("converged"));
+        resultMap.putDouble("inBytes", report.optLong("inBytes"));
+        resultMap.putDouble("outBytes", report.optLong("outBytes"));
+        promise.resolve(resultMap);
+    }
+
+    /**
+     * Restarts a running daemon straight away, or starts it if it is stopped.
+     */
+    @Override
+    @ReactMethod
+    public void restartSyncthing(ReadableMap environmentVariables, Promise promise) {
+        HashMap<String, String> environment = readableMapToHashMap(environmentVariables);
+        submitCall("restartSyncthing", "RESTART_SYNCTHING_ERROR", null, promise, () -> {
+            if (!SyncthingSupervisor.getInstance().restart()) {
+                SyncthingWorker.startWorker(this.reactContext, environment);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    @ReactMethod
+    public void getSupervisorState(Promise promise) {
+        SyncthingSupervisor supervisor = SyncthingSupervisor.getInstance();
+        promise.resolve(supervisorStateToWritableMap(supervisor.getState(), supervisor.getRestartCount(), supervisor.getLastExitCode()));
+    }
+
+    /**
+     * @param options optional `timeoutMs` and `token`, only matters when the binary has to be asked
+     */
+    @Override
+    @ReactMethod
+    public void getAPIKey(@Nullable ReadableMap options, Promise promise) {
+        long timeoutMs = getTimeoutMs(options);
+        submitCall("getAPIKey", "GET_API_KEY_ERROR", options, promise, () -> {
+            String apiKey = this.syncthingCore.getConfigReader().getApiKey();
+            if (apiKey != null) {
+                return apiKey;
+            }
+
+            // config.xml is missing or unreadable, ask the binary instead
+            String[] parameters = {"cli", "config", "gui", "apikey", "get"};
+            return this.syncthingCore.runSyncthingCommand(parameters, new HashMap<>(), timeoutMs).toString();
+        });
+    }
+
+    /**
+     * Config, connections and per folder status and completion merged into one object.
+     * @param options optional `timeoutMs` and `token`
+     */
+    @Override
+    @ReactMethod
+    public void getSnapshot(ReadableMap options, Promise promise) {
+        submitCall("getSnapshot", "GET_SNAPSHOT_ERROR", options, promise, () -> {
+            SyncthingRestClient restClient = this.syncthingCore.createRestClient();
+            if (restClient == null) {
+                throw new IOException("Syncthing has no config.xml yet");
+            }
+            return jsonObjectToWritableMap(SyncthingSnapshot.fetch(restClient));
+        });
+    }
+
+    @Override
+    @ReactMethod
+    public void startEventPump(String apiKey, double since, ReadableArray eventTypes, Promise promise) {
+        SyncthingEventPump eventPump = SyncthingEventPump.getInstance();
+        // The pump is shared, JS only gets the types it asked for
+        eventPump.addListener(eventBridge, readableArrayToStringArray(eventTypes));
+        SyncthingConfigReader.GuiConfig guiConfig = this.syncthingCore.getConfigReader().getGuiConfig();
+        String baseUrl = guiConfig != null ? guiConfig.getRestBaseUrl() : SyncthingRestClient.DEFAULT_BASE_URL;
+        eventPump.start(new SyncthingRestClient(baseUrl, apiKey), (long) since);
+        promise.resolve(null);
+    }
+
+    @Override
+    @ReactMethod
+    public void stopEventPump(Promise promise) {
+        SyncthingEventPump eventPump = SyncthingEventPump.getInstance();
+        // Keeps running with the remaining listeners' types if anything else shares the pump
+        eventPump.removeListener(eventBridge);
+        promise.resolve((double) eventPump.getSince());
+    }
+
+    /**
+     * Starts the native state model, starting the event pump for its events if needed.
+     * Changes arrive as STATE_DIFF_EVENT, a diff with `reset` set means the state should be read again.
+     * Resolves with the current state, which is not seeded yet on the first call.
+     */
+    @Override
+    @ReactMethod
+    public void startStateModel(Promise promise) {
+        SyncthingStateModel stateModel = SyncthingStateModel.getInstance();
+        stateModel.start(this.syncthingCore::createRestClient);
+        promise.resolve(jsonObjectToWritableMap(stateModel.getState()));
+    }
+
+    @Override
+    @ReactMethod
+    public void stopStateModel(Promise promise) {
+        SyncthingStateModel.getInstance().stop();
+        promise.resolve(null);
+    }
+
+    /**
+     * Folders and devices at the current model version.
+     */
+    @Override
+    @ReactMethod
+    public void getState(Promise promise) {
+        promise.resolve(jsonObjectToWritableMap(SyncthingStateModel.getInstance().getState()));
+    }
+
+    /**
+     * Starts aggregating transfer progress, starting the event pump for its events if needed.
+     * Reports arrive as PROGRESS_EVENT every `intervalMs` while anything transfers, with rates
+     * averaged over `windowMs`. Resolves with the current report.
+     */
+    @Override
+    @ReactMethod
+    public void startProgress(ReadableMap options, Promise promise) {
+        long intervalMs = options.hasKey("intervalMs") ? (long) options.getDouble("intervalMs") : SyncthingProgressAggregator.DEFAULT_INTERVAL_MS;
+        long windowMs = options.hasKey("windowMs") ? (long) options.getDouble("windowMs") : SyncthingProgressAggregator.DEFAULT_WINDOW_MS;
+        SyncthingProgressAggregator progressAggregator = SyncthingProgressAggregator.getInstance();
+        progressAggregator.start(this.syncthingCore::createRestClient, intervalMs, windowMs);
+        promise.resolve(jsonObjectToWritableMap(progressAggregator.getProgress()));
     }
 
     @Override
-    public String getName() {
-        return NAME;
+    @ReactMethod
+    public void stopProgress(Promise promise) {
+        SyncthingProgressAggregator.getInstance().stop();
+        promise.resolve(null);
     }
 
+    @Override
+    @ReactMethod
+    public void getProgress(Promise promise) {
+        promise.resolve(jsonObjectToWritableMap(SyncthingProgressAggregator.getInstance().getProgress()));
+    }
 
+    /**
+     * Configures how events are folded before they cross the bridge.
+     * Accepts `maxBatchesPerSecond`, `maxPending` and a `policies` map of event type to
+     * "latest", "count" or "pass_through".
+     */
+    @Override
     @ReactMethod
-    public void spawnSyncthingWorker(ReadableMap environmentVariables, Promise promise) throws IOException, SyncthingCore.ExecutableNotFoundException {
-        Log.e(TAG, "Spawning Syncthing Worker");
-        SyncthingWorker.startWorker(this.reactContext, readableMapToHashMap(environmentVariables));
-        promise.resolve("");
+    public void configureEventCoalescing(ReadableMap options, Promise promise) {
+        try {
+            if (options.hasKey("maxBatchesPerSecond")) {
+                eventBridge.setMaxBatchesPerSecond(options.getDouble("maxBatchesPerSecond"));
+            }
+            if (options.hasKey("maxPending")) {
+                eventBridge.setMaxPending(options.getInt("maxPending"));
+            }
+            if (options.hasKey("policies")) {
+                HashMap<String, String> policies = readableMapToHashMap(options.getMap("policies"));
+                for (String eventType : policies.keySet()) {
+                    eventBridge.setPolicy(eventType, SyncthingEventCoalescer.Policy.fromString(policies.get(eventType)));
+                }
+            }
+            promise.resolve(null);
+        } catch (IllegalArgumentException e) {
+            promise.reject("CONFIGURE_EVENT_COALESCING_ERROR", e.getMessage());
+        }
+    }
+
+    @Override
+    @ReactMethod
+    public void getEventCoalescingStats(Promise promise) {
+        SyncthingEventCoalescer.Stats stats = eventBridge.getStats();
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putDouble("received", stats.received());
+        resultMap.putDouble("emitted", stats.emitted());
+        resultMap.putDouble("merged", stats.merged());
+        resultMap.putDouble("forcedFlushes", stats.forcedFlushes());
+        resultMap.putDouble("batches", stats.batches());
+        promise.resolve(resultMap);
     }
 
+    /**
+     * Resolves once the REST API of the current launch is reachable.
+     * Rejects if the daemon exits first or the timeout elapses.
+     */
+    @Override
     @ReactMethod
-    public void getAPIKey(Promise promise) throws IOException, SyncthingCore.ExecutableNotFoundException {
-        String[] parameters = {"cli", "config", "gui", "apikey", "get"};
-        String result = this.syncthingCore.runSyncthingCommand(parameters, this.syncthingCore.validateSyncthingEnvironment(new HashMap<>())).toString();
-        promise.resolve(result);
+    public void waitForReady(double timeoutMs, Promise promise) {
+        SyncthingReadiness.getInstance().awaitReady((long) timeoutMs).whenComplete((readyInfo, error) -> {
+            if (error != null) {
+                promise.reject("WAIT_FOR_READY_ERROR", error.getMessage());
+            } else {
+                promise.resolve(readyInfoToWritableMap(readyInfo));
+            }
+        });
+    }
+
+    /**
+     * Accepts `pauseOnMetered` and `localAnnounceOnLocalNetworkOnly`.
+     */
+    @Override
+    @ReactMethod
+    public void configureNetworkPolicy(ReadableMap options, Promise promise) {
+        SyncthingNetworkMonitor networkMonitor = SyncthingNetworkMonitor.getInstance(this.reactContext);
+        if (options.hasKey("pauseOnMetered")) {
+            networkMonitor.setPauseOnMetered(options.getBoolean("pauseOnMetered"));
+        }
+        if (options.hasKey("localAnnounceOnLocalNetworkOnly")) {
+            networkMonitor.setLocalAnnounceOnLocalNetworkOnly(options.getBoolean("localAnnounceOnLocalNetworkOnly"));
+        }
+        promise.resolve(null);
+    }
+
+    /**
+     * The network as last seen by the monitor, null while the worker is not running.
+     */
+    @Override
+    @ReactMethod
+    public void getNetworkState(Promise promise) {
+        SyncthingNetworkMonitor.NetworkState networkState = SyncthingNetworkMonitor.getInstance(this.reactContext).getLastState();
+        if (networkState == null) {
+            promise.resolve(null);
+            return;
+        }
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putBoolean("connected", networkState.connected());
+        resultMap.putBoolean("metered", networkState.metered());
+        resultMap.putBoolean("localNetwork", networkState.localNetwork());
+        resultMap.putString("gatewayIpV4", networkState.gatewayIpV4());
+        resultMap.putBoolean("discoveryWindowOpen", SyncthingDiscoveryScheduler.getInstance().isWindowOpen());
+        promise.resolve(resultMap);
+    }
+
+    /**
+     * Accepts `enabled` and per tier limits `unlimited`, `battery`, `constrained` and `metered`,
+     * each as `{sendKbps, recvKbps}` where 0 means unlimited.
+     */
+    @Override
+    @ReactMethod
+    public void configureBandwidth(ReadableMap options, Promise promise) {
+        SyncthingBandwidthScheduler bandwidthScheduler = SyncthingBandwidthScheduler.getInstance(this.reactContext);
+        for (SyncthingBandwidthScheduler.Tier tier : SyncthingBandwidthScheduler.Tier.values()) {
+            String key = tier.name().toLowerCase(Locale.ROOT);
+            if (!options.hasKey(key)) {
+                continue;
+            }
+            ReadableMap limits = options.getMap(key);
+            int sendKbps = limits.hasKey("sendKbps") ? limits.getInt("sendKbps") : 0;
+            int recvKbps = limits.hasKey("recvKbps") ? limits.getInt("recvKbps") : 0;
+            if (sendKbps < 0 || recvKbps < 0) {
+                promise.reject("CONFIGURE_BANDWIDTH_ERROR", "Limits of " + key + " must not be negative");
+                return;
+            }
+            bandwidthScheduler.setTierLimits(tier, new SyncthingBandwidthScheduler.Limits(sendKbps, recvKbps));
+        }
+        if (options.hasKey("enabled")) {
+            bandwidthScheduler.setEnabled(options.getBoolean("enabled"));
+        }
+        promise.resolve(null);
+    }
+
+    /**
+     * Conditions, applied limits and current throughput, null before the first check.
+     */
+    @Override
+    @ReactMethod
+    public void getBandwidthState(Promise promise) {
+        SyncthingBandwidthScheduler.BandwidthState bandwidthState = SyncthingBandwidthScheduler.getInstance(this.reactContext).getState();
+        if (bandwidthState == null) {
+            promise.resolve(null);
+            return;
+        }
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putString("tier", bandwidthState.tier().name().toLowerCase(Locale.ROOT));
+        resultMap.putInt("batteryPercent", bandwidthState.batteryPercent());
+        resultMap.putBoolean("charging", bandwidthState.charging());
+        resultMap.putInt("thermalStatus", bandwidthState.thermalStatus());
+        resultMap.putBoolean("metered", bandwidthState.metered());
+        SyncthingBandwidthScheduler.Limits appliedLimits = bandwidthState.appliedLimits();
+        if (appliedLimits != null) {
+            resultMap.putInt("maxSendKbps", appliedLimits.sendKbps());
+            resultMap.putInt("maxRecvKbps", appliedLimits.recvKbps());
+        } else {
+            resultMap.putNull("maxSendKbps");
+            resultMap.putNull("maxRecvKbps");
+        }
+        resultMap.putDouble("inKbps", bandwidthState.inKbps());
+        resultMap.putDouble("outKbps", bandwidthState.outKbps());
+        promise.resolve(resultMap);
+    }
+
+    /**
+     * Accepts `windowMs` and `intervalMs` for the local discovery windows.
+     */
+    @Override
+    @ReactMethod
+    public void configureDiscovery(ReadableMap options, Promise promise) {
+        long windowMs = options.hasKey("windowMs") ? (long) options.getDouble("windowMs") : SyncthingDiscoveryScheduler.DEFAULT_WINDOW_MS;
+        long intervalMs = options.hasKey("intervalMs") ? (long) options.getDouble("intervalMs") : SyncthingDiscoveryScheduler.DEFAULT_INTERVAL_MS;
+        if (windowMs <= 0 || intervalMs <= 0) {
+            promise.reject("CONFIGURE_DISCOVERY_ERROR", "windowMs and intervalMs must be positive");
+            return;
+        }
+        SyncthingDiscoveryScheduler.getInstance().configure(windowMs, intervalMs);
+        promise.resolve(null);
+    }
+
+    /**
+     * Counters, gauges and latency histograms of the native layer.
+     */
+    @Override
+    @ReactMethod
+    public void getMetrics(Promise promise) {
+        promise.resolve(jsonObjectToWritableMap(SyncthingMetrics.getInstance().snapshot()));
+    }
+
+    /**
+     * Same as getMetrics, returned on the JS thread without a promise round trip. The snapshot is
+     * still copied into a new map, which stays cheap because it only holds a few dozen numbers.
+     */
+    @Override
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getMetricsSync() {
+        return jsonObjectToWritableMap(SyncthingMetrics.getInstance().snapshot());
+    }
+
+    /**
+     * Same as getState, for reading the latest state while rendering. Every call copies the whole
+     * model into a new map, so check getStateVersionSync first and only read when it has moved.
+     */
+    @Override
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getStateSync() {
+        return jsonObjectToWritableMap(SyncthingStateModel.getInstance().getState());
+    }
+
+    /**
+     * @return the version getStateSync would return, without copying the state
+     */
+    @Override
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public double getStateVersionSync() {
+        return SyncthingStateModel.getInstance().getVersion();
+    }
+
+    /**
+     * @return the sequence the next log line will get, poll getLogs only when it has moved
+     */
+    @Override
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public double getLogCursorSync() {
+        return SyncthingLogBuffer.getInstance(this.reactContext).getNextSequence();
+    }
+
+    /**
+     * Runs the native benchmark suite, see SyncthingBenchmark. The result is also kept in benchmark.json.
+     * The suite only ships in debug builds, release builds reject with BENCHMARK_UNAVAILABLE.
+     * @param options optional `iterations`, `logLines`, `events`, `durationMs`, and `baseUrl` with `apiKey`
+     *                to include the REST cases, plus `timeoutMs` and `token` of the call
+     */
+    @Override
+    @ReactMethod
+    public void runBenchmark(ReadableMap options, Promise promise) {
+        if (!SyncthingBenchmark.INCLUDED) {
+            promise.reject("BENCHMARK_UNAVAILABLE", "Benchmarks are only included in debug builds");
+            return;
+        }
+        SyncthingBenchmark.Options benchmarkOptions = new SyncthingBenchmark.Options(
+            options.hasKey("iterations") ? options.getInt("iterations") : SyncthingBenchmark.DEFAULT_ITERATIONS,
+            options.hasKey("logLines") ? options.getInt("logLines") : SyncthingBenchmark.DEFAULT_LOG_LINES,
+            options.hasKey("events") ? options.getInt("events") : SyncthingBenchmark.DEFAULT_EVENTS,
+            options.hasKey("baseUrl") ? options.getString("baseUrl") : null,
+            options.hasKey("apiKey") ? options.getString("apiKey") : null,
+            options.hasKey("durationMs") ? (long) options.getDouble("durationMs") : SyncthingBenchmark.DEFAULT_DURATION_MS);
+        submitCall("runBenchmark", "RUN_BENCHMARK_ERROR", options, promise, () ->
+            jsonObjectToWritableMap(SyncthingBenchmark.run(this.reactContext, benchmarkOptions)));
+    }
+
+    /**
+     * Pages through the captured daemon output.
+     * @param cursor sequence number to read from, pass back `nextCursor` to continue
+     */
+    @Override
+    @ReactMethod
+    public void getLogs(double cursor, double limit, Promise promise) {
+        SyncthingLogBuffer logBuffer = SyncthingLogBuffer.getInstance(this.reactContext);
+        SyncthingLogBuffer.LogPage page = logBuffer.read((long) cursor, (int) limit);
+
+        WritableArray entriesArray = new WritableNativeArray();
+        for (SyncthingLogBuffer.LogEntry entry : page.entries()) {
+            WritableMap entryMap = new WritableNativeMap();
+            entryMap.putDouble("sequence", entry.sequence());
+            entryMap.putDouble("timestamp", entry.timestamp());
+            entryMap.putString("line", entry.line());
+            entryMap.putString("level", SyncthingLogParser.levelName(entry.level()));
+            entryMap.putString("facility", logBuffer.getFacilityName(entry.facility()));
+            entryMap.putString("template", SyncthingLogParser.templateName(entry.template()));
+            entriesArray.pushMap(entryMap);
+        }
+
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putArray("entries", entriesArray);
+        resultMap.putDouble("nextCursor", page.nextCursor());
+        resultMap.putDouble("firstSequence", page.firstSequence());
+        promise.resolve(resultMap);
+    }
+
+    /**
+     * Opens a config transaction, stage changes with stageConfigChange and write them with commitConfigTransaction.
+     */
+    @Override
+    @ReactMethod
+    public void beginConfigTransaction(Promise promise) {
+        promise.resolve(SyncthingConfigWriter.getInstance().begin());
+    }
+
+    /**
+     * @param section `options`, `gui`, `devices` or `folders`
+     * @param id device or folder ID, null for options and gui
+     * @param patch fields to change, null removes the device or folder
+     */
+    @Override
+    @ReactMethod
+    public void stageConfigChange(String transactionId, String section, @Nullable String id, @Nullable ReadableMap patch, Promise promise) {
+        try {
+            JSONObject patchObject = patch != null ? new JSONObject(patch.toHashMap()) : null;
+            SyncthingConfigWriter.getInstance().stage(transactionId, section, id, patchObject);
+            promise.resolve(null);
+        } catch (JSONException | IllegalArgumentException e) {
+            promise.reject("STAGE_CONFIG_ERROR", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes everything staged as one PUT of the config, or nothing if no value changes.
+     * @param options optional `restart`, false to leave a required restart to the caller, plus `timeoutMs` and `token`
+     */
+    @Override
+    @ReactMethod
+    public void commitConfigTransaction(String transactionId, ReadableMap options, Promise promise) {
+        boolean restart = options == null || !options.hasKey("restart") || options.getBoolean("restart");
+        submitCall("commitConfigTransaction", "COMMIT_CONFIG_ERROR", options, promise, () -> {
+            SyncthingRestClient restClient = this.syncthingCore.createRestClient();
+            if (restClient == null) {
+                throw new IOException("Syncthing has no config.xml yet");
+            }
+            SyncthingConfigWriter.CommitResult result = SyncthingConfigWriter.getInstance().commit(transactionId, restClient, restart);
+            WritableArray changedSections = new WritableNativeArray();
+            for (String section : result.changedSections()) {
+                changedSections.pushString(section);
+            }
+            WritableMap resultMap = new WritableNativeMap();
+            resultMap.putArray("changedSections", changedSections);
+            resultMap.putBoolean("written", result.written());
+            resultMap.putBoolean("restarted", result.restarted());
+            resultMap.putDouble("durationMs", result.durationMs());
+            return resultMap;
+        });
+    }
+
+    @Override
+    @ReactMethod
+    public void abortConfigTransaction(String transactionId, Promise promise) {
+        promise.resolve(SyncthingConfigWriter.getInstance().abort(transactionId));
+    }
+
+    /**
+     * Parsed log lines as parallel columns, filtered natively. The filter accepts `minLevel`,
+     * `facilities` as names and `templates` as template numbers, all optional.
+     * @param cursor sequence number to read from, pass back `nextCursor` to continue
+     */
+    @Override
+    @ReactMethod
+    public void getLogRecords(double cursor, double limit, @Nullable ReadableMap filter, Promise promise) {
+        SyncthingLogBuffer logBuffer = SyncthingLogBuffer.getInstance(this.reactContext);
+        SyncthingLogBuffer.LogFilter logFilter;
+        try {
+            logFilter = readLogFilter(logBuffer, filter);
+        } catch (IllegalArgumentException e) {
+            promise.reject("GET_LOG_RECORDS_ERROR", e.getMessage());
+            return;
+        }
+        SyncthingLogBuffer.LogPage page = logBuffer.read((long) cursor, (int) limit, logFilter);
+
+        WritableArray sequences = new WritableNativeArray();
+        WritableArray timestamps = new WritableNativeArray();
+        WritableArray loggedAts = new WritableNativeArray();
+        WritableArray levels = new WritableNativeArray();
+        WritableArray facilities = new WritableNativeArray();
+        WritableArray templates = new WritableNativeArray();
+        WritableArray lines = new WritableNativeArray();
+        // Facility IDs index into this table, each name is sent once per page
+        WritableArray facilityNames = new WritableNativeArray();
+        HashMap<Integer, Integer> facilityIndexes = new HashMap<>();
+        for (SyncthingLogBuffer.LogEntry entry : page.entries()) {
+            int facilityIndex = -1;
+            if (entry.facility() != SyncthingLogParser.NO_FACILITY) {
+                Integer known = facilityIndexes.get(entry.facility());
+                if (known == null) {
+                    known = facilityIndexes.size();
+                    facilityIndexes.put(entry.facility(), known);
+                    facilityNames.pushString(logBuffer.getFacilityName(entry.facility()));
+                }
+                facilityIndex = known;
+            }
+            sequences.pushDouble(entry.sequence());
+            timestamps.pushDouble(entry.timestamp());
+            loggedAts.pushDouble(entry.loggedAt());
+            levels.pushInt(entry.level());
+            facilities.pushInt(facilityIndex);
+            templates.pushInt(entry.template());
+            lines.pushString(entry.line());
+        }
+
+        WritableMap resultMap = new WritableNativeMap();
+        resultMap.putArray("sequences", sequences);
+        resultMap.putArray("timestamps", timestamps);
+        resultMap.putArray("loggedAts", loggedAts);
+        resultMap.putArray("levels", levels);
+        resultMap.putArray("facilities", facilities);
+        resultMap.putArray("templates", templates);
+        resultMap.putArray("lines", lines);
+        resultMap.putArray("facilityNames", facilityNames);
+        resultMap.putDouble("nextCursor", page.nextCursor());
+        resultMap.putDouble("firstSequence", page.firstSequence());
+        promise.resolve(resultMap);
+    }
+
+    private static SyncthingLogBuffer.LogFilter readLogFilter(SyncthingLogBuffer logBuffer, ReadableMap filter) {
+        if (filter == null) {
+            return null;
+        }
+        int minLevel = filter.hasKey("minLevel") ? filter.getInt("minLevel") : SyncthingLogParser.LEVEL_UNKNOWN;
+        BitSet facilities = null;
+        if (filter.hasKey("facilities")) {
+            facilities = new BitSet();
+            ReadableArray names = filter.getArray("facilities");
+            for (int i = 0; i < names.size(); i++) {
+                int facility = logBuffer.findFacility(names.getString(i));
+                // A facility that has not been logged yet matches nothing
+                if (facility != SyncthingLogParser.NO_FACILITY) {
+                    facilities.set(facility);
+                }
+            }
+        }
+        int templates = 0;
+        if (filter.hasKey("templates")) {
+            ReadableArray templateNumbers = filter.getArray("templates");
+            for (int i = 0; i < templateNumbers.size(); i++) {
+                int template = templateNumbers.getInt(i);
+                // Shifting by anything else wraps around into another template's bit
+                if (template < SyncthingLogParser.TEMPLATE_NONE || template > SyncthingLogParser.TEMPLATE_PANIC) {
+                    throw new IllegalArgumentException("Unknown log template " + template);
+                }
+                templates |= 1 << template;
+            }
+        }
+        return new SyncthingLogBuffer.LogFilter(minLevel, facilities, templates);
+    }
+
+    // Required by NativeEventEmitter, subscriptions are tracked on the JS side
+    @Override
+    @ReactMethod
+    public void addListener(String eventName) {}
+
+    @Override
+    @ReactMethod
+    public void removeListeners(double count) {}
+
+    @Override
+    public void invalidate() {
+        SyncthingEventPump.getInstance().removeListener(eventBridge);
+        SyncthingReadiness.getInstance().removeListener(readyBridge);
+        SyncthingSupervisor.getInstance().removeListener(supervisorBridge);
+        SyncthingStateModel.getInstance().removeListener(stateBridge);
+        SyncthingProgressAggregator.getInstance().removeListener(progressBridge);
+        eventBridge.shutdown();
+        super.invalidate();
+    }
+
+    private static long getTimeoutMs(ReadableMap options) {
+        if (options != null && options.hasKey("timeoutMs")) {
+            return (long) options.getDouble("timeoutMs");
+        }
+        return SyncthingCallExecutor.DEFAULT_TIMEOUT_MS;
+    }
+
+    private <T> void submitCall(String name, String errorCode, ReadableMap options, Promise promise, SyncthingCallExecutor.Call<T> call) {
+        String token = options != null && options.hasKey("token") ? options.getString("token") : null;
+        SyncthingCallExecutor.getInstance().submit(name, token, getTimeoutMs(options), call).whenComplete((result, error) -> {
+            if (error == null) {
+                promise.resolve(result);
+            } else if (error instanceof SyncthingCallExecutor.CallRejectedException) {
+                promise.reject("CALL_REJECTED", error.getMessage());
+            } else if (error instanceof TimeoutException) {
+                promise.reject("CALL_TIMEOUT", error.getMessage());
+            } else if (error instanceof CancellationException) {
+                promise.reject("CALL_CANCELLED", error.getMessage());
+            } else {
+                promise.reject(errorCode, error.getMessage());
+            }
+        });
+    }
+
+    private void startStream(String streamId, ProcessBuilder processBuilder, ReadableMap options, Promise promise) {
+        int chunkChars = options != null && options.hasKey("chunkChars") ? options.getInt("chunkChars") : SyncthingOutputStreamer.DEFAULT_CHUNK_CHARS;
+        try {
+            int credits = options != null && options.hasKey("credits") ? checkCredits(options.getDouble("credits")) : SyncthingOutputStreamer.DEFAULT_CREDITS;
+            SyncthingOutputStreamer.getInstance().start(streamId, processBuilder, chunkChars, credits, this::emitStreamChunk);
+            promise.resolve(null);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            promise.reject("START_STREAM_ERROR", e.getMessage());
+        }
+    }
+
+    /**
+     * Semaphore permits come from JS as doubles, anything that is not a positive count is refused.
+     */
+    private static int checkCredits(double credits) {
+        if (Double.isNaN(credits) || Double.isInfinite(credits) || credits < 1) {
+            throw new IllegalArgumentException("credits must be a finite number of at least 1, got " + credits);
+        }
+        return (int) Math.min(credits, SyncthingOutputStreamer.MAX_CREDITS);
+    }
+
+    private void emitEvents(JSONArray events) {
+        SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+        metrics.add(SyncthingMetrics.BRIDGE_EVENTS, events.length());
+        metrics.increment(SyncthingMetrics.BRIDGE_BATCHES);
+        emit(EVENTS_EVENT, jsonArrayToWritableArray(events));
+    }
+
+    private void emitReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        emit(READY_EVENT, readyInfoToWritableMap(readyInfo));
+    }
+
+    private void emitSupervisorState(SyncthingSupervisor.State state, int restartCount, int lastExitCode) {
+        emit(SUPERVISOR_STATE_EVENT, supervisorStateToWritableMap(state, restartCount, lastExitCode));
+    }
+
+    private void emitStateDiff(JSONObject diff) {
+        emit(STATE_DIFF_EVENT, jsonObjectToWritableMap(diff));
+    }
+
+    private void emitProgress(JSONObject progress) {
+        emit(PROGRESS_EVENT, jsonObjectToWritableMap(progress));
+    }
+
+    private void emitStreamChunk(SyncthingOutputStreamer.Chunk chunk) {
+        WritableMap chunkMap = new WritableNativeMap();
+        chunkMap.putString("streamId", chunk.streamId());
+        chunkMap.putDouble("sequence", chunk.sequence());
+        chunkMap.putBoolean("done", chunk.done());
+        if (chunk.data() != null) {
+            chunkMap.putString("data", chunk.data());
+        }
+        if (chunk.done()) {
+            chunkMap.putInt("exitCode", chunk.exitCode());
+        }
+        if (chunk.error() != null) {
+            chunkMap.putString("error", chunk.error());
+        }
+        emit(STREAM_CHUNK_EVENT, chunkMap);
+    }
+
+    private void emit(String eventName, Object data) {
+        if (!reactContext.hasActiveReactInstance()) {
+            return;
+        }
+        reactContext
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+            .emit(eventName, data);
     }
 }
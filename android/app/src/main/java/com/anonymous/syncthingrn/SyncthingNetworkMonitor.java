@@ -0,0 +1,283 @@
+package com.anonymous.syncthingrn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Follows the default network and applies policy to the running daemon through
+    REST: devices can be paused while on a metered network and local discovery
+    windows only open on Wi-Fi or Ethernet. The daemon is only restarted when
+    FALLBACK_NET_GATEWAY_IPV4, which can only be set at launch, no longer matches
+    the network.
+
+    Connections left behind by a handover are not cycled here, pausing a device is
+    a config change. The daemon's dialer replaces them once their keepalives fail.
+
+    Pausing is saved in config.xml, so the devices paused here are remembered in
+    SharedPreferences as well and resumed by the next start if it is not metered.
+*/
+public class SyncthingNetworkMonitor extends ConnectivityManager.NetworkCallback implements SyncthingReadiness.Listener {
+
+    public record NetworkState(boolean connected, boolean metered, boolean localNetwork, String gatewayIpV4, String networkId) {}
+
+    private static final String TAG = "SyncthingNetworkMonitor";
+    // Handovers arrive as bursts of lost, available and capability callbacks
+    private static final long DEBOUNCE_MS = 3000;
+    private static final String GATEWAY_VARIABLE = "FALLBACK_NET_GATEWAY_IPV4";
+    private static final String PREF_PAUSED_DEVICES = "pausedDevices";
+
+    private static SyncthingNetworkMonitor instance;
+
+    public static synchronized SyncthingNetworkMonitor getInstance(Context context) {
+        if (instance == null) {
+            instance = new SyncthingNetworkMonitor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SharedPreferences preferences;
+    private final List<String> pausedDevices = new ArrayList<>();
+    private volatile boolean pauseOnMetered = false;
+    private volatile boolean localAnnounceOnLocalNetworkOnly = true;
+    private SyncthingCore syncthingCore;
+    private ScheduledFuture<?> pendingEvaluation;
+    private NetworkState lastState;
+
+    private SyncthingNetworkMonitor(Context context) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        pausedDevices.addAll(preferences.getStringSet(PREF_PAUSED_DEVICES, new HashSet<>()));
+    }
+
+    public void setPauseOnMetered(boolean pauseOnMetered) {
+        this.pauseOnMetered = pauseOnMetered;
+        reapply();
+    }
+
+    public void setLocalAnnounceOnLocalNetworkOnly(boolean localAnnounceOnLocalNetworkOnly) {
+        this.localAnnounceOnLocalNetworkOnly = localAnnounceOnLocalNetworkOnly;
+        reapply();
+    }
+
+    public synchronized NetworkState getLastState() {
+        return lastState;
+    }
+
+    public synchronized void start(SyncthingCore syncthingCore) {
+        if (this.syncthingCore != null) {
+            return;
+        }
+        this.syncthingCore = syncthingCore;
+        this.lastState = null;
+        SyncthingReadiness.getInstance().addListener(this);
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        connectivityManager.registerDefaultNetworkCallback(this);
+    }
+
+    public synchronized void stop() {
+        if (this.syncthingCore == null) {
+            return;
+        }
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        connectivityManager.unregisterNetworkCallback(this);
+        SyncthingReadiness.getInstance().removeListener(this);
+        if (pendingEvaluation != null) {
+            pendingEvaluation.cancel(false);
+            pendingEvaluation = null;
+        }
+        // Devices paused for a metered network stay in the preferences, the next start resumes them
+        this.syncthingCore = null;
+    }
+
+    @Override
+    public void onAvailable(Network network) {
+        scheduleEvaluation(DEBOUNCE_MS);
+    }
+
+    @Override
+    public void onLost(Network network) {
+        scheduleEvaluation(DEBOUNCE_MS);
+    }
+
+    @Override
+    public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+        scheduleEvaluation(DEBOUNCE_MS);
+    }
+
+    @Override
+    public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+        scheduleEvaluation(DEBOUNCE_MS);
+    }
+
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        // A fresh launch starts from its config, apply the policy from scratch
+        reapply();
+    }
+
+    private synchronized void reapply() {
+        lastState = null;
+        scheduleEvaluation(0);
+    }
+
+    private synchronized void scheduleEvaluation(long delayMs) {
+        if (syncthingCore == null) {
+            return;
+        }
+        if (pendingEvaluation != null) {
+            pendingEvaluation.cancel(false);
+        }
+        pendingEvaluation = executor.schedule(this::evaluate, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void evaluate() {
+        SyncthingCore core;
+        NetworkState previous;
+        NetworkState current;
+        synchronized (this) {
+            core = syncthingCore;
+            if (core == null) {
+                return;
+            }
+            current = readNetworkState(core);
+            previous = lastState;
+            lastState = current;
+        }
+        if (current.equals(previous)) {
+            return;
+        }
+        Log.i(TAG, "Network changed to " + current);
+        SyncthingMetrics.getInstance().increment(SyncthingMetrics.NETWORK_CHANGES);
+
+        SyncthingRestClient restClient = core.createRestClient();
+        if (!current.connected() || restClient == null || !SyncthingReadiness.getInstance().isReady()) {
+            SyncthingDiscoveryScheduler.getInstance().onNetworkChanged(false, false);
+            return;
+        }
+
+        // The only setting that needs a new process, everything else is applied live
+        String launchedGateway = core.getLaunchEnvironment().get(GATEWAY_VARIABLE);
+        if (current.gatewayIpV4() != null && launchedGateway != null && !current.gatewayIpV4().equals(launchedGateway)) {
+            Log.i(TAG, String.format("Gateway moved from %1$s to %2$s, restarting Syncthing", launchedGateway, current.gatewayIpV4()));
+            if (SyncthingSupervisor.getInstance().restart()) {
+                SyncthingMetrics.getInstance().increment(SyncthingMetrics.NETWORK_RESTARTS);
+                return;
+            }
+        }
+
+        try {
+            boolean paused = applyMeteredPolicy(restClient, current.metered());
+            boolean handover = previous != null && !Objects.equals(previous.networkId(), current.networkId());
+            // Local discovery is received in short windows opened by the discovery scheduler
+            boolean discoveryAllowed = !paused && (!localAnnounceOnLocalNetworkOnly || current.localNetwork());
+            SyncthingDiscoveryScheduler.getInstance().onNetworkChanged(discoveryAllowed, handover || previous == null);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to apply network policy", e);
+        }
+    }
+
+    private NetworkState readNetworkState(SyncthingCore core) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = connectivityManager.getActiveNetwork();
+        NetworkCapabilities capabilities = network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+        if (capabilities == null) {
+            return new NetworkState(false, false, false, null, null);
+        }
+        boolean metered = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        boolean localNetwork = capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET);
+        return new NetworkState(true, metered, localNetwork, core.getGatewayIpV4(), network.toString());
+    }
+
+    /**
+     * Pauses every unpaused device on a metered network and resumes only those once off it.
+     * @return true if devices are paused for a metered network
+     */
+    private boolean applyMeteredPolicy(SyncthingRestClient restClient, boolean metered) throws IOException, JSONException {
+        if (metered && pauseOnMetered) {
+            JSONArray devices = new JSONArray(restClient.get("config/devices", null));
+            for (int i = 0; i < devices.length(); i++) {
+                JSONObject device = devices.getJSONObject(i);
+                String deviceId = device.getString("deviceID");
+                if (device.optBoolean("paused")) {
+                    continue;
+                }
+                restClient.post("system/pause", Collections.singletonMap("device", deviceId), null);
+                synchronized (this) {
+                    if (!pausedDevices.contains(deviceId)) {
+                        pausedDevices.add(deviceId);
+                        savePausedDevices();
+                    }
+                }
+            }
+            Log.i(TAG, "Paused devices on a metered network");
+            return true;
+        }
+
+        List<String> devices;
+        synchronized (this) {
+            devices = new ArrayList<>(pausedDevices);
+        }
+        if (devices.isEmpty()) {
+            return false;
+        }
+        // Devices the user paused stay paused
+        List<String> resumed = new ArrayList<>();
+        try {
+            for (String deviceId : devices) {
+                try {
+                    restClient.post("system/resume", Collections.singletonMap("device", deviceId), null);
+                } catch (SyncthingRestClient.RestException e) {
+                    if (e.getStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                        // Auth or server trouble, keep the device to try again
+                        Log.w(TAG, "Failed to resume device " + deviceId, e);
+                        continue;
+                    }
+                    // The device was removed meanwhile, there is nothing left to resume
+                    Log.i(TAG, "Device " + deviceId + " no longer exists, forgetting it");
+                }
+                resumed.add(deviceId);
+            }
+        } finally {
+            // Whatever failed is kept for the next evaluation or start
+            synchronized (this) {
+                pausedDevices.removeAll(resumed);
+                savePausedDevices();
+            }
+        }
+        Log.i(TAG, "Resumed devices " + resumed);
+        return false;
+    }
+
+    // Caller holds the lock
+    private void savePausedDevices() {
+        preferences.edit().putStringSet(PREF_PAUSED_DEVICES, new HashSet<>(pausedDevices)).apply();
+    }
+}
@@ -0,0 +1,184 @@
+package com.anonymous.syncthingrn;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/*
+    Streams the output of a process in bounded chunks while it runs. Each chunk costs
+    the consumer one credit, and without credits the reader stops, so the pipe fills
+    and the process blocks. Memory per stream is bounded by the chunk size whatever
+    the size of the output.
+*/
+public class SyncthingOutputStreamer {
+
+    public record Chunk(String streamId, long sequence, String data, boolean done, int exitCode, String error) {}
+
+    public interface Listener {
+        void onChunk(Chunk chunk);
+    }
+
+    public static final int DEFAULT_CHUNK_CHARS = 16 * 1024;
+    public static final int DEFAULT_CREDITS = 4;
+    // Outstanding credits of a stream, far more chunks than any consumer buffers
+    public static final int MAX_CREDITS = 1024;
+
+    private static final String TAG = "SyncthingOutputStreamer";
+    private static final int MIN_CHUNK_CHARS = 256;
+    private static final int MAX_CHUNK_CHARS = 256 * 1024;
+    private static final int MAX_STREAMS = 4;
+
+    private static SyncthingOutputStreamer instance;
+
+    public static synchronized SyncthingOutputStreamer getInstance() {
+        if (instance == null) {
+            instance = new SyncthingOutputStreamer();
+        }
+        return instance;
+    }
+
+    private final Map<String, ActiveStream> streams = new ConcurrentHashMap<>();
+
+    private SyncthingOutputStreamer() {}
+
+    /**
+     * Starts the process and streams its output to the listener on a dedicated thread.
+     * The last chunk has `done` set and needs no credit.
+     * @param chunkChars largest chunk in characters, clamped to a sane range
+     * @param credits chunks that may be sent before the consumer grants more
+     */
+    public void start(String streamId, ProcessBuilder processBuilder, int chunkChars, int credits, Listener listener) throws IOException {
+        synchronized (streams) {
+            if (streams.containsKey(streamId)) {
+                throw new IllegalArgumentException("Stream " + streamId + " is already running");
+            }
+            if (streams.size() >= MAX_STREAMS) {
+                throw new IllegalStateException(String.format("Too many streams, at most %1$d may run at once", MAX_STREAMS));
+            }
+            processBuilder.redirectErrorStream(true);
+            ActiveStream stream = new ActiveStream(streamId, processBuilder.start(), Math.max(MIN_CHUNK_CHARS, Math.min(MAX_CHUNK_CHARS, chunkChars)), credits, listener);
+            streams.put(streamId, stream);
+            stream.thread.start();
+        }
+    }
+
+    /**
+     * @param credits at least 1, the outstanding credits never grow past MAX_CREDITS
+     * @return false if the stream has already finished
+     */
+    public boolean grant(String streamId, int credits) {
+        if (credits < 1) {
+            throw new IllegalArgumentException("credits must be at least 1, got " + credits);
+        }
+        ActiveStream stream = streams.get(streamId);
+        if (stream == null) {
+            return false;
+        }
+        synchronized (stream) {
+            int granted = Math.min(credits, MAX_CREDITS - stream.credits.availablePermits());
+            if (granted > 0) {
+                stream.credits.release(granted);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Kills the process. The listener still receives a final chunk with the error set.
+     * @return false if the stream has already finished
+     */
+    public boolean cancel(String streamId) {
+        ActiveStream stream = streams.get(streamId);
+        if (stream == null) {
+            return false;
+        }
+        stream.cancel();
+        return true;
+    }
+
+    private class ActiveStream implements Runnable {
+        private final String streamId;
+        private final Process process;
+        private final int chunkChars;
+        private final Semaphore credits;
+        private final Listener listener;
+        private final Thread thread;
+        private volatile boolean cancelled = false;
+        private long sequence = 0;
+
+        ActiveStream(String streamId, Process process, int chunkChars, int credits, Listener listener) {
+            this.streamId = streamId;
+            this.process = process;
+            this.chunkChars = chunkChars;
+            this.credits = new Semaphore(credits);
+            this.listener = listener;
+            this.thread = new Thread(this, TAG + "-" + streamId);
+            this.thread.setDaemon(true);
+        }
+
+        void cancel() {
+            cancelled = true;
+            process.destroy();
+            // Unblocks a wait for credits
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            int exitCode = -1;
+            String error = null;
+            try (Reader reader = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+                char[] buffer = new char[chunkChars];
+                int filled = 0;
+                int read;
+                while ((read = reader.read(buffer, filled, buffer.length - filled)) != -1) {
+                    filled += read;
+                    // Send when the buffer is full or the process has gone quiet, so slow output is not held back
+                    if (filled < buffer.length && reader.ready()) {
+                        continue;
+                    }
+                    // Never split a surrogate pair across chunks
+                    int length = Character.isHighSurrogate(buffer[filled - 1]) && filled > 1 ? filled - 1 : filled;
+                    send(new String(buffer, 0, length));
+                    if (length < filled) {
+                        buffer[0] = buffer[filled - 1];
+                    }
+                    filled -= length;
+                }
+                if (filled > 0) {
+                    send(new String(buffer, 0, filled));
+                }
+                exitCode = process.waitFor();
+            } catch (IOException e) {
+                error = cancelled ? "Stream was cancelled" : e.getMessage();
+            } catch (InterruptedException e) {
+                error = "Stream was cancelled";
+            } finally {
+                if (process.isAlive()) {
+                    process.destroy();
+                }
+                streams.remove(streamId, this);
+            }
+            if (cancelled && error == null) {
+                error = "Stream was cancelled";
+            }
+
+            Log.d(TAG, String.format("Stream %1$s finished after %2$d chunks with exit code %3$d", streamId, sequence, exitCode));
+            listener.onChunk(new Chunk(streamId, sequence, null, true, exitCode, error));
+        }
+
+        private void send(String data) throws InterruptedException {
+            credits.acquire();
+            SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+            metrics.increment(SyncthingMetrics.STREAM_CHUNKS);
+            metrics.add(SyncthingMetrics.STREAM_CHARS, data.length());
+            listener.onChunk(new Chunk(streamId, sequence++, data, false, 0, null));
+        }
+    }
+}
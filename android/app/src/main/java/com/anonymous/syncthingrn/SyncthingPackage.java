@@ -1,32 +1,39 @@
 package com.anonymous.syncthingrn;
 
 import androidx.annotation.NonNull;
-import com.facebook.react.ReactPackage;
+import androidx.annotation.Nullable;
+import com.facebook.react.BaseReactPackage;
 import com.facebook.react.bridge.NativeModule;
 import com.facebook.react.bridge.ReactApplicationContext;
-import com.facebook.react.uimanager.ViewManager;
-import java.util.ArrayList;
+import com.facebook.react.module.model.ReactModuleInfo;
+import com.facebook.react.module.model.ReactModuleInfoProvider;
 import java.util.Collections;
-import java.util.List;
-import android.util.Log;
 
-
-public class SyncthingPackage implements ReactPackage {
-    @NonNull
+/*
+    Registers SyncthingModule without creating it. React creates the module the first
+    time JS touches it, so app startup does not pay for it.
+*/
+public class SyncthingPackage extends BaseReactPackage {
+    @Nullable
     @Override
-    public List<NativeModule> createNativeModules(@NonNull ReactApplicationContext reactContext) {
-        List<NativeModule> modules = new ArrayList<>();
-        try {
-            modules.add(new SyncthingModule(reactContext));
-        } catch (SyncthingCore.ExecutableNotFoundException e) {
-            Log.e("Error Loading", e.toString());
+    public NativeModule getModule(@NonNull String name, @NonNull ReactApplicationContext reactContext) {
+        if (SyncthingModule.NAME.equals(name)) {
+            return new SyncthingModule(reactContext);
         }
-        return modules;
+        return null;
     }
 
     @NonNull
     @Override
-    public List<ViewManager> createViewManagers(@NonNull ReactApplicationContext reactContext) {
-        return Collections.emptyList();
+    public ReactModuleInfoProvider getReactModuleInfoProvider() {
+        ReactModuleInfo moduleInfo = new ReactModuleInfo(
+            SyncthingModule.NAME,
+            SyncthingModule.class.getName(),
+            false, // canOverrideExistingModule
+            false, // needsEagerInit
+            false, // isCxxModule
+            true   // isTurboModule
+        );
+        return () -> Collections.singletonMap(SyncthingModule.NAME, moduleInfo);
     }
 }
@@ -0,0 +1,245 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Keeps the handle and PID of every Syncthing process we launch so that stopping
+    them does not need to shell out to `ps`. Instances started by an earlier app
+    process are found by scanning /proc for the binary name.
+*/
+public class SyncthingProcessRegistry {
+
+    private static final String TAG = "SyncthingProcessRegistry";
+    private static final int SIGNAL_INT = 2;
+    private static final int SIGNAL_KILL = android.os.Process.SIGNAL_KILL;
+    private static final long ORPHAN_POLL_INTERVAL_MS = 10;
+
+    private static SyncthingProcessRegistry instance;
+
+    public static synchronized SyncthingProcessRegistry getInstance() {
+        if (instance == null) {
+            instance = new SyncthingProcessRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Best effort PID lookup. Android's Process implementation keeps the PID in a
+     * private field, newer runtimes expose it through Process#pid().
+     */
+    public static int getPid(Process process) {
+        try {
+            return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+        } catch (ReflectiveOperationException e) {
+            // Fall through to the field lookup
+        }
+        try {
+            Field pidField = process.getClass().getDeclaredField("pid");
+            pidField.setAccessible(true);
+            return pidField.getInt(process);
+        } catch (ReflectiveOperationException e) {
+            Log.w(TAG, "Unable to read PID of process " + process.getClass().getName());
+            return -1;
+        }
+    }
+
+    private final Map<Integer, Process> processes = new ConcurrentHashMap<>();
+
+    private SyncthingProcessRegistry() {}
+
+    public int register(Process process) {
+        int pid = getPid(process);
+        if (pid > 0) {
+            processes.put(pid, process);
+        }
+        return pid;
+    }
+
+    public void unregister(Process process) {
+        processes.values().remove(process);
+    }
+
+    /**
+     * @param binaryName file name of the binary, used to find processes we did not launch
+     * @return PIDs of every live Syncthing process, tracked ones first
+     */
+    public List<Integer> getPids(String binaryName) {
+        Set<Integer> pids = new LinkedHashSet<>();
+        for (Map.Entry<Integer, Process> entry : processes.entrySet()) {
+            if (entry.getValue().isAlive()) {
+                pids.add(entry.getKey());
+            } else {
+                processes.remove(entry.getKey());
+            }
+        }
+        pids.addAll(scanProc(binaryName));
+        return new ArrayList<>(pids);
+    }
+
+    /**
+     * Sends SIGINT to every Syncthing process, waits up to the timeout for them to
+     * exit and escalates to SIGKILL for any that are still alive.
+     * @return true if every process exited before the timeout
+     */
+    public boolean stopAll(String binaryName, long timeoutMs) {
+        List<Integer> pids = getPids(binaryName);
+        if (pids.isEmpty()) {
+            return true;
+        }
+
+        Log.i(TAG, "Stopping Syncthing processes " + pids);
+        for (int pid : pids) {
+            android.os.Process.sendSignal(pid, SIGNAL_INT);
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        boolean graceful = true;
+        for (int pid : pids) {
+            if (!waitForExit(pid, deadline - SystemClock.elapsedRealtime())) {
+                Log.w(TAG, String.format("Process %1$d ignored SIGINT, sending SIGKILL", pid));
+                android.os.Process.sendSignal(pid, SIGNAL_KILL);
+                waitForExit(pid, timeoutMs);
+                graceful = false;
+            }
+        }
+        return graceful;
+    }
+
+    private boolean waitForExit(int pid, long timeoutMs) {
+        Process process = processes.get(pid);
+        long remaining = Math.max(0, timeoutMs);
+
+        if (process != null) {
+            try {
+                boolean exited = process.waitFor(remaining, TimeUnit.MILLISECONDS);
+                if (exited) {
+                    processes.remove(pid);
+                }
+                return exited;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        // Not our child, so there is nothing to wait on. Checking /proc is a single stat call.
+        File procEntry = new File("/proc/" + pid);
+        long deadline = SystemClock.elapsedRealtime() + remaining;
+        while (procEntry.exists()) {
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                return false;
+            }
+            SystemClock.sleep(ORPHAN_POLL_INTERVAL_MS);
+        }
+        return true;
+    }
+
+    /**
+     * SIGKILLs every process below the given one, children before they can be
+     * reparented. Used for whatever a discarded shell session left running.
+     */
+    public static void killDescendants(int pid) {
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        for (int candidate : listProcPids()) {
+            int parentPid = readParentPid(candidate);
+            if (parentPid > 0) {
+                children.computeIfAbsent(parentPid, key -> new ArrayList<>()).add(candidate);
+            }
+        }
+
+        List<Integer> descendants = new ArrayList<>();
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        pending.add(pid);
+        while (!pending.isEmpty()) {
+            List<Integer> direct = children.get(pending.poll());
+            if (direct != null) {
+                descendants.addAll(direct);
+                pending.addAll(direct);
+            }
+        }
+        if (descendants.isEmpty()) {
+            return;
+        }
+
+        Log.i(TAG, String.format("Killing processes %1$s left by %2$d", descendants, pid));
+        for (int descendant : descendants) {
+            android.os.Process.sendSignal(descendant, SIGNAL_KILL);
+        }
+    }
+
+    private List<Integer> scanProc(String binaryName) {
+        List<Integer> pids = new ArrayList<>();
+        int ownPid = android.os.Process.myPid();
+        for (int pid : listProcPids()) {
+            if (pid != ownPid && readCommandLine(pid).contains(binaryName)) {
+                pids.add(pid);
+            }
+        }
+        return pids;
+    }
+
+    private static List<Integer> listProcPids() {
+        List<Integer> pids = new ArrayList<>();
+        File[] entries = new File("/proc").listFiles();
+        if (entries == null) {
+            return pids;
+        }
+
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+                continue;
+            }
+            try {
+                pids.add(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                // Not a process entry
+            }
+        }
+        return pids;
+    }
+
+    private static int readParentPid(int pid) {
+        byte[] buffer = new byte[512];
+        try (FileInputStream inputStream = new FileInputStream("/proc/" + pid + "/stat")) {
+            int read = inputStream.read(buffer);
+            if (read <= 0) {
+                return -1;
+            }
+            // "pid (comm) state ppid ...", comm may itself contain spaces and parentheses
+            String stat = new String(buffer, 0, read, StandardCharsets.UTF_8);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Integer.parseInt(fields[1]);
+        } catch (IOException | RuntimeException e) {
+            // Process exited or the line was cut short
+            return -1;
+        }
+    }
+
+    private static String readCommandLine(int pid) {
+        byte[] buffer = new byte[512];
+        try (FileInputStream inputStream = new FileInputStream("/proc/" + pid + "/cmdline")) {
+            int read = inputStream.read(buffer);
+            return read > 0 ? new String(buffer, 0, read, StandardCharsets.UTF_8) : "";
+        } catch (IOException e) {
+            // Process exited or belongs to another user
+            return "";
+        }
+    }
+}
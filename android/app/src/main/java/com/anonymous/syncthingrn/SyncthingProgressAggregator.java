@@ -0,0 +1,530 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+    Derives transfer rates and ETAs from the event stream, so the UI does not have to
+    poll db/completion and db/status and diff the results. Downloads are measured per
+    folder from DownloadProgress and ItemFinished, uploads per device from the drop in
+    needBytes between FolderCompletion events. Every rate is a sliding window over a
+    fixed ring of buckets, so an entity costs the same memory however long it transfers.
+
+    A report is handed to the listeners at a fixed interval, and only while something
+    moves or just stopped moving, so an idle daemon causes no bridge traffic at all.
+*/
+public class SyncthingProgressAggregator implements SyncthingEventPump.Listener, SyncthingReadiness.Listener {
+
+    public interface Listener {
+        /**
+         * @param progress `timestamp`, `windowMs`, `global` and `folders` and `devices` keyed by ID
+         */
+        void onProgress(JSONObject progress);
+    }
+
+    // Events the aggregator consumes, FolderSummary supplies what each folder still needs
+    public static final String[] EVENT_TYPES = {
+        "DownloadProgress",
+        "RemoteDownloadProgress",
+        "FolderCompletion",
+        "ItemFinished",
+        "FolderSummary"
+    };
+
+    public static final long DEFAULT_INTERVAL_MS = 2000;
+    // Syncthing sends DownloadProgress every 5 s by default, the window spans several of them
+    public static final long DEFAULT_WINDOW_MS = 30000;
+
+    private static final String TAG = "SyncthingProgressAggregator";
+    private static final int WINDOW_BUCKETS = 15;
+    private static final long MIN_INTERVAL_MS = 250;
+    // Files in flight tracked per folder, Syncthing only pulls a handful at a time
+    private static final int MAX_TRACKED_FILES = 64;
+
+    /*
+        Amounts summed into a ring of time buckets. Buckets that fall out of the window
+        are cleared as time moves past them.
+    */
+    static final class RateWindow {
+        private final long[] buckets = new long[WINDOW_BUCKETS];
+        private final long bucketMs;
+        private long currentBucket = -1;
+        private long firstSampleAt = -1;
+
+        RateWindow(long windowMs) {
+            this.bucketMs = Math.max(1, windowMs / WINDOW_BUCKETS);
+        }
+
+        void add(long amount, long now) {
+            if (amount <= 0) {
+                return;
+            }
+            advance(now);
+            if (sum() == 0) {
+                firstSampleAt = now;
+            }
+            buckets[(int) (currentBucket % WINDOW_BUCKETS)] += amount;
+        }
+
+        double perSecond(long now) {
+            advance(now);
+            long sum = sum();
+            if (sum == 0) {
+                return 0;
+            }
+            // Until the window fills up the rate is taken over the time since the first sample,
+            // plus a bucket for the time that sample had accrued over
+            long spanMs = Math.min(bucketMs * WINDOW_BUCKETS, now - firstSampleAt + bucketMs);
+            return sum * 1000.0 / spanMs;
+        }
+
+        private long sum() {
+            long sum = 0;
+            for (long bucket : buckets) {
+                sum += bucket;
+            }
+            return sum;
+        }
+
+        private void advance(long now) {
+            long bucket = now / bucketMs;
+            if (currentBucket < 0) {
+                currentBucket = bucket;
+                return;
+            }
+            long steps = Math.min(bucket - currentBucket, WINDOW_BUCKETS);
+            for (long i = 1; i <= steps; i++) {
+                buckets[(int) ((currentBucket + i) % WINDOW_BUCKETS)] = 0;
+            }
+            currentBucket = Math.max(currentBucket, bucket);
+        }
+    }
+
+    private static final class FolderProgress {
+        final RateWindow bytes;
+        final RateWindow items;
+        // Bytes done and bytes total of each file being pulled
+        final Map<String, long[]> files = new HashMap<>();
+        // From the last FolderSummary, -1 until one arrives
+        long needBytes = -1;
+        long bytesSinceSummary = 0;
+
+        FolderProgress(long windowMs) {
+            bytes = new RateWindow(windowMs);
+            items = new RateWindow(windowMs);
+        }
+
+        long remainingBytes() {
+            if (needBytes >= 0) {
+                return Math.max(0, needBytes - bytesSinceSummary);
+            }
+            long remaining = 0;
+            for (long[] file : files.values()) {
+                remaining += Math.max(0, file[1] - file[0]);
+            }
+            return remaining;
+        }
+    }
+
+    private static final class DeviceProgress {
+        final RateWindow bytes;
+        // Need and global bytes of the device per shared folder, from FolderCompletion
+        final Map<String, long[]> folders = new HashMap<>();
+        // Files the device is pulling from us per folder, from RemoteDownloadProgress
+        final Map<String, Integer> filesInProgress = new HashMap<>();
+
+        DeviceProgress(long windowMs) {
+            bytes = new RateWindow(windowMs);
+        }
+    }
+
+    private static SyncthingProgressAggregator instance;
+
+    public static synchronized SyncthingProgressAggregator getInstance() {
+        if (instance == null) {
+            instance = new SyncthingProgressAggregator();
+        }
+        return instance;
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, FolderProgress> folders = new LinkedHashMap<>();
+    private final Map<String, DeviceProgress> devices = new LinkedHashMap<>();
+    private Supplier<SyncthingRestClient> restClientSupplier;
+    private ScheduledFuture<?> reportTask;
+    private long windowMs = DEFAULT_WINDOW_MS;
+    private RateWindow downloadBytes = new RateWindow(DEFAULT_WINDOW_MS);
+    private RateWindow uploadBytes = new RateWindow(DEFAULT_WINDOW_MS);
+    private RateWindow downloadItems = new RateWindow(DEFAULT_WINDOW_MS);
+    private boolean started = false;
+    // Something changed since the last report
+    private boolean dirty = false;
+    private boolean lastReportActive = false;
+
+    private SyncthingProgressAggregator() {}
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Subscribes to events and starts reporting, starting the event pump if nothing else has.
+     * Calling it again applies the new interval and window, a new window starts the rates over.
+     * @param restClientSupplier supplies a client for the current launch, may return null before config.xml exists
+     * @param intervalMs time between reports
+     * @param windowMs span the rates are averaged over
+     */
+    public void start(Supplier<SyncthingRestClient> restClientSupplier, long intervalMs, long windowMs) {
+        long interval = Math.max(MIN_INTERVAL_MS, intervalMs);
+        // Clamped before comparing, a window below the interval would otherwise never match the stored one
+        long window = Math.max(interval, windowMs);
+        boolean wasStarted;
+        synchronized (this) {
+            wasStarted = started;
+            this.restClientSupplier = restClientSupplier;
+            this.started = true;
+            if (window != this.windowMs) {
+                this.windowMs = window;
+                reset();
+            }
+            if (reportTask != null) {
+                reportTask.cancel(false);
+            }
+            reportTask = executor.scheduleWithFixedDelay(this::report, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (!wasStarted) {
+            SyncthingEventPump.getInstance().addListener(this, EVENT_TYPES);
+            SyncthingReadiness.getInstance().addListener(this);
+        }
+        startEventPump();
+    }
+
+    public void stop() {
+        SyncthingEventPump.getInstance().removeListener(this);
+        SyncthingReadiness.getInstance().removeListener(this);
+        synchronized (this) {
+            started = false;
+            if (reportTask != null) {
+                reportTask.cancel(false);
+                reportTask = null;
+            }
+            reset();
+        }
+    }
+
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        // A new launch starts its transfers and counters from scratch
+        synchronized (this) {
+            reset();
+        }
+        startEventPump();
+    }
+
+    @Override
+    public synchronized void onEvents(JSONArray events) {
+        if (!started) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.optJSONObject(i);
+            JSONObject data = event != null ? event.optJSONObject("data") : null;
+            if (data == null) {
+                continue;
+            }
+            switch (event.optString("type")) {
+                case "DownloadProgress":
+                    applyDownloadProgress(data, now);
+                    break;
+                case "ItemFinished":
+                    applyItemFinished(data, now);
+                    break;
+                case "FolderSummary":
+                    applyFolderSummary(data);
+                    break;
+                case "FolderCompletion":
+                    applyFolderCompletion(data, now);
+                    break;
+                case "RemoteDownloadProgress":
+                    applyRemoteDownloadProgress(data);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the report the next interval would send
+     */
+    public synchronized JSONObject getProgress() {
+        try {
+            return buildReport(SystemClock.elapsedRealtime());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to build progress report", e);
+            return new JSONObject();
+        }
+    }
+
+    /*
+        The data holds every file currently being pulled, keyed by folder and then file
+        name. Files that dropped out were finished or failed, ItemFinished has already
+        credited the finished ones.
+    */
+    private void applyDownloadProgress(JSONObject data, long now) {
+        Set<String> reported = new HashSet<>();
+        Iterator<String> folderIds = data.keys();
+        while (folderIds.hasNext()) {
+            String folderId = folderIds.next();
+            JSONObject files = data.optJSONObject(folderId);
+            if (files == null) {
+                continue;
+            }
+            reported.add(folderId);
+            FolderProgress folder = getFolder(folderId);
+            Set<String> seen = new HashSet<>();
+            long delta = 0;
+            Iterator<String> names = files.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                JSONObject file = files.optJSONObject(name);
+                if (file == null) {
+                    continue;
+                }
+                long[] tracked = folder.files.get(name);
+                if (tracked == null) {
+                    if (folder.files.size() >= MAX_TRACKED_FILES) {
+                        continue;
+                    }
+                    tracked = new long[2];
+                    folder.files.put(name, tracked);
+                }
+                long bytesDone = file.optLong("bytesDone");
+                // A pull that starts over reports less than before, that is not negative progress
+                delta += Math.max(0, bytesDone - tracked[0]);
+                tracked[0] = bytesDone;
+                tracked[1] = file.optLong("bytesTotal");
+                seen.add(name);
+            }
+            folder.files.keySet().retainAll(seen);
+            creditDownload(folder, delta, now);
+        }
+        for (Map.Entry<String, FolderProgress> entry : folders.entrySet()) {
+            if (!reported.contains(entry.getKey())) {
+                entry.getValue().files.clear();
+            }
+        }
+        dirty = true;
+    }
+
+    private void applyItemFinished(JSONObject data, long now) {
+        if (!data.isNull("error") && !data.optString("error").isEmpty()) {
+            return;
+        }
+        FolderProgress folder = getFolder(data.optString("folder"));
+        long[] tracked = folder.files.remove(data.optString("item"));
+        if (tracked != null) {
+            // The last blocks arrive after the last DownloadProgress
+            creditDownload(folder, Math.max(0, tracked[1] - tracked[0]), now);
+        }
+        folder.items.add(1, now);
+        downloadItems.add(1, now);
+        dirty = true;
+    }
+
+    private void applyFolderSummary(JSONObject data) {
+        JSONObject summary = data.optJSONObject("summary");
+        if (summary == null) {
+            return;
+        }
+        FolderProgress folder = getFolder(data.optString("folder"));
+        folder.needBytes = summary.optLong("needBytes");
+        folder.bytesSinceSummary = 0;
+        dirty = true;
+    }
+
+    private void applyFolderCompletion(JSONObject data, long now) {
+        DeviceProgress device = getDevice(data.optString("device"));
+        String folderId = data.optString("folder");
+        long needBytes = data.optLong("needBytes");
+        long[] previous = device.folders.get(folderId);
+        if (previous != null && previous[0] > needBytes) {
+            long delta = previous[0] - needBytes;
+            device.bytes.add(delta, now);
+            uploadBytes.add(delta, now);
+        }
+        device.folders.put(folderId, new long[] {needBytes, data.optLong("globalBytes")});
+        dirty = true;
+    }
+
+    private void applyRemoteDownloadProgress(JSONObject data) {
+        JSONObject state = data.optJSONObject("state");
+        DeviceProgress device = getDevice(data.optString("device"));
+        device.filesInProgress.put(data.optString("folder"), state != null ? state.length() : 0);
+        dirty = true;
+    }
+
+    private void creditDownload(FolderProgress folder, long bytes, long now) {
+        folder.bytes.add(bytes, now);
+        folder.bytesSinceSummary += bytes;
+        downloadBytes.add(bytes, now);
+    }
+
+    private FolderProgress getFolder(String folderId) {
+        return folders.computeIfAbsent(folderId, id -> new FolderProgress(windowMs));
+    }
+
+    private DeviceProgress getDevice(String deviceId) {
+        return devices.computeIfAbsent(deviceId, id -> new DeviceProgress(windowMs));
+    }
+
+    // Caller holds the lock
+    private void reset() {
+        folders.clear();
+        devices.clear();
+        downloadBytes = new RateWindow(windowMs);
+        uploadBytes = new RateWindow(windowMs);
+        downloadItems = new RateWindow(windowMs);
+        dirty = true;
+    }
+
+    private void report() {
+        JSONObject progress;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            boolean active = downloadBytes.perSecond(now) > 0 || uploadBytes.perSecond(now) > 0 || downloadItems.perSecond(now) > 0;
+            // One more report after the rates fall to zero, then nothing until the next change
+            if (!dirty && !active && !lastReportActive) {
+                return;
+            }
+            try {
+                progress = buildReport(now);
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to build progress report", e);
+                return;
+            }
+            dirty = false;
+            lastReportActive = active;
+        }
+        SyncthingMetrics.getInstance().increment(SyncthingMetrics.PROGRESS_REPORTS);
+        for (Listener listener : listeners) {
+            listener.onProgress(progress);
+        }
+    }
+
+    // Caller holds the lock
+    private JSONObject buildReport(long now) throws JSONException {
+        JSONObject folderReports = new JSONObject();
+        long downloadNeedBytes = 0;
+        for (Map.Entry<String, FolderProgress> entry : folders.entrySet()) {
+            FolderProgress folder = entry.getValue();
+            double bytesPerSecond = folder.bytes.perSecond(now);
+            long needBytes = folder.remainingBytes();
+            downloadNeedBytes += needBytes;
+            folderReports.put(entry.getKey(), new JSONObject()
+                .put("bytesPerSecond", bytesPerSecond)
+                .put("itemsPerSecond", folder.items.perSecond(now))
+                .put("needBytes", needBytes)
+                .put("filesInProgress", folder.files.size())
+                .put("etaSeconds", etaSeconds(needBytes, bytesPerSecond)));
+        }
+
+        JSONObject deviceReports = new JSONObject();
+        long uploadNeedBytes = 0;
+        for (Map.Entry<String, DeviceProgress> entry : devices.entrySet()) {
+            DeviceProgress device = entry.getValue();
+            double bytesPerSecond = device.bytes.perSecond(now);
+            long needBytes = 0;
+            long globalBytes = 0;
+            for (long[] folder : device.folders.values()) {
+                needBytes += folder[0];
+                globalBytes += folder[1];
+            }
+            int filesInProgress = 0;
+            for (int files : device.filesInProgress.values()) {
+                filesInProgress += files;
+            }
+            uploadNeedBytes += needBytes;
+            deviceReports.put(entry.getKey(), new JSONObject()
+                .put("bytesPerSecond", bytesPerSecond)
+                .put("needBytes", needBytes)
+                .put("completion", globalBytes > 0 ? 100.0 * (globalBytes - needBytes) / globalBytes : 100.0)
+                .put("filesInProgress", filesInProgress)
+                .put("etaSeconds", etaSeconds(needBytes, bytesPerSecond)));
+        }
+
+        double downloadPerSecond = downloadBytes.perSecond(now);
+        double uploadPerSecond = uploadBytes.perSecond(now);
+        JSONObject global = new JSONObject()
+            .put("downloadBytesPerSecond", downloadPerSecond)
+            .put("uploadBytesPerSecond", uploadPerSecond)
+            .put("itemsPerSecond", downloadItems.perSecond(now))
+            .put("needBytes", downloadNeedBytes)
+            .put("etaSeconds", etaSeconds(downloadNeedBytes, downloadPerSecond))
+            .put("uploadNeedBytes", uploadNeedBytes)
+            .put("uploadEtaSeconds", etaSeconds(uploadNeedBytes, uploadPerSecond));
+
+        return new JSONObject()
+            .put("timestamp", System.currentTimeMillis())
+            .put("windowMs", windowMs)
+            .put("global", global)
+            .put("folders", folderReports)
+            .put("devices", deviceReports);
+    }
+
+    /**
+     * @return seconds until the remaining bytes are through at the current rate, 0 when nothing
+     *         remains and -1 when nothing is moving
+     */
+    private static long etaSeconds(long remainingBytes, double bytesPerSecond) {
+        if (remainingBytes <= 0) {
+            return 0;
+        }
+        return bytesPerSecond > 0 ? (long) Math.ceil(remainingBytes / bytesPerSecond) : -1;
+    }
+
+    private void startEventPump() {
+        Supplier<SyncthingRestClient> supplier;
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            supplier = restClientSupplier;
+        }
+        // Past transfers would only skew the rates
+        SyncthingEventPump.getInstance().ensureStarted(supplier, SyncthingEventPump.SINCE_LATEST);
+    }
+}
@@ -0,0 +1,213 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/*
+    Works out when a freshly launched daemon is able to serve REST requests. The
+    daemon's output is watched for its listening marker, with a poll of
+    /rest/noauth/health as a fallback if the marker never shows up.
+*/
+public class SyncthingReadiness implements SyncthingLogBuffer.LineListener {
+
+    public interface Listener {
+        void onReady(ReadyInfo readyInfo);
+    }
+
+    public record ReadyInfo(String address, long timeToReadyMs, String source) {}
+
+    private static final String TAG = "SyncthingReadiness";
+    private static final String LISTENING_MARKER = "GUI and API listening";
+    private static final long HEALTH_PROBE_DELAY_MS = 3000;
+    private static final long HEALTH_PROBE_INTERVAL_MS = 1000;
+    private static final int HEALTH_PROBE_TIMEOUT_MS = 1000;
+
+    private static SyncthingReadiness instance;
+
+    public static synchronized SyncthingReadiness getInstance() {
+        if (instance == null) {
+            instance = new SyncthingReadiness();
+        }
+        return instance;
+    }
+
+    /**
+     * Pulls the bound address out of a listening line. Handles both the classic
+     * "GUI and API listening on 127.0.0.1:8384" and the structured
+     * "GUI and API listening (address=127.0.0.1:8384 ...)" formats.
+     */
+    static String parseListeningAddress(String line, int markerIndex) {
+        int start = line.indexOf("address=", markerIndex);
+        if (start >= 0) {
+            start += "address=".length();
+        } else {
+            start = line.indexOf(" on ", markerIndex);
+            if (start < 0) {
+                return null;
+            }
+            start += " on ".length();
+        }
+        int end = start;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end)) && line.charAt(end) != ')') {
+            end++;
+        }
+        return end > start ? line.substring(start, end) : null;
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService probeExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CompletableFuture<ReadyInfo> readyFuture = new CompletableFuture<>();
+    private ScheduledFuture<?> healthProbe;
+    private Supplier<String> restBaseUrl;
+    private long launchedAt;
+    private long syncReadyAt = -1;
+    private ReadyInfo lastReadyInfo;
+
+    private SyncthingReadiness() {}
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Called right before the daemon process is started.
+     * @param restBaseUrl resolves the REST base URL for the health probe, evaluated lazily
+     *                    because config.xml may only be written once the daemon starts
+     */
+    public synchronized void onLaunch(Supplier<String> restBaseUrl) {
+        cancelHealthProbe();
+        // Callers already waiting since the last exit carry over to this launch
+        if (readyFuture.isDone()) {
+            this.readyFuture = new CompletableFuture<>();
+        }
+        this.restBaseUrl = restBaseUrl;
+        this.launchedAt = SystemClock.elapsedRealtime();
+        this.syncReadyAt = -1;
+        this.healthProbe = probeExecutor.scheduleWithFixedDelay(this::probeHealth, HEALTH_PROBE_DELAY_MS, HEALTH_PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void onExit(int exitCode) {
+        cancelHealthProbe();
+        if (!readyFuture.isDone()) {
+            readyFuture.completeExceptionally(new IOException(String.format("Syncthing exited with code %1$d before it became ready", exitCode)));
+        }
+        // Readiness belongs to a single launch, the next caller waits for the next one
+        this.readyFuture = new CompletableFuture<>();
+        this.lastReadyInfo = null;
+    }
+
+    public synchronized boolean isReady() {
+        return readyFuture.isDone() && !readyFuture.isCompletedExceptionally();
+    }
+
+    public synchronized ReadyInfo getLastReadyInfo() {
+        return lastReadyInfo;
+    }
+
+    /**
+     * @return milliseconds from launch until the first "Ready to synchronize" line, or -1
+     */
+    public synchronized long getTimeToSyncReadyMs() {
+        return syncReadyAt < 0 ? -1 : syncReadyAt - launchedAt;
+    }
+
+    /**
+     * @return a future completed with the ready info of the current launch, or failed once
+     *         the timeout elapses or the daemon exits first
+     */
+    public synchronized CompletableFuture<ReadyInfo> awaitReady(long timeoutMs) {
+        CompletableFuture<ReadyInfo> result = new CompletableFuture<>();
+        readyFuture.whenComplete((readyInfo, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(readyInfo);
+            }
+        });
+        if (!result.isDone()) {
+            probeExecutor.schedule(() -> result.completeExceptionally(new TimeoutException(String.format("Syncthing was not ready within %1$d ms", timeoutMs))), timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    @Override
+    public void onLine(int template, String line) {
+        if (template == SyncthingLogParser.TEMPLATE_GUI_LISTENING) {
+            markReady(parseListeningAddress(line, line.indexOf(LISTENING_MARKER)), "stdout");
+            return;
+        }
+        if (template == SyncthingLogParser.TEMPLATE_READY) {
+            synchronized (this) {
+                if (syncReadyAt < 0) {
+                    syncReadyAt = SystemClock.elapsedRealtime();
+                }
+            }
+        }
+    }
+
+    private void probeHealth() {
+        Supplier<String> baseUrl;
+        synchronized (this) {
+            if (readyFuture.isDone()) {
+                cancelHealthProbe();
+                return;
+            }
+            baseUrl = restBaseUrl;
+        }
+        try {
+            String body = new SyncthingRestClient(baseUrl.get(), null).get("noauth/health", null, HEALTH_PROBE_TIMEOUT_MS);
+            if (body.contains("OK")) {
+                String url = baseUrl.get();
+                markReady(url.substring(url.indexOf("://") + 3, url.lastIndexOf("/rest")), "health");
+            }
+        } catch (IOException e) {
+            // Not up yet
+        }
+    }
+
+    private void markReady(String address, String source) {
+        ReadyInfo readyInfo;
+        synchronized (this) {
+            if (readyFuture.isDone()) {
+                return;
+            }
+            cancelHealthProbe();
+            readyInfo = new ReadyInfo(address, SystemClock.elapsedRealtime() - launchedAt, source);
+            lastReadyInfo = readyInfo;
+            readyFuture.complete(readyInfo);
+        }
+
+        SyncthingMetrics.getInstance().record(SyncthingMetrics.PROCESS_TIME_TO_READY_MS, readyInfo.timeToReadyMs());
+        Log.i(TAG, String.format("Syncthing ready on %1$s after %2$d ms (%3$s)", address, readyInfo.timeToReadyMs(), source));
+        for (Listener listener : listeners) {
+            listener.onReady(readyInfo);
+        }
+    }
+
+    private void cancelHealthProbe() {
+        if (healthProbe != null) {
+            healthProbe.cancel(false);
+            healthProbe = null;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.anonymous.syncthingrn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/*
+    Minimal HTTP client for the Syncthing REST API. Connections are left open after
+    each response body is consumed so the platform keep-alive pool can reuse them.
+
+    With TLS enabled the GUI serves a self-signed certificate. HTTPS connections trust
+    that certificate and nothing else, read from the file Syncthing generated it into.
+*/
+public class SyncthingRestClient {
+
+    public static class RestException extends IOException {
+        private final int statusCode;
+
+        public RestException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    public static final String DEFAULT_BASE_URL = "http://127.0.0.1:8384/rest";
+
+    private static final String TAG = "SyncthingRestClient";
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+
+    private static File pinnedCertificateFile;
+    private static Certificate pinnedCertificate;
+    private static SSLSocketFactory pinnedSocketFactory;
+    private static long pinnedModified = -1;
+
+    private final String baseUrl;
+    private final String apiKey;
+
+    /**
+     * @param certificateFile https-cert.pem of the daemon, read again whenever it changes
+     */
+    public static synchronized void pinCertificate(File certificateFile) {
+        if (!certificateFile.equals(pinnedCertificateFile)) {
+            pinnedCertificateFile = certificateFile;
+            pinnedSocketFactory = null;
+        }
+    }
+
+    public SyncthingRestClient(String baseUrl, String apiKey) {
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public String get(String endpoint, Map<String, String> params) throws IOException {
+        return request("GET", endpoint, params, null, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public String get(String endpoint, Map<String, String> params, int readTimeoutMs) throws IOException {
+        return request("GET", endpoint, params, null, readTimeoutMs);
+    }
+
+    public String post(String endpoint, Map<String, String> params, String body) throws IOException {
+        return request("POST", endpoint, params, body, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public String put(String endpoint, String body) throws IOException {
+        return request("PUT", endpoint, null, body, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public String patch(String endpoint, String body) throws IOException {
+        return request("PATCH", endpoint, null, body, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    private String request(String method, String endpoint, Map<String, String> params, String body, int readTimeoutMs) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(buildUrl(endpoint, params)).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+            httpsConnection.setSSLSocketFactory(getPinnedSocketFactory());
+            // The certificate is issued to "syncthing", not the loopback address, so match it by value
+            httpsConnection.setHostnameVerifier((hostname, session) -> {
+                try {
+                    Certificate[] chain = session.getPeerCertificates();
+                    return chain.length > 0 && chain[0].equals(getPinnedCertificate());
+                } catch (SSLPeerUnverifiedException e) {
+                    return false;
+                }
+            });
+        }
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(readTimeoutMs);
+        connection.setRequestProperty("Accept", "application/json");
+        if (apiKey != null && !apiKey.isEmpty()) {
+            connection.setRequestProperty("X-API-Key", apiKey);
+        }
+
+        if (body != null) {
+            byte[] payload = body.getBytes(StandardCharsets.UTF_8);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setFixedLengthStreamingMode(payload.length);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(payload);
+            }
+        }
+
+        int statusCode = connection.getResponseCode();
+        if (statusCode < 200 || statusCode >= 300) {
+            // Drain the error body so the connection can still go back to the pool
+            InputStream errorStream = connection.getErrorStream();
+            String message = errorStream != null ? readFully(errorStream) : "";
+            throw new RestException(statusCode, String.format("%1$s %2$s failed with %3$d: %4$s", method, endpoint, statusCode, message.trim()));
+        }
+
+        return readFully(connection.getInputStream());
+    }
+
+    private static synchronized SSLSocketFactory getPinnedSocketFactory() throws IOException {
+        if (pinnedCertificateFile == null) {
+            throw new IOException("No certificate pinned for the Syncthing GUI");
+        }
+        long modified = pinnedCertificateFile.lastModified();
+        if (pinnedSocketFactory != null && modified == pinnedModified) {
+            return pinnedSocketFactory;
+        }
+        try (InputStream inputStream = new FileInputStream(pinnedCertificateFile)) {
+            Certificate certificate = CertificateFactory.getInstance("X.509").generateCertificate(inputStream);
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            keyStore.setCertificateEntry("syncthing", certificate);
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+            pinnedCertificate = certificate;
+            pinnedSocketFactory = sslContext.getSocketFactory();
+            pinnedModified = modified;
+            return pinnedSocketFactory;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to load " + pinnedCertificateFile, e);
+        }
+    }
+
+    private static synchronized Certificate getPinnedCertificate() {
+        return pinnedCertificate;
+    }
+
+    private String buildUrl(String endpoint, Map<String, String> params) throws IOException {
+        StringBuilder url = new StringBuilder(baseUrl).append('/').append(endpoint);
+        if (params != null && !params.isEmpty()) {
+            char separator = endpoint.indexOf('?') >= 0 ? '&' : '?';
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                if (param.getValue() == null) {
+                    continue;
+                }
+                url.append(separator)
+                    .append(URLEncoder.encode(param.getKey(), "UTF-8"))
+                    .append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+                separator = '&';
+            }
+        }
+        return url.toString();
+    }
+
+    private static String readFully(InputStream inputStream) throws IOException {
+        try (InputStream stream = inputStream) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = stream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            return buffer.toString("UTF-8");
+        }
+    }
+}
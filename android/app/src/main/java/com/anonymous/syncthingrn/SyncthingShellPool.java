@@ -0,0 +1,207 @@
+package com.anonymous.syncthingrn;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    A small pool of long-lived `sh` processes. Each command is written to an idle
+    session followed by an `echo` of a unique sentinel and `$?`, so the output of
+    one command can be told apart from the next without spawning a new shell.
+    Commands run in a subshell, so a `cd`, `export` or assignment stays with the
+    command that made it and the next caller gets the shell as it was.
+*/
+public class SyncthingShellPool {
+
+    public static class ShellTimeoutException extends TimeoutException {
+        public ShellTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private static final String TAG = "SyncthingShellPool";
+    private static final int DEFAULT_POOL_SIZE = 2;
+    private static final AtomicInteger sessionCounter = new AtomicInteger();
+
+    private static SyncthingShellPool instance;
+
+    public static synchronized SyncthingShellPool getInstance() {
+        if (instance == null) {
+            instance = new SyncthingShellPool(DEFAULT_POOL_SIZE);
+        }
+        return instance;
+    }
+
+    /*
+        One `sh` process. A reader thread moves output lines into a queue so that
+        the caller can wait for the sentinel with a timeout.
+    */
+    private static class ShellSession {
+        // Marks the end of the output stream so waiting callers return immediately
+        private static final String EOF = new String("EOF");
+
+        private final Process process;
+        private final BufferedWriter writer;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        ShellSession() throws IOException {
+            ProcessBuilder processBuilder = new ProcessBuilder("sh");
+            processBuilder.redirectErrorStream(true);
+            process = processBuilder.start();
+            writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+            Thread readerThread = new Thread(this::readOutput, TAG + "-" + sessionCounter.incrementAndGet());
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        SyncthingCore.ShellCommandResponse execute(String command, long timeoutMs) throws IOException, InterruptedException, ShellTimeoutException {
+            String sentinel = "__SYNCTHING_SHELL_" + UUID.randomUUID().toString().replace("-", "") + "__";
+            lines.clear();
+
+            // A subshell keeps the command's state to itself, captures its stderr and stops it reading our command stream
+            writer.write("(\n");
+            writer.write(command);
+            writer.write("\n) </dev/null 2>&1; echo \"" + sentinel + "$?\"\n");
+            writer.flush();
+
+            List<String> logs = new ArrayList<>();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                String line = remaining > 0 ? lines.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (line == null) {
+                    // Also the case for a command that never closes its quotes, the caller drops this session
+                    throw new ShellTimeoutException(String.format("Shell command timed out after %1$d ms", timeoutMs));
+                }
+                if (line == EOF) {
+                    // The command exited the shell itself, report the shell's exit code
+                    logs.add("Shell session exited while running command");
+                    return new SyncthingCore.ShellCommandResponse(process.waitFor(), logs);
+                }
+
+                int sentinelIndex = line.indexOf(sentinel);
+                if (sentinelIndex < 0) {
+                    logs.add(line);
+                    continue;
+                }
+                // Output that did not end with a newline shares the line with the sentinel
+                if (sentinelIndex > 0) {
+                    logs.add(line.substring(0, sentinelIndex));
+                }
+                return new SyncthingCore.ShellCommandResponse(parseExitCode(line.substring(sentinelIndex + sentinel.length())), logs);
+            }
+        }
+
+        void destroy() {
+            // destroy() only signals the shell, a timed out command's subshell and its children would keep running
+            int pid = SyncthingProcessRegistry.getPid(process);
+            if (pid > 0) {
+                SyncthingProcessRegistry.killDescendants(pid);
+            }
+            process.destroy();
+        }
+
+        private void readOutput() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Shell session output closed", e);
+            } finally {
+                lines.add(EOF);
+            }
+        }
+
+        private static int parseExitCode(String value) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return 255;
+            }
+        }
+    }
+
+    private final BlockingQueue<ShellSession> idleSessions = new LinkedBlockingQueue<>();
+    private final Semaphore permits;
+
+    public SyncthingShellPool(int poolSize) {
+        this.permits = new Semaphore(poolSize, true);
+    }
+
+    /**
+     * Runs a command on a pooled shell session.
+     * @param command shell command, may span multiple lines
+     * @param timeoutMs time allowed for waiting on a session plus running the command
+     */
+    public SyncthingCore.ShellCommandResponse execute(String command, long timeoutMs) throws IOException, InterruptedException, ShellTimeoutException {
+        long startedAt = System.nanoTime();
+        long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new ShellTimeoutException(String.format("No shell session became available within %1$d ms", timeoutMs));
+        }
+
+        ShellSession session = null;
+        boolean reusable = false;
+        try {
+            session = acquireSession();
+            long remainingMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            SyncthingCore.ShellCommandResponse response = session.execute(command, remainingMs);
+            reusable = session.isAlive();
+            return response;
+        } catch (InterruptedException e) {
+            // The session is dropped below, keep the interrupt for whoever called us
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            SyncthingMetrics.getInstance().record(SyncthingMetrics.SHELL_COMMAND_MS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            if (session != null) {
+                if (reusable) {
+                    idleSessions.add(session);
+                } else {
+                    // Timed out, interrupted or exited, the next command gets a fresh session
+                    session.destroy();
+                }
+            }
+            permits.release();
+        }
+    }
+
+    public void shutdown() {
+        ShellSession session;
+        while ((session = idleSessions.poll()) != null) {
+            session.destroy();
+        }
+    }
+
+    private ShellSession acquireSession() throws IOException {
+        ShellSession session;
+        while ((session = idleSessions.poll()) != null) {
+            if (session.isAlive()) {
+                return session;
+            }
+            session.destroy();
+        }
+        return new ShellSession();
+    }
+}
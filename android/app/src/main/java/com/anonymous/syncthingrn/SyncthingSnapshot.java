@@ -0,0 +1,185 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Builds the dashboard state in one go. Config and connections are fetched in
+    parallel, then db/status and db/completion for every folder, all over the
+    keep-alive connections of a single client. The responses are merged into one
+    object so JS gets a single bridge call and no JSON to parse.
+*/
+public class SyncthingSnapshot {
+
+    private static final String TAG = "SyncthingSnapshot";
+    // Enough to overlap the per folder requests without flooding the daemon
+    private static final int FETCH_THREADS = 4;
+
+    // Fields of db/status the dashboard shows, the rest stays in the daemon
+    private static final String[] STATUS_FIELDS = {
+        "state", "stateChanged", "error", "errors", "pullErrors",
+        "globalBytes", "globalFiles", "globalDirectories", "globalTotalItems",
+        "localBytes", "localFiles", "localDirectories", "localTotalItems",
+        "needBytes", "needFiles", "needDirectories", "needDeletes", "needTotalItems",
+        "inSyncBytes", "inSyncFiles", "receiveOnlyTotalItems", "sequence"
+    };
+    private static final String[] COMPLETION_FIELDS = {"completion", "globalBytes", "needBytes", "globalItems", "needItems", "needDeletes"};
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService fetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, TAG + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SyncthingSnapshot() {}
+
+    /**
+     * Fetches and merges the dashboard state. A folder whose status cannot be read carries an
+     * `error` instead of failing the whole snapshot.
+     * @return object with `devices`, `folders`, `total`, `timestamp` and `durationMs`
+     */
+    public static JSONObject fetch(SyncthingRestClient restClient) throws IOException, JSONException, InterruptedException {
+        long startedAt = SystemClock.elapsedRealtime();
+        CompletableFuture<String> configRequest = request(restClient, "config", null);
+        CompletableFuture<String> connectionsRequest = request(restClient, "system/connections", null);
+
+        JSONObject config = new JSONObject(await(configRequest));
+        JSONArray folders = config.optJSONArray("folders");
+        folders = folders != null ? folders : new JSONArray();
+
+        // Queue the per folder requests before waiting on connections so everything overlaps
+        List<CompletableFuture<String>> statusRequests = new ArrayList<>();
+        List<CompletableFuture<String>> completionRequests = new ArrayList<>();
+        for (int i = 0; i < folders.length(); i++) {
+            String folderId = folders.getJSONObject(i).getString("id");
+            statusRequests.add(request(restClient, "db/status", Collections.singletonMap("folder", folderId)));
+            completionRequests.add(request(restClient, "db/completion", Collections.singletonMap("folder", folderId)));
+        }
+
+        JSONObject connections = new JSONObject(await(connectionsRequest));
+        JSONObject deviceConnections = connections.optJSONObject("connections");
+        JSONArray devices = config.optJSONArray("devices");
+        JSONArray mergedDevices = new JSONArray();
+        for (int i = 0; devices != null && i < devices.length(); i++) {
+            JSONObject device = devices.getJSONObject(i);
+            JSONObject connection = deviceConnections != null ? deviceConnections.optJSONObject(device.optString("deviceID")) : null;
+            mergedDevices.put(deviceFromConfig(device).put("connection", connection != null ? connection : JSONObject.NULL));
+        }
+
+        JSONArray mergedFolders = new JSONArray();
+        for (int i = 0; i < folders.length(); i++) {
+            JSONObject folder = folders.getJSONObject(i);
+            JSONObject mergedFolder = folderFromConfig(folder);
+            try {
+                mergedFolder.put("status", pickStatus(new JSONObject(await(statusRequests.get(i)))));
+                mergedFolder.put("completion", pickCompletion(new JSONObject(await(completionRequests.get(i)))));
+            } catch (IOException | JSONException e) {
+                mergedFolder.put("error", e.getMessage());
+            }
+            mergedFolders.put(mergedFolder);
+        }
+
+        long durationMs = SystemClock.elapsedRealtime() - startedAt;
+        SyncthingMetrics.getInstance().record(SyncthingMetrics.REST_SNAPSHOT_MS, durationMs);
+        return new JSONObject()
+            .put("timestamp", System.currentTimeMillis())
+            .put("durationMs", durationMs)
+            .put("devices", mergedDevices)
+            .put("folders", mergedFolders)
+            .put("total", connections.optJSONObject("total") != null ? connections.getJSONObject("total") : JSONObject.NULL);
+    }
+
+    private static CompletableFuture<String> request(SyncthingRestClient restClient, String endpoint, Map<String, String> params) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return restClient.get(endpoint, params);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, fetchExecutor);
+    }
+
+    private static String await(CompletableFuture<String> request) throws IOException, InterruptedException {
+        try {
+            return request.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Structural fields of a folder from its config entry.
+     */
+    static JSONObject folderFromConfig(JSONObject folder) throws JSONException {
+        return new JSONObject()
+            .put("id", folder.getString("id"))
+            .put("label", folder.optString("label"))
+            .put("path", folder.optString("path"))
+            .put("type", folder.optString("type"))
+            .put("paused", folder.optBoolean("paused"))
+            .put("devices", deviceIds(folder.optJSONArray("devices")));
+    }
+
+    /**
+     * Structural fields of a device from its config entry.
+     */
+    static JSONObject deviceFromConfig(JSONObject device) throws JSONException {
+        return new JSONObject()
+            .put("deviceID", device.optString("deviceID"))
+            .put("name", device.optString("name"))
+            .put("paused", device.optBoolean("paused"));
+    }
+
+    /**
+     * Trims a db/status response or FolderSummary payload to the dashboard fields.
+     */
+    static JSONObject pickStatus(JSONObject status) throws JSONException {
+        return pick(status, STATUS_FIELDS);
+    }
+
+    /**
+     * Trims a db/completion response or FolderCompletion payload to the dashboard fields.
+     */
+    static JSONObject pickCompletion(JSONObject completion) throws JSONException {
+        return pick(completion, COMPLETION_FIELDS);
+    }
+
+    private static JSONObject pick(JSONObject source, String[] fields) throws JSONException {
+        JSONObject picked = new JSONObject();
+        for (String field : fields) {
+            if (source.has(field)) {
+                picked.put(field, source.get(field));
+            }
+        }
+        return picked;
+    }
+
+    private static JSONArray deviceIds(JSONArray folderDevices) throws JSONException {
+        JSONArray ids = new JSONArray();
+        for (int i = 0; folderDevices != null && i < folderDevices.length(); i++) {
+            ids.put(folderDevices.getJSONObject(i).optString("deviceID"));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,498 @@
+package com.anonymous.syncthingrn;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/*
+    In memory model of folders, devices and connections. It is seeded once from
+    REST and then kept current from the event stream, so nothing has to poll
+    db/status or system/connections. Every change bumps a version and produces a
+    diff, so readers can take a versioned copy or follow the diffs.
+
+    Stored objects are never mutated, an update replaces them with a modified copy,
+    so a state copy can be handed out without holding the lock.
+*/
+public class SyncthingStateModel implements SyncthingEventPump.Listener, SyncthingReadiness.Listener {
+
+    public interface Listener {
+        /**
+         * @param diff `version`, `baseVersion`, changed fields under `folders` and `devices` keyed by id,
+         *             `removedFolders`, `removedDevices`, and `reset` when the whole model was reloaded
+         */
+        void onDiff(JSONObject diff);
+    }
+
+    // Events the model consumes, the event pump has to let at least these through
+    public static final String[] EVENT_TYPES = {
+        "FolderSummary",
+        "StateChanged",
+        "FolderCompletion",
+        "DeviceConnected",
+        "DeviceDisconnected",
+        "ConfigSaved"
+    };
+
+    private static final String TAG = "SyncthingStateModel";
+
+    private static SyncthingStateModel instance;
+
+    public static synchronized SyncthingStateModel getInstance() {
+        if (instance == null) {
+            instance = new SyncthingStateModel();
+        }
+        return instance;
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService seedExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, JSONObject> folders = new LinkedHashMap<>();
+    private final Map<String, JSONObject> devices = new LinkedHashMap<>();
+    // Batches that arrived while a seed was in flight, replayed on top of it
+    private final List<JSONArray> pendingBatches = new ArrayList<>();
+    private Supplier<SyncthingRestClient> restClientSupplier;
+    private long version = 0;
+    // Last event the seed already reflects, older events are skipped
+    private long seedEventId = 0;
+    private boolean started = false;
+    private boolean seeded = false;
+    private boolean seeding = false;
+    // A launch became ready during a seed, which may have read the previous launch
+    private boolean reseedRequested = false;
+
+    private SyncthingStateModel() {}
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Subscribes to events and readiness and seeds the model, starting the event pump if nothing
+     * else has. Does nothing if already started.
+     * @param restClientSupplier supplies a client for the current launch, may return null before config.xml exists
+     */
+    public void start(Supplier<SyncthingRestClient> restClientSupplier) {
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            this.restClientSupplier = restClientSupplier;
+            this.started = true;
+        }
+        SyncthingEventPump.getInstance().addListener(this, EVENT_TYPES);
+        SyncthingReadiness.getInstance().addListener(this);
+        seed();
+    }
+
+    public void stop() {
+        // Stops the pump too unless someone else still listens
+        SyncthingEventPump.getInstance().removeListener(this);
+        SyncthingReadiness.getInstance().removeListener(this);
+        synchronized (this) {
+            started = false;
+            seeded = false;
+            reseedRequested = false;
+            folders.clear();
+            devices.clear();
+            pendingBatches.clear();
+        }
+    }
+
+    /**
+     * @return `version`, `seeded` and the `folders` and `devices` arrays at that version
+     */
+    public JSONObject getState() {
+        JSONArray folderArray = new JSONArray();
+        JSONArray deviceArray = new JSONArray();
+        long stateVersion;
+        boolean stateSeeded;
+        synchronized (this) {
+            folders.values().forEach(folderArray::put);
+            devices.values().forEach(deviceArray::put);
+            stateVersion = version;
+            stateSeeded = seeded;
+        }
+        JSONObject state = new JSONObject();
+        try {
+            state.put("version", stateVersion);
+            state.put("seeded", stateSeeded);
+            state.put("folders", folderArray);
+            state.put("devices", deviceArray);
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to build state", e);
+        }
+        return state;
+    }
+
+    /**
+     * Reloads the whole model from REST in the background. Events that arrive meanwhile are
+     * replayed on top of the new state once it is in. Called during a seed, another one runs
+     * once the current one is done.
+     */
+    public void seed() {
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            if (seeding) {
+                reseedRequested = true;
+                return;
+            }
+            seeding = true;
+        }
+        seedExecutor.execute(() -> {
+            while (runSeed()) {
+                Log.i(TAG, "A launch became ready during the seed, seeding again");
+            }
+            startEventPump();
+        });
+    }
+
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        // A new launch numbers its events from scratch and may have a different config, events of
+        // the previous one must not hide its events until the seed is in
+        synchronized (this) {
+            seeded = false;
+            seedEventId = 0;
+        }
+        seed();
+    }
+
+    @Override
+    public void onEvents(JSONArray events) {
+        JSONObject diff;
+        synchronized (this) {
+            if (seeding) {
+                pendingBatches.add(events);
+                return;
+            }
+            if (!seeded) {
+                return;
+            }
+            diff = newDiff(false);
+            applyEvents(events, diff);
+            if (!commit(diff)) {
+                return;
+            }
+        }
+        notifyListeners(diff);
+    }
+
+    /**
+     * @return true if another seed was asked for meanwhile, `seeding` is then still set
+     */
+    private boolean runSeed() {
+        JSONObject diff = null;
+        boolean reseed = false;
+        try {
+            SyncthingRestClient restClient = restClientSupplier.get();
+            if (restClient == null) {
+                throw new IOException("Syncthing has no config.xml yet");
+            }
+            // Read the event cursor first, anything after it may postdate the snapshot and is applied on top
+            long eventId = SyncthingEventPump.latestEventId(restClient);
+            JSONObject snapshot = SyncthingSnapshot.fetch(restClient);
+
+            synchronized (this) {
+                if (!started) {
+                    return false;
+                }
+                folders.clear();
+                devices.clear();
+                seedEventId = eventId;
+                JSONArray folderArray = snapshot.getJSONArray("folders");
+                for (int i = 0; i < folderArray.length(); i++) {
+                    JSONObject folder = folderArray.getJSONObject(i);
+                    folders.put(folder.getString("id"), folder);
+                }
+                JSONArray deviceArray = snapshot.getJSONArray("devices");
+                for (int i = 0; i < deviceArray.length(); i++) {
+                    JSONObject device = deviceArray.getJSONObject(i);
+                    devices.put(device.getString("deviceID"), device);
+                }
+
+                // The reset diff carries no fields, readers fetch the state again
+                diff = newDiff(true);
+                for (JSONArray events : pendingBatches) {
+                    applyEvents(events, newDiff(false));
+                }
+                pendingBatches.clear();
+                seeded = true;
+                commit(diff);
+                Log.i(TAG, String.format("Seeded with %1$d folders and %2$d devices", folders.size(), devices.size()));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to seed state model, waiting for the next launch", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                reseed = reseedRequested && started;
+                reseedRequested = false;
+                seeding = reseed;
+                pendingBatches.clear();
+            }
+        }
+        if (diff != null) {
+            notifyListeners(diff);
+        }
+        return reseed;
+    }
+
+    private void startEventPump() {
+        long since;
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            // Continue right after the seed, without one there is no history worth replaying
+            since = seeded ? seedEventId : SyncthingEventPump.SINCE_LATEST;
+        }
+        SyncthingEventPump.getInstance().ensureStarted(restClientSupplier, since);
+    }
+
+    private void applyEvents(JSONArray events, JSONObject diff) {
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.optJSONObject(i);
+            JSONObject data = event != null ? event.optJSONObject("data") : null;
+            if (data == null || event.optLong("id") <= seedEventId) {
+                continue;
+            }
+            try {
+                applyEvent(event.optString("type"), data, diff);
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring malformed " + event.optString("type") + " event", e);
+            }
+        }
+    }
+
+    private void applyEvent(String type, JSONObject data, JSONObject diff) throws JSONException {
+        switch (type) {
+            case "FolderSummary": {
+                JSONObject summary = data.optJSONObject("summary");
+                if (summary != null) {
+                    updateFolder(data.optString("folder"), "status", SyncthingSnapshot.pickStatus(summary), diff);
+                }
+                break;
+            }
+            case "StateChanged": {
+                JSONObject folder = folders.get(data.optString("folder"));
+                if (folder != null) {
+                    JSONObject status = copy(folder.optJSONObject("status")).put("state", data.optString("to"));
+                    updateFolder(folder.getString("id"), "status", status, diff);
+                }
+                break;
+            }
+            case "FolderCompletion": {
+                JSONObject folder = folders.get(data.optString("folder"));
+                if (folder != null) {
+                    // Completion per remote device, the aggregate from the seed stays under `completion`
+                    JSONObject remoteCompletion = copy(folder.optJSONObject("remoteCompletion"))
+                        .put(data.optString("device"), SyncthingSnapshot.pickCompletion(data));
+                    updateFolder(folder.getString("id"), "remoteCompletion", remoteCompletion, diff);
+                }
+                break;
+            }
+            case "DeviceConnected": {
+                JSONObject device = devices.get(data.optString("id"));
+                if (device != null) {
+                    JSONObject connection = copy(device.optJSONObject("connection"))
+                        .put("connected", true)
+                        .put("address", data.optString("addr"))
+                        .put("type", data.optString("type"))
+                        .put("clientVersion", data.optString("clientVersion"));
+                    updateDevice(data.optString("id"), "connection", connection, diff);
+                }
+                break;
+            }
+            case "DeviceDisconnected": {
+                JSONObject device = devices.get(data.optString("id"));
+                if (device != null) {
+                    JSONObject connection = copy(device.optJSONObject("connection")).put("connected", false);
+                    updateDevice(data.optString("id"), "connection", connection, diff);
+                }
+                break;
+            }
+            case "ConfigSaved":
+                applyConfig(data, diff);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /*
+        Reconciles folders and devices with a saved config. Entries that stay keep their
+        status and connection, new folders get theirs from the FolderSummary that follows.
+    */
+    private void applyConfig(JSONObject config, JSONObject diff) throws JSONException {
+        JSONArray folderArray = config.optJSONArray("folders");
+        if (folderArray != null) {
+            Map<String, JSONObject> configured = new LinkedHashMap<>();
+            for (int i = 0; i < folderArray.length(); i++) {
+                JSONObject folder = SyncthingSnapshot.folderFromConfig(folderArray.getJSONObject(i));
+                configured.put(folder.getString("id"), folder);
+            }
+            reconcile(folders, configured, diff.getJSONObject("folders"), diff.getJSONArray("removedFolders"));
+        }
+
+        JSONArray deviceArray = config.optJSONArray("devices");
+        if (deviceArray != null) {
+            Map<String, JSONObject> configured = new LinkedHashMap<>();
+            for (int i = 0; i < deviceArray.length(); i++) {
+                JSONObject device = SyncthingSnapshot.deviceFromConfig(deviceArray.getJSONObject(i));
+                configured.put(device.getString("deviceID"), device);
+            }
+            reconcile(devices, configured, diff.getJSONObject("devices"), diff.getJSONArray("removedDevices"));
+        }
+    }
+
+    private static void reconcile(Map<String, JSONObject> current, Map<String, JSONObject> configured, JSONObject changes, JSONArray removed) throws JSONException {
+        Iterator<Map.Entry<String, JSONObject>> iterator = current.entrySet().iterator();
+        while (iterator.hasNext()) {
+            String id = iterator.next().getKey();
+            if (!configured.containsKey(id)) {
+                iterator.remove();
+                removed.put(id);
+            }
+        }
+
+        for (Map.Entry<String, JSONObject> entry : configured.entrySet()) {
+            JSONObject existing = current.get(entry.getKey());
+            JSONObject updated = existing != null ? copy(existing) : new JSONObject();
+            JSONObject changed = new JSONObject();
+            Iterator<String> keys = entry.getValue().keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                Object value = entry.getValue().get(key);
+                Object previous = existing != null ? existing.opt(key) : null;
+                if (previous == null || !previous.toString().equals(value.toString())) {
+                    updated.put(key, value);
+                    changed.put(key, value);
+                }
+            }
+            if (changed.length() > 0) {
+                current.put(entry.getKey(), updated);
+                mergeChanges(changes, entry.getKey(), changed);
+            }
+        }
+    }
+
+    private void updateFolder(String folderId, String field, JSONObject value, JSONObject diff) throws JSONException {
+        JSONObject folder = folders.get(folderId);
+        if (folder == null) {
+            return;
+        }
+        folders.put(folderId, copy(folder).put(field, value));
+        mergeChanges(diff.getJSONObject("folders"), folderId, new JSONObject().put(field, value));
+    }
+
+    private void updateDevice(String deviceId, String field, JSONObject value, JSONObject diff) throws JSONException {
+        JSONObject device = devices.get(deviceId);
+        if (device == null) {
+            return;
+        }
+        devices.put(deviceId, copy(device).put(field, value));
+        mergeChanges(diff.getJSONObject("devices"), deviceId, new JSONObject().put(field, value));
+    }
+
+    private static void mergeChanges(JSONObject changes, String id, JSONObject changed) throws JSONException {
+        JSONObject existing = changes.optJSONObject(id);
+        if (existing == null) {
+            changes.put(id, changed);
+            return;
+        }
+        Iterator<String> keys = changed.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            existing.put(key, changed.get(key));
+        }
+    }
+
+    private JSONObject newDiff(boolean reset) {
+        JSONObject diff = new JSONObject();
+        try {
+            diff.put("baseVersion", version);
+            diff.put("reset", reset);
+            diff.put("folders", new JSONObject());
+            diff.put("devices", new JSONObject());
+            diff.put("removedFolders", new JSONArray());
+            diff.put("removedDevices", new JSONArray());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to build diff", e);
+        }
+        return diff;
+    }
+
+    /**
+     * Bumps the version if the diff changed anything.
+     * @return false if the diff was empty
+     */
+    private boolean commit(JSONObject diff) {
+        boolean empty = !diff.optBoolean("reset")
+            && diff.optJSONObject("folders").length() == 0
+            && diff.optJSONObject("devices").length() == 0
+            && diff.optJSONArray("removedFolders").length() == 0
+            && diff.optJSONArray("removedDevices").length() == 0;
+        if (empty) {
+            return false;
+        }
+        version++;
+        try {
+            diff.put("version", version);
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to stamp diff", e);
+        }
+        return true;
+    }
+
+    private void notifyListeners(JSONObject diff) {
+        for (Listener listener : listeners) {
+            listener.onDiff(diff);
+        }
+    }
+
+    private static JSONObject copy(JSONObject source) throws JSONException {
+        JSONObject copy = new JSONObject();
+        if (source == null) {
+            return copy;
+        }
+        Iterator<String> keys = source.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            copy.put(key, source.get(key));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,314 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Owns the lifecycle of the daemon inside the worker. Exit codes decide whether a
+    launch is restarted immediately, restarted after a backoff or left stopped,
+    and a health watchdog restarts an instance whose REST API stops answering.
+*/
+public class SyncthingSupervisor implements SyncthingReadiness.Listener {
+
+    public enum State {
+        STOPPED,
+        STARTING,
+        READY,
+        DEGRADED,
+        CRASHED,
+        STOPPING
+    }
+
+    public interface Listener {
+        void onStateChanged(State state, int restartCount, int lastExitCode);
+    }
+
+    // Syncthing's own exit codes, 3 and 4 ask the monitor to launch it again
+    public static final int EXIT_CODE_SUCCESS = 0;
+    public static final int EXIT_CODE_RESTARTING = 3;
+    public static final int EXIT_CODE_UPGRADING = 4;
+
+    private static final String TAG = "SyncthingSupervisor";
+    private static final long BACKOFF_BASE_MS = 1000;
+    private static final long BACKOFF_MAX_MS = 5 * 60 * 1000;
+    // A launch that stayed up this long resets the backoff
+    private static final long STABLE_RUN_MS = 2 * 60 * 1000;
+    private static final int MAX_CONSECUTIVE_CRASHES = 10;
+    private static final long WATCHDOG_INTERVAL_MS = 30000;
+    private static final int WATCHDOG_TIMEOUT_MS = 5000;
+    private static final int WATCHDOG_MAX_FAILURES = 3;
+
+    private static SyncthingSupervisor instance;
+
+    public static synchronized SyncthingSupervisor getInstance() {
+        if (instance == null) {
+            instance = new SyncthingSupervisor();
+        }
+        return instance;
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Random jitter = new Random();
+    private final Object lock = new Object();
+    private final ScheduledExecutorService watchdogExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile State state = State.STOPPED;
+    private volatile SyncthingCore syncthingCore;
+    private volatile boolean stopRequested = false;
+    private volatile boolean restartRequested = false;
+    private volatile boolean watchdogTripped = false;
+    private volatile boolean gaveUp = false;
+    private volatile int restartCount = 0;
+    private volatile int lastExitCode = -1;
+    private int consecutiveCrashes = 0;
+    private int watchdogFailures = 0;
+    private ScheduledFuture<?> watchdog;
+
+    private SyncthingSupervisor() {
+        SyncthingReadiness.getInstance().addListener(this);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getRestartCount() {
+        return restartCount;
+    }
+
+    public int getLastExitCode() {
+        return lastExitCode;
+    }
+
+    /**
+     * @return true if the last supervision loop ended because the daemon kept crashing
+     */
+    public boolean hasGivenUp() {
+        return gaveUp;
+    }
+
+    /**
+     * @return true while a supervision loop owns a daemon, whatever state it is in
+     */
+    public boolean isRunning() {
+        return state != State.STOPPED;
+    }
+
+    /**
+     * Launches the daemon and keeps it running until stop() is called, the daemon shuts
+     * down cleanly or it crashes too many times in a row. Blocks the calling thread.
+     * @return the exit code of the last launch
+     */
+    public int runBlocking(SyncthingCore syncthingCore, String[] parameters, HashMap<String, String> environmentVariables) throws IOException, SyncthingCore.ExecutableNotFoundException {
+        synchronized (lock) {
+            if (isRunning()) {
+                Log.w(TAG, "Supervisor is already running, ignoring second start");
+                return lastExitCode;
+            }
+            this.syncthingCore = syncthingCore;
+            this.stopRequested = false;
+            this.consecutiveCrashes = 0;
+            this.gaveUp = false;
+            setState(State.STARTING);
+        }
+
+        try {
+            while (!stopRequested) {
+                setState(State.STARTING);
+                long launchedAt = SystemClock.elapsedRealtime();
+                // Unchanged inputs reuse the launch profile of the previous attempt
+                int exitCode = syncthingCore.runSyncthing(parameters, environmentVariables);
+                long uptime = SystemClock.elapsedRealtime() - launchedAt;
+                lastExitCode = exitCode;
+                stopWatchdog();
+
+                if (stopRequested) {
+                    break;
+                }
+                if (restartRequested || exitCode == EXIT_CODE_RESTARTING || exitCode == EXIT_CODE_UPGRADING) {
+                    Log.i(TAG, String.format("Syncthing asked to be restarted (exit code %1$d)", exitCode));
+                    restartRequested = false;
+                    restartCount++;
+                    SyncthingMetrics.getInstance().increment(SyncthingMetrics.PROCESS_RESTARTS);
+                    continue;
+                }
+                boolean wedged = watchdogTripped;
+                watchdogTripped = false;
+                if (exitCode == EXIT_CODE_SUCCESS && !wedged) {
+                    Log.i(TAG, "Syncthing shut down on its own");
+                    break;
+                }
+
+                consecutiveCrashes = uptime >= STABLE_RUN_MS ? 1 : consecutiveCrashes + 1;
+                setState(State.CRASHED);
+                if (consecutiveCrashes > MAX_CONSECUTIVE_CRASHES) {
+                    Log.e(TAG, String.format("Syncthing crashed %1$d times in a row, giving up", consecutiveCrashes));
+                    gaveUp = true;
+                    return exitCode;
+                }
+
+                long delay = backoffDelay(consecutiveCrashes);
+                Log.w(TAG, String.format("Syncthing exited with code %1$d after %2$d ms, restarting in %3$d ms", exitCode, uptime, delay));
+                synchronized (lock) {
+                    if (!stopRequested) {
+                        lock.wait(delay);
+                    }
+                }
+                // stop() wakes the wait early, that is not a restart
+                if (stopRequested) {
+                    break;
+                }
+                restartCount++;
+                SyncthingMetrics.getInstance().increment(SyncthingMetrics.PROCESS_RESTARTS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopWatchdog();
+            this.syncthingCore = null;
+            setState(State.STOPPED);
+        }
+        return lastExitCode;
+    }
+
+    /**
+     * Stops the daemon and ends the supervision loop. Safe to call when nothing is running.
+     * Blocks until the process has exited or been killed, a call made while another one is
+     * already stopping returns straight away.
+     */
+    public void stop() {
+        SyncthingCore core;
+        synchronized (lock) {
+            if (!isRunning() || stopRequested) {
+                return;
+            }
+            stopRequested = true;
+            core = syncthingCore;
+            setState(State.STOPPING);
+            // Wake the loop if it is sleeping through a backoff
+            lock.notifyAll();
+        }
+        if (core != null) {
+            core.killSyncthingInternal();
+        }
+    }
+
+    /**
+     * Restarts the running daemon without any backoff. Does nothing when stopped.
+     * @return false if there was nothing to restart
+     */
+    public boolean restart() {
+        SyncthingCore core;
+        synchronized (lock) {
+            if (!isRunning() || stopRequested) {
+                return false;
+            }
+            restartRequested = true;
+            core = syncthingCore;
+            lock.notifyAll();
+        }
+        if (core != null) {
+            core.killSyncthingInternal();
+        }
+        return true;
+    }
+
+    @Override
+    public void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        if (state != State.STARTING) {
+            return;
+        }
+        synchronized (lock) {
+            consecutiveCrashes = 0;
+        }
+        setState(State.READY);
+        startWatchdog();
+    }
+
+    private long backoffDelay(int attempt) {
+        long exponential = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt - 1, 20));
+        // Full jitter on the upper half keeps several devices from retrying in lockstep
+        return exponential / 2 + (long) (jitter.nextDouble() * exponential / 2);
+    }
+
+    private synchronized void startWatchdog() {
+        stopWatchdog();
+        watchdogFailures = 0;
+        watchdog = watchdogExecutor.scheduleWithFixedDelay(this::checkHealth, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopWatchdog() {
+        if (watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
+        }
+    }
+
+    private void checkHealth() {
+        SyncthingCore core = syncthingCore;
+        if (core == null || (state != State.READY && state != State.DEGRADED)) {
+            return;
+        }
+
+        boolean healthy;
+        try {
+            String body = new SyncthingRestClient(core.getRestBaseUrl(), null).get("noauth/health", null, WATCHDOG_TIMEOUT_MS);
+            healthy = body.contains("OK");
+        } catch (IOException e) {
+            healthy = false;
+        }
+
+        if (healthy) {
+            watchdogFailures = 0;
+            if (state == State.DEGRADED) {
+                setState(State.READY);
+            }
+            return;
+        }
+
+        watchdogFailures++;
+        Log.w(TAG, String.format("Health check failed (%1$d/%2$d)", watchdogFailures, WATCHDOG_MAX_FAILURES));
+        if (watchdogFailures < WATCHDOG_MAX_FAILURES) {
+            setState(State.DEGRADED);
+            return;
+        }
+
+        // The process is alive but wedged, kill it and let the loop treat it as a crash
+        stopWatchdog();
+        watchdogTripped = true;
+        core.killSyncthingInternal();
+    }
+
+    private void setState(State newState) {
+        if (state == newState) {
+            return;
+        }
+        state = newState;
+        Log.i(TAG, "State " + newState);
+        for (Listener listener : listeners) {
+            listener.onStateChanged(newState, restartCount, lastExitCode);
+        }
+    }
+}
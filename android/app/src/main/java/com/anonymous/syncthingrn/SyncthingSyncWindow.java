@@ -0,0 +1,308 @@
+package com.anonymous.syncthingrn;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+    Ends a batch run of the daemon once it has converged. Every unpaused folder has
+    to be idle with nothing left to pull, and every connected device sharing it has
+    to be at 100% completion, on two checks in a row. The daemon is stopped then or
+    at the deadline, whichever comes first, and a report of the run is written to
+    sync-window.json for the app to read.
+*/
+public class SyncthingSyncWindow implements SyncthingReadiness.Listener {
+
+    public record Report(long startedAt, long elapsedMs, boolean converged, long inBytes, long outBytes) {}
+
+    private static final String TAG = "SyncthingSyncWindow";
+    private static final String REPORT_FILE = "sync-window.json";
+    private static final long CHECK_INTERVAL_MS = 10000;
+    // Index exchange takes a moment after connecting, a folder can look idle before it starts
+    private static final long SETTLE_MS = 30000;
+    private static final int REQUIRED_CONVERGED_CHECKS = 2;
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    private static SyncthingSyncWindow instance;
+
+    public static synchronized SyncthingSyncWindow getInstance() {
+        if (instance == null) {
+            instance = new SyncthingSyncWindow();
+        }
+        return instance;
+    }
+
+    /**
+     * @return the report of the last finished window, or null if there has not been one
+     */
+    public static JSONObject readLastReport(File reportDirectory) {
+        File reportFile = new File(reportDirectory, REPORT_FILE);
+        if (!reportFile.exists()) {
+            return null;
+        }
+        try (FileInputStream inputStream = new FileInputStream(reportFile)) {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                contents.write(buffer, 0, read);
+            }
+            return new JSONObject(contents.toString("UTF-8"));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to read " + reportFile, e);
+            return null;
+        }
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SyncthingCore syncthingCore;
+    private File reportDirectory;
+    private ScheduledFuture<?> periodicCheck;
+    private ScheduledFuture<?> deadline;
+    private long startedAt = 0;
+    private long startedAtRealtime = 0;
+    private long readyAt = 0;
+    private int convergedChecks = 0;
+    private boolean finished = false;
+    // Byte totals from the last successful check, the daemon starts counting at launch
+    private long inBytes = 0;
+    private long outBytes = 0;
+
+    private SyncthingSyncWindow() {}
+
+    /**
+     * @param deadlineMs longest the daemon may run before it is stopped unconverged
+     * @param reportDirectory where the report of the run is written
+     */
+    public synchronized void start(SyncthingCore syncthingCore, long deadlineMs, File reportDirectory) {
+        if (this.syncthingCore != null) {
+            return;
+        }
+        this.syncthingCore = syncthingCore;
+        this.reportDirectory = reportDirectory;
+        this.startedAt = System.currentTimeMillis();
+        this.startedAtRealtime = SystemClock.elapsedRealtime();
+        this.readyAt = 0;
+        this.convergedChecks = 0;
+        this.finished = false;
+        this.inBytes = 0;
+        this.outBytes = 0;
+        SyncthingReadiness.getInstance().addListener(this);
+        periodicCheck = executor.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        deadline = executor.schedule(() -> finish(false), deadlineMs, TimeUnit.MILLISECONDS);
+        Log.i(TAG, String.format("Sync window started, deadline in %1$d ms", deadlineMs));
+    }
+
+    /**
+     * Called once the daemon has exited. Writes the report if the window did not end on its own.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (syncthingCore == null) {
+                return;
+            }
+        }
+        // Queued behind a finish in progress, so the report is written exactly once
+        Future<?> stopped = executor.submit(() -> {
+            writeReport(false);
+            synchronized (this) {
+                SyncthingReadiness.getInstance().removeListener(this);
+                cancelChecks();
+                syncthingCore = null;
+            }
+        });
+        try {
+            stopped.get(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Failed to finish the sync window", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized void onReady(SyncthingReadiness.ReadyInfo readyInfo) {
+        readyAt = SystemClock.elapsedRealtime();
+        convergedChecks = 0;
+    }
+
+    private void check() {
+        SyncthingCore core;
+        synchronized (this) {
+            core = syncthingCore;
+            if (core == null || finished || readyAt == 0 || SystemClock.elapsedRealtime() - readyAt < SETTLE_MS) {
+                return;
+            }
+        }
+        SyncthingRestClient restClient = core.createRestClient();
+        if (restClient == null) {
+            return;
+        }
+
+        boolean converged;
+        try {
+            readByteTotals(restClient);
+            converged = isConverged(restClient);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to check convergence", e);
+            converged = false;
+        }
+        synchronized (this) {
+            convergedChecks = converged ? convergedChecks + 1 : 0;
+            if (convergedChecks < REQUIRED_CONVERGED_CHECKS) {
+                return;
+            }
+        }
+        finish(true);
+    }
+
+    /**
+     * Writes the report and shuts the daemon down, which ends the worker.
+     */
+    private void finish(boolean converged) {
+        SyncthingCore core;
+        synchronized (this) {
+            core = syncthingCore;
+            if (core == null || finished) {
+                return;
+            }
+            cancelChecks();
+        }
+        SyncthingRestClient restClient = core.createRestClient();
+        if (restClient != null) {
+            try {
+                readByteTotals(restClient);
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Failed to read the transferred bytes", e);
+            }
+        }
+        writeReport(converged);
+        SyncthingBandwidthScheduler.getInstance(core.getContext()).restoreUserLimits();
+        SyncthingSupervisor.getInstance().stop();
+    }
+
+    private void writeReport(boolean converged) {
+        Report report;
+        File reportFile;
+        synchronized (this) {
+            if (finished || reportDirectory == null) {
+                return;
+            }
+            finished = true;
+            report = new Report(startedAt, SystemClock.elapsedRealtime() - startedAtRealtime, converged, inBytes, outBytes);
+            reportFile = new File(reportDirectory, REPORT_FILE);
+        }
+
+        SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+        metrics.record(SyncthingMetrics.SYNC_WINDOW_MS, report.elapsedMs());
+        metrics.add(SyncthingMetrics.SYNC_WINDOW_BYTES, report.inBytes() + report.outBytes());
+        Log.i(TAG, String.format("Sync window ended after %1$d ms, converged %2$b, %3$d bytes in, %4$d bytes out",
+            report.elapsedMs(), report.converged(), report.inBytes(), report.outBytes()));
+
+        File temporaryFile = new File(reportFile.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            JSONObject json = new JSONObject()
+                .put("startedAt", report.startedAt())
+                .put("elapsedMs", report.elapsedMs())
+                .put("converged", report.converged())
+                .put("inBytes", report.inBytes())
+                .put("outBytes", report.outBytes());
+            outputStream.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to write the sync window report", e);
+            return;
+        }
+        if (!temporaryFile.renameTo(reportFile)) {
+            Log.w(TAG, "Failed to replace " + reportFile);
+        }
+    }
+
+    // Caller holds the lock
+    private void cancelChecks() {
+        if (periodicCheck != null) {
+            periodicCheck.cancel(false);
+            periodicCheck = null;
+        }
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    private void readByteTotals(SyncthingRestClient restClient) throws IOException, JSONException {
+        JSONObject total = new JSONObject(restClient.get("system/connections", null)).optJSONObject("total");
+        if (total == null) {
+            return;
+        }
+        synchronized (this) {
+            inBytes = total.optLong("inBytesTotal", inBytes);
+            outBytes = total.optLong("outBytesTotal", outBytes);
+        }
+    }
+
+    /**
+     * @return true if no folder has anything left to pull and every connected device has everything.
+     *         Without any connected device there is nothing to converge with.
+     */
+    private boolean isConverged(SyncthingRestClient restClient) throws IOException, JSONException {
+        String localDeviceId = new JSONObject(restClient.get("system/status", null)).optString("myID");
+        JSONObject connections = new JSONObject(restClient.get("system/connections", null)).optJSONObject("connections");
+        JSONArray folders = new JSONArray(restClient.get("config/folders", null));
+
+        boolean anyConnected = false;
+        for (int i = 0; i < folders.length(); i++) {
+            JSONObject folder = folders.getJSONObject(i);
+            if (folder.optBoolean("paused")) {
+                continue;
+            }
+            String folderId = folder.getString("id");
+            JSONObject status = new JSONObject(restClient.get("db/status", Collections.singletonMap("folder", folderId)));
+            if (!"idle".equals(status.optString("state")) || status.optLong("needTotalItems") > 0) {
+                return false;
+            }
+
+            JSONArray devices = folder.optJSONArray("devices");
+            for (int j = 0; devices != null && j < devices.length(); j++) {
+                String deviceId = devices.getJSONObject(j).optString("deviceID");
+                JSONObject connection = connections != null ? connections.optJSONObject(deviceId) : null;
+                if (deviceId.equals(localDeviceId) || connection == null || !connection.optBoolean("connected")) {
+                    continue;
+                }
+                anyConnected = true;
+                Map<String, String> params = new HashMap<>();
+                params.put("folder", folderId);
+                params.put("device", deviceId);
+                JSONObject completion = new JSONObject(restClient.get("db/completion", params));
+                if (completion.optDouble("completion") < 100 || completion.optLong("needItems") > 0 || completion.optLong("needDeletes") > 0) {
+                    return false;
+                }
+            }
+        }
+        return anyConnected;
+    }
+}
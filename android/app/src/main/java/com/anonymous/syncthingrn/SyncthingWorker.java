@@ -3,6 +3,8 @@ package com.anonymous.syncthingrn;
 import static androidx.core.app.NotificationCompat.FOREGROUND_SERVICE_IMMEDIATE;
 
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.IOException;
 
 import android.app.Notification;
@@ -17,8 +19,11 @@ import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.Operation;
 import androidx.work.Worker;
@@ -33,10 +38,16 @@ import com.facebook.react.bridge.ReactApplicationContext;
 public class SyncthingWorker extends Worker {
 
     private static final String TAG = "SyncthingWorker";
+    private static final String SYNC_WINDOW_WORK = TAG + "SyncWindow";
+    private static final String KEY_SYNC_WINDOW_DEADLINE_MS = "syncWindowDeadlineMs";
     private static final int notificationId = 1;
 
+    // The continuous worker and the sync windows are separate works, only one run at a time may own the daemon
+    private static final AtomicBoolean runInProgress = new AtomicBoolean(false);
+
     /**
-     * Method to trigger the creation of the worker in the background. Should be started on first run. 
+     * Method to trigger the creation of the worker in the background. Should be started on first run.
+     * An already running worker is kept, so calling this repeatedly never tears down a healthy instance.
      * @param environmentVariables
      */
     public static void startWorker(ReactApplicationContext context, HashMap environmentVariables) {
@@ -47,12 +58,51 @@ public class SyncthingWorker extends Worker {
 
         Operation manager = WorkManager.getInstance(context).enqueueUniqueWork(
             TAG,
-            ExistingWorkPolicy.REPLACE,
+            ExistingWorkPolicy.KEEP,
             syncthingWorkerRequest
         );
     }
 
+    /**
+     * Stops the supervised daemon and cancels the worker so it is not rescheduled.
+     */
+    public static void stopWorker(Context context) {
+        SyncthingBandwidthScheduler.getInstance(context).restoreUserLimits();
+        SyncthingSupervisor.getInstance().stop();
+        WorkManager.getInstance(context).cancelUniqueWork(TAG);
+    }
+
+    /**
+     * Runs the daemon in periodic windows instead of all the time. Each window ends once
+     * everything has converged or the deadline has passed. Replaces an earlier schedule.
+     * @param intervalMs time between windows, WorkManager allows no less than 15 minutes
+     * @param deadlineMs longest a single window may run
+     */
+    public static void startSyncWindows(Context context, long intervalMs, long deadlineMs) {
+        Constraints constraints = new Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build();
+        Data inputData = new Data.Builder().putLong(KEY_SYNC_WINDOW_DEADLINE_MS, deadlineMs).build();
+
+        PeriodicWorkRequest syncWindowRequest = new PeriodicWorkRequest.Builder(SyncthingWorker.class, intervalMs, TimeUnit.MILLISECONDS)
+            .setConstraints(constraints)
+            .setInputData(inputData)
+            .build();
+
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+            SYNC_WINDOW_WORK,
+            ExistingPeriodicWorkPolicy.UPDATE,
+            syncWindowRequest
+        );
+    }
+
+    /**
+     * Cancels the periodic windows. A window in progress is stopped with its daemon.
+     */
+    public static void stopSyncWindows(Context context) {
+        WorkManager.getInstance(context).cancelUniqueWork(SYNC_WINDOW_WORK);
+    }
+
     private Context context;
+    private volatile boolean ownsRun = false;
 
     public SyncthingWorker(
        @NonNull Context context,
@@ -66,9 +116,39 @@ public class SyncthingWorker extends Worker {
     public Result doWork() {
         // Since we are always running this via a worker, and the worker should always
         // be running we can assume that the server isn't running.
-        
-        // Create SyncthingCore instance to get the binary location
+
+        long syncWindowDeadlineMs = getInputData().getLong(KEY_SYNC_WINDOW_DEADLINE_MS, 0);
+        if (!runInProgress.compareAndSet(false, true)) {
+            return skipRun(syncWindowDeadlineMs > 0);
+        }
+        ownsRun = true;
         try {
+            if (SyncthingSupervisor.getInstance().isRunning()) {
+                return skipRun(syncWindowDeadlineMs > 0);
+            }
+            return runSyncthing(syncWindowDeadlineMs);
+        } finally {
+            ownsRun = false;
+            runInProgress.set(false);
+        }
+    }
+
+    /*
+        Another run owns the daemon. Its helpers and daemon are left alone, a window
+        has nothing to add to it and the continuous worker comes back once it is over.
+    */
+    private Result skipRun(boolean syncWindow) {
+        if (syncWindow) {
+            Log.i(TAG, "Syncthing is already running, skipping this sync window");
+            return Result.success();
+        }
+        Log.i(TAG, "Syncthing is running for a sync window, retrying later");
+        return Result.retry();
+    }
+
+    private Result runSyncthing(long syncWindowDeadlineMs) {
+        try {
+            // Create SyncthingCore instance to get the binary location
             SyncthingCore syncthingCore = new SyncthingCore(context);
         
             // Create command to start syncthing with minimal arguments
@@ -80,11 +160,43 @@ public class SyncthingWorker extends Worker {
             // Create an overlay so the task doesn't die
             setForegroundAsync(getForegroundInfo());
 
-            // Create the syncthing instance using the SyncthingCore's method
-            int exitCode = syncthingCore.runSyncthing(parameters, environmentVariables);
-                
-            // Log.d(TAG, "Syncthing process started with exit code: " + exitCode);
-
+            // Run the syncthing instance under supervision, this returns once it is stopped for good
+            SyncthingSupervisor supervisor = SyncthingSupervisor.getInstance();
+            SyncthingMemoryGovernor memoryGovernor = SyncthingMemoryGovernor.getInstance(context);
+            SyncthingMetrics metrics = SyncthingMetrics.getInstance();
+            SyncthingFolderWatcher folderWatcher = SyncthingFolderWatcher.getInstance();
+            SyncthingNetworkMonitor networkMonitor = SyncthingNetworkMonitor.getInstance(context);
+            SyncthingDiscoveryScheduler discoveryScheduler = SyncthingDiscoveryScheduler.getInstance();
+            SyncthingBandwidthScheduler bandwidthScheduler = SyncthingBandwidthScheduler.getInstance(context);
+            SyncthingSyncWindow syncWindow = syncWindowDeadlineMs > 0 ? SyncthingSyncWindow.getInstance() : null;
+            memoryGovernor.start(syncthingCore);
+            metrics.startSampling(context.getFilesDir(), syncthingCore::getSyncthingPIDs);
+            folderWatcher.start(syncthingCore);
+            discoveryScheduler.start(syncthingCore);
+            networkMonitor.start(syncthingCore);
+            bandwidthScheduler.start(syncthingCore);
+            if (syncWindow != null) {
+                syncWindow.start(syncthingCore, syncWindowDeadlineMs, context.getFilesDir());
+            }
+            int exitCode;
+            try {
+                exitCode = supervisor.runBlocking(syncthingCore, parameters, environmentVariables);
+            } finally {
+                if (syncWindow != null) {
+                    syncWindow.stop();
+                }
+                bandwidthScheduler.stop();
+                networkMonitor.stop();
+                discoveryScheduler.stop();
+                folderWatcher.stop();
+                metrics.stopSampling();
+                memoryGovernor.stop();
+            }
+
+            if (supervisor.hasGivenUp()) {
+                Log.e(TAG, "Syncthing gave up after repeated crashes, exit code " + exitCode);
+                return Result.failure();
+            }
             return Result.success();
         } catch (SyncthingCore.ExecutableNotFoundException e) {
             return Result.failure();
@@ -93,6 +205,14 @@ public class SyncthingWorker extends Worker {
         }
     }
 
+    @Override
+    public void onStopped() {
+        // WorkManager is cancelling us, take the daemon down with the worker unless another run owns it
+        if (ownsRun) {
+            SyncthingSupervisor.getInstance().stop();
+        }
+    }
+
     @NonNull
     @Override
     public ForegroundInfo getForegroundInfo() {
@@ -0,0 +1,29 @@
+package com.anonymous.syncthingrn;
+
+import android.content.Context;
+
+import org.json.JSONObject;
+
+/*
+    Release builds leave the benchmark suite and its fixtures out, the real one lives
+    in src/debug. The options and defaults stay so the module compiles against either.
+*/
+public class SyncthingBenchmark {
+
+    public record Options(int iterations, int logLines, int events, String baseUrl, String apiKey, long durationMs) {}
+
+    public static final int DEFAULT_ITERATIONS = 50;
+    public static final int DEFAULT_LOG_LINES = 200000;
+    public static final int DEFAULT_EVENTS = 1000;
+    public static final long DEFAULT_DURATION_MS = 10000;
+    public static final boolean INCLUDED = false;
+
+    private SyncthingBenchmark() {}
+
+    /**
+     * Never called, SyncthingModule checks INCLUDED first.
+     */
+    public static JSONObject run(Context context, Options options) {
+        throw new UnsupportedOperationException("Benchmarks are only included in debug builds");
+    }
+}
@@ -0,0 +1,86 @@
+package com.anonymous.syncthingrn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SyncthingConfigWriterTest {
+
+    @Test
+    public void mergeSectionOnlyReportsChanges() throws JSONException {
+        JSONObject config = new JSONObject().put("options", new JSONObject().put("maxSendKbps", 100).put("relaysEnabled", true));
+
+        assertFalse(SyncthingConfigWriter.mergeSection(config, SyncthingConfigWriter.SECTION_OPTIONS, new JSONObject().put("maxSendKbps", 100)));
+        assertTrue(SyncthingConfigWriter.mergeSection(config, SyncthingConfigWriter.SECTION_OPTIONS, new JSONObject().put("maxSendKbps", 200)));
+
+        JSONObject options = config.getJSONObject("options");
+        assertEquals(200, options.getInt("maxSendKbps"));
+        // Fields the patch leaves out keep the daemon's values
+        assertTrue(options.getBoolean("relaysEnabled"));
+    }
+
+    @Test
+    public void mergeSectionCreatesMissingSection() throws JSONException {
+        JSONObject config = new JSONObject();
+        assertTrue(SyncthingConfigWriter.mergeSection(config, SyncthingConfigWriter.SECTION_GUI, new JSONObject().put("theme", "dark")));
+        assertEquals("dark", config.getJSONObject("gui").getString("theme"));
+    }
+
+    @Test
+    public void mergeEntriesPatchesExistingEntry() throws JSONException {
+        JSONObject config = configWithDevice();
+        Map<String, Object> staged = new LinkedHashMap<>();
+        staged.put("DEVICE-A", new JSONObject().put("name", "laptop"));
+
+        assertTrue(SyncthingConfigWriter.mergeEntries(config, SyncthingConfigWriter.SECTION_DEVICES, "deviceID", staged, null));
+        JSONObject device = config.getJSONArray("devices").getJSONObject(0);
+        assertEquals("laptop", device.getString("name"));
+        assertEquals("metadata", device.getString("compression"));
+
+        // The same patch again changes nothing
+        assertFalse(SyncthingConfigWriter.mergeEntries(config, SyncthingConfigWriter.SECTION_DEVICES, "deviceID", staged, null));
+    }
+
+    @Test
+    public void mergeEntriesRemovesEntry() throws JSONException {
+        JSONObject config = configWithDevice();
+        Map<String, Object> staged = new LinkedHashMap<>();
+        staged.put("DEVICE-A", JSONObject.NULL);
+        staged.put("DEVICE-MISSING", JSONObject.NULL);
+
+        assertTrue(SyncthingConfigWriter.mergeEntries(config, SyncthingConfigWriter.SECTION_DEVICES, "deviceID", staged, null));
+        assertEquals(0, config.getJSONArray("devices").length());
+    }
+
+    @Test
+    public void newEntryStartsFromDefaults() throws JSONException {
+        JSONObject config = configWithDevice();
+        JSONObject defaults = new JSONObject().put("deviceID", "").put("name", "").put("compression", "metadata").put("introducer", false);
+        Map<String, Object> staged = new LinkedHashMap<>();
+        staged.put("DEVICE-B", new JSONObject().put("name", "phone"));
+
+        assertTrue(SyncthingConfigWriter.mergeEntries(config, SyncthingConfigWriter.SECTION_DEVICES, "deviceID", staged, defaults));
+        JSONArray devices = config.getJSONArray("devices");
+        assertEquals(2, devices.length());
+        JSONObject device = devices.getJSONObject(1);
+        assertEquals("DEVICE-B", device.getString("deviceID"));
+        assertEquals("phone", device.getString("name"));
+        assertEquals("metadata", device.getString("compression"));
+        assertFalse(device.getBoolean("introducer"));
+        // Every new entry gets its own copy
+        assertEquals("", defaults.getString("name"));
+    }
+
+    private static JSONObject configWithDevice() throws JSONException {
+        JSONObject device = new JSONObject().put("deviceID", "DEVICE-A").put("name", "old").put("compression", "metadata");
+        return new JSONObject().put("devices", new JSONArray().put(device));
+    }
+}
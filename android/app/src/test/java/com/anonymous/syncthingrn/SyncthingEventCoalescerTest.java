@@ -0,0 +1,120 @@
+package com.anonymous.syncthingrn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class SyncthingEventCoalescerTest {
+
+    private final BlockingQueue<JSONArray> batches = new LinkedBlockingQueue<>();
+    private SyncthingEventCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        coalescer = new SyncthingEventCoalescer(batches::add);
+        coalescer.setMaxBatchesPerSecond(0);
+    }
+
+    @After
+    public void tearDown() {
+        coalescer.shutdown();
+    }
+
+    @Test
+    public void passesUnknownTypesThroughInOrder() throws JSONException, InterruptedException {
+        coalescer.onEvents(new JSONArray()
+            .put(event(1, "StateChanged", "a"))
+            .put(event(2, "StateChanged", "a"))
+            .put(event(3, "ItemFinished", "b")));
+
+        JSONArray batch = nextBatch();
+        assertEquals(3, batch.length());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, batch.getJSONObject(i).getLong("id"));
+        }
+        assertEquals(0, coalescer.getStats().merged());
+    }
+
+    @Test
+    public void latestKeepsNewestEventPerFolder() throws JSONException, InterruptedException {
+        coalescer.onEvents(new JSONArray()
+            .put(event(1, "FolderScanProgress", "a"))
+            .put(event(2, "FolderScanProgress", "b"))
+            .put(event(3, "FolderScanProgress", "a")));
+
+        JSONArray batch = nextBatch();
+        assertEquals(2, batch.length());
+        assertEquals(2, batch.getJSONObject(0).getLong("id"));
+        JSONObject newest = batch.getJSONObject(1);
+        assertEquals(3, newest.getLong("id"));
+        assertEquals(2, newest.getInt("merged"));
+        SyncthingEventCoalescer.Stats stats = coalescer.getStats();
+        assertEquals(3, stats.received());
+        assertEquals(2, stats.emitted());
+        assertEquals(1, stats.merged());
+    }
+
+    @Test
+    public void countReplacesEventsWithACounter() throws JSONException, InterruptedException {
+        coalescer.setPolicy("ItemFinished", SyncthingEventCoalescer.Policy.COUNT);
+        coalescer.onEvents(new JSONArray()
+            .put(event(1, "ItemFinished", "a"))
+            .put(event(2, "ItemFinished", "a"))
+            .put(event(3, "ItemFinished", "a")));
+
+        JSONArray batch = nextBatch();
+        assertEquals(1, batch.length());
+        JSONObject counter = batch.getJSONObject(0);
+        assertEquals(3, counter.getLong("id"));
+        assertEquals("a", counter.getJSONObject("data").getString("folder"));
+        assertEquals(3, counter.getJSONObject("data").getInt("count"));
+    }
+
+    @Test
+    public void fullQueueFlushesAheadOfTheRateLimit() throws JSONException, InterruptedException {
+        coalescer.setMaxBatchesPerSecond(0.001);
+        coalescer.onEvents(new JSONArray().put(event(1, "StateChanged", "a")));
+        // The first batch goes out at once, the next would wait for the rate limit
+        assertNotNull(nextBatch());
+
+        coalescer.onEvents(new JSONArray().put(event(2, "StateChanged", "a")));
+        assertNull(batches.poll(200, TimeUnit.MILLISECONDS));
+
+        coalescer.setMaxPending(2);
+        coalescer.onEvents(new JSONArray().put(event(3, "StateChanged", "a")));
+        assertEquals(2, nextBatch().length());
+        assertEquals(1, coalescer.getStats().forcedFlushes());
+    }
+
+    @Test
+    public void parsesPolicyNames() {
+        assertEquals(SyncthingEventCoalescer.Policy.PASS_THROUGH, SyncthingEventCoalescer.Policy.fromString(" pass-through "));
+        assertEquals(SyncthingEventCoalescer.Policy.LATEST, SyncthingEventCoalescer.Policy.fromString("latest"));
+    }
+
+    private JSONArray nextBatch() throws InterruptedException {
+        JSONArray batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No batch was flushed", batch);
+        return batch;
+    }
+
+    private static JSONObject event(long id, String type, String folder) throws JSONException {
+        return new JSONObject()
+            .put("id", id)
+            .put("globalID", id)
+            .put("type", type)
+            .put("time", "2025-01-02T15:04:05.000000000Z")
+            .put("data", new JSONObject().put("folder", folder));
+    }
+}
@@ -0,0 +1,65 @@
+package com.anonymous.syncthingrn;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SyncthingEventPumpTest {
+
+    private final SyncthingEventPump pump = SyncthingEventPump.getInstance();
+    private final List<SyncthingEventPump.Listener> listeners = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (SyncthingEventPump.Listener listener : listeners) {
+            pump.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void throwingListenerDoesNotStopDelivery() throws JSONException {
+        List<JSONArray> before = new ArrayList<>();
+        List<JSONArray> after = new ArrayList<>();
+        subscribe(before::add, null);
+        subscribe(events -> {
+            throw new IllegalStateException("Listener bug");
+        }, null);
+        subscribe(after::add, null);
+
+        pump.deliver(new JSONArray().put(event(1, "StateChanged")));
+        pump.deliver(new JSONArray().put(event(2, "StateChanged")));
+
+        assertEquals(2, before.size());
+        assertEquals(2, after.size());
+        assertEquals(2, after.get(1).getJSONObject(0).getLong("id"));
+    }
+
+    @Test
+    public void listenersOnlyGetTheirTypes() throws JSONException {
+        List<JSONArray> received = new ArrayList<>();
+        subscribe(received::add, new String[] { "FolderSummary" });
+
+        pump.deliver(new JSONArray().put(event(1, "StateChanged")).put(event(2, "FolderSummary")));
+        pump.deliver(new JSONArray().put(event(3, "StateChanged")));
+
+        assertEquals(1, received.size());
+        assertEquals(1, received.get(0).length());
+        assertEquals(2, received.get(0).getJSONObject(0).getLong("id"));
+    }
+
+    private void subscribe(SyncthingEventPump.Listener listener, String[] eventTypes) {
+        listeners.add(listener);
+        pump.addListener(listener, eventTypes);
+    }
+
+    private static JSONObject event(long id, String type) throws JSONException {
+        return new JSONObject().put("id", id).put("type", type);
+    }
+}
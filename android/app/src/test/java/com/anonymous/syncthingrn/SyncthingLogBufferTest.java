@@ -0,0 +1,119 @@
+package com.anonymous.syncthingrn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class SyncthingLogBufferTest {
+
+    // The smallest arena the buffer allows, one maximum length line and its ellipsis
+    private static final int MIN_ARENA_BYTES = 2048 + 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SyncthingLogBuffer logBuffer;
+
+    @Before
+    public void setUp() throws IOException {
+        logBuffer = new SyncthingLogBuffer(temporaryFolder.newFolder("logs"), 64, MIN_ARENA_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        logBuffer.close();
+    }
+
+    @Test
+    public void readsLinesBackInOrder() {
+        append("2025-01-02 15:04:05 INF GUI and API listening (address=127.0.0.1:8384) (log.pkg=api)");
+        append("2025-01-02 15:04:06 DBG Pulling block (log.pkg=model)");
+        append("Ready to synchronize (folder=default)");
+
+        SyncthingLogBuffer.LogPage page = logBuffer.read(0, 10);
+        List<SyncthingLogBuffer.LogEntry> entries = page.entries();
+        assertEquals(3, entries.size());
+        assertEquals(3, page.nextCursor());
+        assertEquals(0, page.firstSequence());
+        assertEquals(SyncthingLogParser.TEMPLATE_GUI_LISTENING, entries.get(0).template());
+        assertEquals(SyncthingLogParser.LEVEL_DEBUG, entries.get(1).level());
+        assertEquals("model", logBuffer.getFacilityName(entries.get(1).facility()));
+        assertEquals("Ready to synchronize (folder=default)", entries.get(2).line());
+        assertEquals(SyncthingLogParser.TEMPLATE_READY, entries.get(2).template());
+    }
+
+    @Test
+    public void wrappingArenaEvictsOldestLines() {
+        int lines = 200;
+        for (int i = 0; i < lines; i++) {
+            append(line(i));
+        }
+
+        SyncthingLogBuffer.LogPage page = logBuffer.read(0, lines);
+        assertTrue(page.firstSequence() > 0);
+        assertEquals(lines, page.nextCursor());
+        assertEquals(lines - page.firstSequence(), page.entries().size());
+        // Whatever survived the wrap is intact
+        for (SyncthingLogBuffer.LogEntry entry : page.entries()) {
+            assertEquals(line((int) entry.sequence()), entry.line());
+        }
+    }
+
+    @Test
+    public void fullColumnsEvictOldestLines() throws IOException {
+        SyncthingLogBuffer small = new SyncthingLogBuffer(temporaryFolder.newFolder("small"), 4, 64 * 1024);
+        for (int i = 0; i < 10; i++) {
+            small.append(line(i));
+        }
+        SyncthingLogBuffer.LogPage page = small.read(0, 10);
+        small.close();
+
+        assertEquals(6, page.firstSequence());
+        assertEquals(4, page.entries().size());
+        assertEquals(line(6), page.entries().get(0).line());
+    }
+
+    @Test
+    public void truncatesLongLines() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            line.append('a');
+        }
+        append(line.toString());
+
+        String stored = logBuffer.read(0, 1).entries().get(0).line();
+        assertEquals(2048 + 3, stored.length());
+        assertTrue(stored.endsWith("..."));
+    }
+
+    @Test
+    public void filterSkipsLinesButAdvancesCursor() {
+        append("2025-01-02 15:04:05 DBG Pulling block (log.pkg=model)");
+        append("2025-01-02 15:04:06 WRN Error on folder \"default\" (log.pkg=model)");
+        append("2025-01-02 15:04:07 INF Completed initial scan (log.pkg=model)");
+
+        SyncthingLogBuffer.LogFilter filter = new SyncthingLogBuffer.LogFilter(SyncthingLogParser.LEVEL_WARNING, null, 0);
+        SyncthingLogBuffer.LogPage page = logBuffer.read(0, 10, filter);
+        assertEquals(1, page.entries().size());
+        assertEquals(1, page.entries().get(0).sequence());
+        assertEquals(3, page.nextCursor());
+    }
+
+    private void append(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        logBuffer.append(bytes, 0, bytes.length, 1735830245000L);
+    }
+
+    private static String line(int index) {
+        return String.format("2025-01-02 15:04:05 INF Line %1$06d of the wrap test, padded to a realistic length (log.pkg=model)", index);
+    }
+}
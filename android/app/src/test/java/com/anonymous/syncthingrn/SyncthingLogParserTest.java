@@ -0,0 +1,101 @@
+package com.anonymous.syncthingrn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+public class SyncthingLogParserTest {
+
+    // 2025-01-02 15:04:05 UTC
+    private static final long LOGGED_AT = 1735830245000L;
+
+    private final SyncthingLogParser parser = new SyncthingLogParser();
+    private final SyncthingLogParser.ParsedLine parsed = new SyncthingLogParser.ParsedLine();
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp() {
+        defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Test
+    public void parsesStructuredLine() {
+        String line = "2025-01-02 15:04:05 INF GUI and API listening (address=127.0.0.1:8384) (log.pkg=api)";
+        parse(line);
+        assertEquals(LOGGED_AT, parsed.loggedAt);
+        assertEquals(SyncthingLogParser.LEVEL_INFO, parsed.level);
+        assertEquals(SyncthingLogParser.TEMPLATE_GUI_LISTENING, parsed.template);
+        assertEquals("api", parser.getFacilityName(parsed.facility));
+        assertEquals(line.indexOf("GUI"), parsed.messageOffset);
+    }
+
+    @Test
+    public void parsesClassicDebugLine() {
+        parse("[ABCDE] 2025/01/02 15:04:05.250000 model.go:123: DEBUG: Pulling block 7");
+        assertEquals(LOGGED_AT + 250, parsed.loggedAt);
+        assertEquals(SyncthingLogParser.LEVEL_DEBUG, parsed.level);
+        assertEquals("model", parser.getFacilityName(parsed.facility));
+        assertEquals(SyncthingLogParser.TEMPLATE_NONE, parsed.template);
+    }
+
+    @Test
+    public void timeWithoutDateHasNoLoggedAt() {
+        parse("15:04:05 WRN Lost device connection (device=ABCDEFG)");
+        assertEquals(-1, parsed.loggedAt);
+        assertEquals(SyncthingLogParser.LEVEL_WARNING, parsed.level);
+        assertEquals(SyncthingLogParser.TEMPLATE_CONNECTION_LOST, parsed.template);
+    }
+
+    @Test
+    public void matchesTemplatesWithoutTimestamp() {
+        parse("Ready to synchronize (folder=default)");
+        assertEquals(SyncthingLogParser.LEVEL_UNKNOWN, parsed.level);
+        assertEquals(SyncthingLogParser.TEMPLATE_READY, parsed.template);
+        assertEquals(0, parsed.messageOffset);
+    }
+
+    @Test
+    public void recognisesGoRuntimePanic() {
+        parse("panic: runtime error: invalid memory address or nil pointer dereference");
+        assertEquals(SyncthingLogParser.LEVEL_ERROR, parsed.level);
+        assertEquals(SyncthingLogParser.TEMPLATE_PANIC, parsed.template);
+    }
+
+    @Test
+    public void internsFacilities() {
+        parse("2025-01-02 15:04:05 INF Scanning (log.pkg=scanner)");
+        int facility = parsed.facility;
+        parse("2025-01-02 15:04:06 DBG Walking (log.pkg=scanner)");
+        assertEquals(facility, parsed.facility);
+        assertEquals(1, parser.getFacilityCount());
+        assertEquals(facility, parser.findFacility("scanner"));
+        assertEquals(SyncthingLogParser.NO_FACILITY, parser.findFacility("model"));
+    }
+
+    @Test
+    public void parsesWithinALargerBuffer() {
+        byte[] buffer = "xxxx2025-01-02 15:04:05 ERR Failed to sync (folder=default)yyyy".getBytes(StandardCharsets.UTF_8);
+        parser.parse(buffer, 4, buffer.length - 8, System.currentTimeMillis(), parsed);
+        assertEquals(LOGGED_AT, parsed.loggedAt);
+        assertEquals(SyncthingLogParser.LEVEL_ERROR, parsed.level);
+        assertEquals(SyncthingLogParser.TEMPLATE_FOLDER_ERROR, parsed.template);
+        assertTrue(parsed.messageOffset > 4);
+    }
+
+    private void parse(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        parser.parse(bytes, 0, bytes.length, System.currentTimeMillis(), parsed);
+    }
+}
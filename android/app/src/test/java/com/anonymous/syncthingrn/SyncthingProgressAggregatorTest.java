@@ -0,0 +1,72 @@
+package com.anonymous.syncthingrn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class SyncthingProgressAggregatorTest {
+
+    // Fifteen one second buckets
+    private static final long WINDOW_MS = 15000;
+    private static final long START = 1000000;
+
+    @Test
+    public void steadyRateFillsTheWindow() {
+        SyncthingProgressAggregator.RateWindow window = new SyncthingProgressAggregator.RateWindow(WINDOW_MS);
+        for (long now = START; now < START + 30000; now += 1000) {
+            window.add(1000, now);
+        }
+        assertEquals(1000, window.perSecond(START + 29000), 0.001);
+    }
+
+    @Test
+    public void partialWindowUsesTimeSinceFirstSample() {
+        SyncthingProgressAggregator.RateWindow window = new SyncthingProgressAggregator.RateWindow(WINDOW_MS);
+        window.add(500, START);
+        assertEquals(500, window.perSecond(START), 0.001);
+        window.add(500, START + 1000);
+        window.add(500, START + 2000);
+        assertEquals(500, window.perSecond(START + 2000), 0.001);
+    }
+
+    @Test
+    public void rateDropsToZeroOnceSamplesLeaveTheWindow() {
+        SyncthingProgressAggregator.RateWindow window = new SyncthingProgressAggregator.RateWindow(WINDOW_MS);
+        window.add(1000, START);
+        assertEquals(0, window.perSecond(START + WINDOW_MS), 0.001);
+        // A new burst starts its own span rather than averaging over the idle time
+        window.add(2000, START + 60000);
+        assertEquals(2000, window.perSecond(START + 60000), 0.001);
+    }
+
+    @Test
+    public void ignoresEmptyAmounts() {
+        SyncthingProgressAggregator.RateWindow window = new SyncthingProgressAggregator.RateWindow(WINDOW_MS);
+        window.add(0, START);
+        window.add(-5, START);
+        assertEquals(0, window.perSecond(START), 0.001);
+    }
+
+    @Test
+    public void restartingWithAShortWindowKeepsTheRates() throws JSONException {
+        SyncthingProgressAggregator aggregator = SyncthingProgressAggregator.getInstance();
+        try {
+            // A window below the interval is raised to it
+            aggregator.start(() -> null, 1000, 300);
+            aggregator.onEvents(new JSONArray().put(new JSONObject()
+                .put("type", "FolderSummary")
+                .put("data", new JSONObject().put("folder", "default").put("summary", new JSONObject().put("needBytes", 4096)))));
+
+            aggregator.start(() -> null, 1000, 300);
+            JSONObject progress = aggregator.getProgress();
+            assertEquals(1000, progress.getLong("windowMs"));
+            assertTrue(progress.getJSONObject("folders").has("default"));
+        } finally {
+            aggregator.stop();
+        }
+    }
+}
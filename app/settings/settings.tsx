@@ -3,6 +3,17 @@ import { useNavigation } from '@react-navigation/native';
 import React, { useEffect, useState } from 'react';
 import { Button, ScrollView, StyleSheet, Text, TextInput, View } from 'react-native';
 
+// Fields of `edited` that differ from `loaded`, so a save never writes back values other components changed meanwhile
+function changedFields(loaded: any, edited: any): object {
+  const changes: any = {};
+  for (const key of Object.keys(edited ?? {})) {
+    if (JSON.stringify(edited[key]) !== JSON.stringify(loaded?.[key])) {
+      changes[key] = edited[key];
+    }
+  }
+  return changes;
+}
+
 export default function Settings() {
   const navigation = useNavigation();
   
@@ -14,6 +25,8 @@ export default function Settings() {
   }, [navigation]);
 
   const [config, setConfig] = useState<any>(null);
+  // As read, the form is compared against it on save
+  const [loadedConfig, setLoadedConfig] = useState<any>(null);
   const [loading, setLoading] = useState(true);
   const [error, setError] = useState<string | null>(null);
 
@@ -24,6 +37,7 @@ export default function Settings() {
       try {
         const configData = await syncthing.api?.getConfig();
         setConfig(configData);
+        setLoadedConfig(configData);
         setLoading(false);
       } catch (err) {
         setError('Failed to fetch config: ' + (err as Error).message);
@@ -60,7 +74,16 @@ export default function Settings() {
 
   const handleSave = async () => {
     try {
-      await syncthing.api?.putConfig(config);
+      if (syncthing.module) {
+        // One write and at most one restart for the whole form, only the fields edited here are staged
+        const transactionId = await syncthing.module.beginConfigTransaction();
+        await syncthing.module.stageConfigChange(transactionId, 'gui', null, changedFields(loadedConfig.gui, config.gui));
+        await syncthing.module.stageConfigChange(transactionId, 'options', null, changedFields(loadedConfig.options, config.options));
+        await syncthing.module.commitConfigTransaction(transactionId, {});
+        setLoadedConfig(config);
+      } else {
+        await syncthing.api?.putConfig(config);
+      }
       alert('Config saved successfully!');
     } catch (err) {
       alert('Failed to save config: ' + (err as Error).message);
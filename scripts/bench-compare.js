@@ -0,0 +1,47 @@
+#!/usr/bin/env node
+
+/**
+ * Compares a benchmark.json written by SyncthingModule.runBenchmark against a baseline.
+ * Exits with 1 if any case got slower than the tolerance allows, so it can gate CI.
+ *
+ * Usage: node ./scripts/bench-compare.js baseline.json current.json [tolerancePercent]
+ */
+
+const fs = require("fs");
+
+const [baselinePath, currentPath, toleranceArg] = process.argv.slice(2);
+if (!baselinePath || !currentPath) {
+  console.error("Usage: bench-compare.js baseline.json current.json [tolerancePercent]");
+  process.exit(2);
+}
+// Phones are noisy, small swings are not regressions
+const tolerance = Number(toleranceArg ?? 15) / 100;
+
+const baseline = JSON.parse(fs.readFileSync(baselinePath, "utf8")).cases;
+const current = JSON.parse(fs.readFileSync(currentPath, "utf8")).cases;
+
+let regressions = 0;
+for (const [name, base] of Object.entries(baseline)) {
+  const result = current[name];
+  if (!result) {
+    console.log(`${name}: missing from ${currentPath}`);
+    continue;
+  }
+  // Lower throughput or a higher p90 latency both count
+  const throughput = base.perSecond > 0 ? result.perSecond / base.perSecond - 1 : 0;
+  const latency = base.p90Ms > 0 ? result.p90Ms / base.p90Ms - 1 : 0;
+  const regressed = throughput < -tolerance || latency > tolerance;
+  if (regressed) {
+    regressions++;
+  }
+  console.log(
+    `${regressed ? "REGRESSED" : "ok       "} ${name.padEnd(18)} ` +
+      `${result.perSecond.toFixed(1)} ${result.unit}/s (${(throughput * 100).toFixed(1)}%), ` +
+      `p90 ${result.p90Ms.toFixed(3)} ms (${(latency * 100).toFixed(1)}%)`
+  );
+}
+
+if (regressions > 0) {
+  console.error(`${regressions} case(s) regressed by more than ${tolerance * 100}%`);
+  process.exit(1);
+}
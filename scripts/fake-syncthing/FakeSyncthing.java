@@ -0,0 +1,462 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Stand-in for the Syncthing binary on a plain JVM. It logs like the daemon at a
+    chosen rate, serves the parts of /rest the native layer uses, produces event
+    storms on /rest/events and exits with a chosen code. Run it straight from source:
+
+        java scripts/fake-syncthing/FakeSyncthing.java --port 8384 --log-rate 20000 --event-rate 5000
+
+    Options, all optional:
+        --port N              GUI/REST port, default 8384
+        --api-key KEY         required X-API-Key, default "fake-api-key"
+        --ready-delay-ms N    delay before the listening line, default 200
+        --log-rate N          log lines per second after start, default 100
+        --debug-ratio F       share of those lines at debug level, default 0.9
+        --log-format F        "classic" or "structured", default structured
+        --event-rate N        events per second, default 50
+        --folders N           folders in the config, default 4
+        --devices N           remote devices in the config, default 3
+        --exit-after-ms N     exit on its own after this long, default never
+        --exit-code N         exit code for --exit-after-ms and shutdown, default 0
+        --crash-after-ms N    print a Go panic and exit 2 after this long, default never
+
+    SIGTERM shuts it down with the exit code like the real daemon does.
+*/
+public class FakeSyncthing {
+
+    private static final String DEVICE_ID_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private static final DateTimeFormatter CLASSIC_TIME = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss.SSSSSS");
+    private static final DateTimeFormatter STRUCTURED_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String[] FACILITIES = { "model", "connections", "scanner", "db", "protocol", "discover" };
+    private static final String[] EVENT_TYPES = { "FolderSummary", "StateChanged", "FolderCompletion", "ItemStarted", "ItemFinished", "DownloadProgress" };
+    // Events kept for /rest/events, older ones are gone like in the daemon
+    private static final int EVENT_BUFFER = 8192;
+
+    private final Map<String, String> options;
+    private final String apiKey;
+    private final boolean classic;
+    private final Random random = new Random(1);
+    private final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, StandardCharsets.UTF_8);
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final List<String> folderIds = new ArrayList<>();
+    private final List<String> deviceIds = new ArrayList<>();
+    private final String myId;
+    private final String[] events = new String[EVENT_BUFFER];
+    private long nextEventId = 1;
+    private long inBytesTotal = 0;
+    private long outBytesTotal = 0;
+    private String optionsJson = "{\"maxSendKbps\":0,\"maxRecvKbps\":0,\"localAnnounceEnabled\":true}";
+    private HttpServer server;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        new FakeSyncthing(options).run();
+    }
+
+    private FakeSyncthing(Map<String, String> options) {
+        this.options = options;
+        this.apiKey = options.getOrDefault("api-key", "fake-api-key");
+        this.classic = "classic".equals(options.get("log-format"));
+        this.myId = deviceId();
+        for (int i = 0; i < intOption("folders", 4); i++) {
+            folderIds.add("folder-" + i);
+        }
+        for (int i = 0; i < intOption("devices", 3); i++) {
+            deviceIds.add(deviceId());
+        }
+    }
+
+    private void run() throws Exception {
+        int exitCode = intOption("exit-code", 0);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            running.set(false);
+            log("INFO", "main", "Exiting");
+            out.flush();
+            // The daemon exits cleanly on SIGTERM instead of with the JVM's 143
+            Runtime.getRuntime().halt(exitCode);
+        }));
+
+        log("INFO", "main", "syncthing v2.0.0-fake \"Hafnium Hornet\" (go1.24 linux-arm64) fake@localhost");
+        log("INFO", "main", "My ID: " + myId);
+        Thread.sleep(longOption("ready-delay-ms", 200));
+
+        int port = intOption("port", 8384);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 64);
+        server.createContext("/rest/", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        log("INFO", "api", "GUI and API listening (address=127.0.0.1:" + port + ")");
+        log("INFO", "connections", "TCP listener ([::]:22000) starting");
+        log("INFO", "model", "Ready to synchronize (folder=" + folderIds.get(0) + ")");
+        out.flush();
+
+        Thread eventThread = new Thread(this::produceEvents, "events");
+        eventThread.setDaemon(true);
+        eventThread.start();
+
+        long startedAt = System.currentTimeMillis();
+        long exitAfter = longOption("exit-after-ms", -1);
+        long crashAfter = longOption("crash-after-ms", -1);
+        produceLogs(startedAt, exitAfter, crashAfter);
+
+        if (crashAfter >= 0 && System.currentTimeMillis() - startedAt >= crashAfter) {
+            out.println("panic: runtime error: invalid memory address or nil pointer dereference");
+            out.println("[signal SIGSEGV: segmentation violation code=0x1 addr=0x0 pc=0x0]");
+            out.println();
+            out.println("goroutine 1 [running]:");
+            out.flush();
+            Runtime.getRuntime().halt(2);
+        }
+        server.stop(0);
+        System.exit(exitCode);
+    }
+
+    private void produceLogs(long startedAt, long exitAfter, long crashAfter) throws InterruptedException {
+        int rate = intOption("log-rate", 100);
+        double debugRatio = Double.parseDouble(options.getOrDefault("debug-ratio", "0.9"));
+        // Written in slices of 10 ms so the rate holds without a sleep per line
+        int perSlice = Math.max(1, rate / 100);
+        long slice = 0;
+        while (running.get()) {
+            long now = System.currentTimeMillis();
+            if ((exitAfter >= 0 && now - startedAt >= exitAfter) || (crashAfter >= 0 && now - startedAt >= crashAfter)) {
+                return;
+            }
+            for (int i = 0; i < perSlice && rate > 0; i++) {
+                String facility = FACILITIES[random.nextInt(FACILITIES.length)];
+                if (random.nextDouble() < debugRatio) {
+                    log("DEBUG", facility, "Pulling block " + random.nextInt(1 << 20) + " of file \"docs/report-" + random.nextInt(1000) + ".pdf\"");
+                } else {
+                    log("INFO", facility, randomInfoMessage());
+                }
+            }
+            out.flush();
+            slice++;
+            long sleep = startedAt + slice * 10 - System.currentTimeMillis();
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+        }
+    }
+
+    private String randomInfoMessage() {
+        String device = deviceIds.isEmpty() ? myId : deviceIds.get(random.nextInt(deviceIds.size()));
+        switch (random.nextInt(4)) {
+            case 0: return "Established secure connection (device=" + device.substring(0, 7) + " address=192.168.1.20:22000)";
+            case 1: return "Lost device connection (device=" + device.substring(0, 7) + " error=\"reading length: EOF\")";
+            case 2: return "Completed initial scan (folder=" + folderIds.get(random.nextInt(folderIds.size())) + ")";
+            default: return "Error on folder \"" + folderIds.get(random.nextInt(folderIds.size())) + "\": folder marker missing";
+        }
+    }
+
+    private synchronized void log(String level, String facility, String message) {
+        LocalDateTime now = LocalDateTime.now();
+        if (classic) {
+            String prefix = "[" + myId.substring(0, 5) + "] " + CLASSIC_TIME.format(now) + " ";
+            out.println("DEBUG".equals(level) ? prefix + facility + ".go:" + (100 + facility.length()) + ": DEBUG: " + message : prefix + level + ": " + message);
+        } else {
+            String shortLevel = "DEBUG".equals(level) ? "DBG" : "INFO".equals(level) ? "INF" : level.substring(0, 3);
+            out.println(STRUCTURED_TIME.format(now) + " " + shortLevel + " " + message + " (log.pkg=" + facility + ")");
+        }
+    }
+
+    private void produceEvents() {
+        int rate = intOption("event-rate", 50);
+        int perSlice = Math.max(1, rate / 100);
+        long startedAt = System.currentTimeMillis();
+        long slice = 0;
+        while (running.get() && rate > 0) {
+            synchronized (events) {
+                for (int i = 0; i < perSlice; i++) {
+                    addEvent();
+                }
+                events.notifyAll();
+            }
+            slice++;
+            long sleep = startedAt + slice * 10 - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Caller holds the events lock
+    private void addEvent() {
+        long id = nextEventId++;
+        String type = EVENT_TYPES[random.nextInt(EVENT_TYPES.length)];
+        String folder = folderIds.get(random.nextInt(folderIds.size()));
+        String data;
+        switch (type) {
+            case "FolderSummary":
+                data = "{\"folder\":\"" + folder + "\",\"summary\":" + folderStatus() + "}";
+                break;
+            case "StateChanged":
+                data = "{\"folder\":\"" + folder + "\",\"from\":\"idle\",\"to\":\"syncing\"}";
+                break;
+            case "FolderCompletion":
+                data = "{\"folder\":\"" + folder + "\",\"device\":\"" + (deviceIds.isEmpty() ? myId : deviceIds.get(0)) + "\",\"completion\":"
+                    + random.nextInt(101) + ",\"needBytes\":" + random.nextInt(1 << 20) + "}";
+                break;
+            case "DownloadProgress":
+                data = "{\"" + folder + "\":{\"docs/report.pdf\":{\"total\":100,\"pulled\":" + random.nextInt(100) + "}}}";
+                break;
+            default:
+                data = "{\"folder\":\"" + folder + "\",\"item\":\"docs/report-" + random.nextInt(1000) + ".pdf\",\"type\":\"file\",\"action\":\"update\"}";
+                break;
+        }
+        inBytesTotal += random.nextInt(64 * 1024);
+        outBytesTotal += random.nextInt(16 * 1024);
+        events[(int) (id % EVENT_BUFFER)] = "{\"id\":" + id + ",\"globalID\":" + id + ",\"type\":\"" + type
+            + "\",\"time\":\"2025-01-02T15:04:05.000000000Z\",\"data\":" + data + "}";
+    }
+
+    private String folderStatus() {
+        return "{\"state\":\"idle\",\"globalBytes\":1048576,\"localBytes\":1048576,\"needBytes\":0,\"needTotalItems\":0,\"errors\":0,\"pullErrors\":0}";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring("/rest/".length());
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (!path.startsWith("noauth/") && !apiKey.equals(exchange.getRequestHeaders().getFirst("X-API-Key"))) {
+                respond(exchange, 403, "{\"error\":\"CSRF Error\"}");
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            switch (path) {
+                case "noauth/health":
+                    respond(exchange, 200, "{\"status\":\"OK\"}");
+                    return;
+                case "system/status":
+                    respond(exchange, 200, "{\"myID\":\"" + myId + "\",\"uptime\":1,\"goroutines\":42}");
+                    return;
+                case "system/connections":
+                    respond(exchange, 200, connections());
+                    return;
+                case "system/shutdown":
+                    respond(exchange, 200, "{\"ok\":\"shutting down\"}");
+                    running.set(false);
+                    return;
+                case "system/pause":
+                case "system/resume":
+                case "db/scan":
+                    respond(exchange, 200, "");
+                    return;
+                case "config":
+                    respond(exchange, 200, "{\"folders\":" + folders() + ",\"devices\":" + devices() + ",\"options\":" + optionsJson + "}");
+                    return;
+                case "config/folders":
+                    respond(exchange, 200, folders());
+                    return;
+                case "config/devices":
+                    respond(exchange, 200, devices());
+                    return;
+                case "config/options":
+                    synchronized (this) {
+                        if ("PATCH".equals(method) || "PUT".equals(method)) {
+                            Map<String, String> merged = "PUT".equals(method) ? new LinkedHashMap<>() : parseFlatObject(optionsJson);
+                            merged.putAll(parseFlatObject(new String(body, StandardCharsets.UTF_8)));
+                            optionsJson = toFlatObject(merged);
+                        }
+                        respond(exchange, 200, optionsJson);
+                    }
+                    return;
+                case "db/status":
+                    respond(exchange, 200, folderStatus());
+                    return;
+                case "db/completion":
+                    respond(exchange, 200, "{\"completion\":100,\"needBytes\":0,\"needItems\":0,\"needDeletes\":0,\"globalBytes\":1048576}");
+                    return;
+                case "events":
+                    respond(exchange, 200, events(query));
+                    return;
+                default:
+                    respond(exchange, 404, "{\"error\":\"not found\"}");
+            }
+        } catch (InterruptedException e) {
+            respond(exchange, 500, "{\"error\":\"interrupted\"}");
+        } finally {
+            exchange.close();
+            if (!running.get()) {
+                out.flush();
+            }
+        }
+    }
+
+    private String events(Map<String, String> query) throws InterruptedException {
+        long since = Long.parseLong(query.getOrDefault("since", "0"));
+        int limit = Integer.parseInt(query.getOrDefault("limit", "0"));
+        long timeoutMs = Long.parseLong(query.getOrDefault("timeout", "60")) * 1000;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (events) {
+            while (nextEventId - 1 <= since && running.get()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return "[]";
+                }
+                events.wait(wait);
+            }
+            long last = nextEventId - 1;
+            long first = Math.max(Math.max(since + 1, last - EVENT_BUFFER + 1), 1);
+            // limit returns the newest events like the daemon does
+            if (limit > 0) {
+                first = Math.max(first, last - limit + 1);
+            }
+            StringBuilder json = new StringBuilder("[");
+            for (long id = first; id <= last; id++) {
+                if (id > first) {
+                    json.append(',');
+                }
+                json.append(events[(int) (id % EVENT_BUFFER)]);
+            }
+            return json.append(']').toString();
+        }
+    }
+
+    private String connections() {
+        StringBuilder json = new StringBuilder("{\"connections\":{");
+        for (int i = 0; i < deviceIds.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(deviceIds.get(i)).append("\":{\"connected\":true,\"paused\":false,\"address\":\"192.168.1.")
+                .append(20 + i).append(":22000\",\"type\":\"tcp-client\",\"inBytesTotal\":0,\"outBytesTotal\":0}");
+        }
+        synchronized (events) {
+            return json.append("},\"total\":{\"inBytesTotal\":").append(inBytesTotal).append(",\"outBytesTotal\":").append(outBytesTotal).append("}}").toString();
+        }
+    }
+
+    private String folders() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < folderIds.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(folderIds.get(i)).append("\",\"label\":\"Folder ").append(i)
+                .append("\",\"path\":\"~/folder-").append(i).append("\",\"type\":\"sendreceive\",\"paused\":false,\"devices\":[");
+            for (int j = 0; j < deviceIds.size(); j++) {
+                json.append(j > 0 ? "," : "").append("{\"deviceID\":\"").append(deviceIds.get(j)).append("\"}");
+            }
+            json.append("]}");
+        }
+        return json.append(']').toString();
+    }
+
+    private String devices() {
+        StringBuilder json = new StringBuilder("[{\"deviceID\":\"").append(myId).append("\",\"name\":\"fake\",\"paused\":false}");
+        for (int i = 0; i < deviceIds.size(); i++) {
+            json.append(",{\"deviceID\":\"").append(deviceIds.get(i)).append("\",\"name\":\"peer-").append(i).append("\",\"paused\":false}");
+        }
+        return json.append(']').toString();
+    }
+
+    private String deviceId() {
+        StringBuilder id = new StringBuilder();
+        for (int group = 0; group < 8; group++) {
+            if (group > 0) {
+                id.append('-');
+            }
+            for (int i = 0; i < 7; i++) {
+                id.append(DEVICE_ID_ALPHABET.charAt(random.nextInt(DEVICE_ID_ALPHABET.length())));
+            }
+        }
+        return id.toString();
+    }
+
+    /**
+     * Splits an object of plain values, which is all the option patches are, into raw JSON values by key.
+     */
+    private static Map<String, String> parseFlatObject(String json) {
+        Map<String, String> values = new LinkedHashMap<>();
+        String content = json.trim();
+        content = content.substring(1, content.length() - 1);
+        int start = 0;
+        boolean quoted = false;
+        for (int i = 0; i <= content.length(); i++) {
+            char c = i < content.length() ? content.charAt(i) : ',';
+            if (c == '"' && (i == 0 || content.charAt(i - 1) != '\\')) {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                String pair = content.substring(start, i).trim();
+                int colon = pair.indexOf("\":");
+                if (colon > 0) {
+                    values.put(pair.substring(1, colon), pair.substring(colon + 2).trim());
+                }
+                start = i + 1;
+            }
+        }
+        return values;
+    }
+
+    private static String toFlatObject(Map<String, String> values) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            json.append(json.length() > 1 ? "," : "").append('"').append(value.getKey()).append("\":").append(value.getValue());
+        }
+        return json.append('}').toString();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals >= 0 ? pair.substring(0, equals) : pair;
+            String value = equals >= 0 ? pair.substring(equals + 1) : "";
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        }
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private long longOption(String name, long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/sh
+#
+# Stand-in for the Syncthing binary where FakeSyncthing.java cannot run, such as
+# on a device. It logs the listening and ready lines the native layer waits for,
+# then idles until SIGINT or SIGTERM and exits with 0 like the daemon does. Debug
+# builds package it as an asset for the spawn and stop benchmarks.
+#
+#     sh scripts/fake-syncthing/device/fake-syncthing.sh [port]
+
+port="${1:-8384}"
+trap 'exit 0' INT TERM
+
+now() {
+    date '+%Y-%m-%d %H:%M:%S'
+}
+
+echo "$(now) INF GUI and API listening (address=127.0.0.1:$port) (log.pkg=api)"
+echo "$(now) INF Ready to synchronize (folder=default) (log.pkg=model)"
+
+# The shell only runs the trap between commands, so sleep in the background and wait on it
+while :; do
+    sleep 1 &
+    wait $!
+done
@@ -0,0 +1,409 @@
+import type { TurboModule } from "react-native";
+import { TurboModuleRegistry } from "react-native";
+
+// Codegen spec of the native SyncthingModule, and the only declaration of its types.
+// Codegen only reads types declared in this file, utils/syncthing/SyncthingModule.ts
+// re-exports them. Free-form REST payloads that are passed through untouched stay Object.
+
+export interface SyncthingEnvironmentVariables {
+    HOME?: string,
+    STHOMEDIR?: string,
+    STTRACE?: string,
+    STMONITORED?: "1" | "0",
+    STNOUPGRADE?: "1" | "0",
+    STVERSIONEXTRA?: string,
+    SQLITE_TMPDIR?: string,
+    FALLBACK_NET_GATEWAY_IPV4?: string,
+    ALL_PROXY_NO_FALLBACK?: string,
+    all_proxy?: string,
+    http_proxy?: string,
+    https_proxy?: string,
+    GOGC?: string,
+    GOMEMLIMIT?: string,
+    PREF_DEBUG_FACILITIES_ENABLED?: "true" | "false",
+}
+
+export interface SyncthingResponse {
+    command: string[],
+    exitCode: number,
+    logs: string[]
+}
+
+export type ShellCommandResponse = SyncthingResponse
+
+export interface SyncthingCallOptions {
+    // Deadline for the call including time spent queued, defaults to 30 seconds
+    timeoutMs?: number,
+    // From createCallToken, good for one call and can be passed to cancelCall
+    token?: string
+}
+
+export type EventCoalescingPolicy = "latest" | "count" | "pass_through";
+
+export interface EventCoalescingOptions {
+    maxBatchesPerSecond?: number,
+    // Queued events that force a flush ahead of the rate limit, none are ever dropped
+    maxPending?: number,
+    policies?: { [eventType: string]: EventCoalescingPolicy }
+}
+
+export interface EventCoalescingStats {
+    received: number,
+    emitted: number,
+    merged: number,
+    // Flushes sent early because maxPending was reached
+    forcedFlushes: number,
+    batches: number
+}
+
+export interface SyncthingLogEntry {
+    sequence: number,
+    timestamp: number,
+    line: string,
+    level: "debug" | "info" | "warning" | "error" | "unknown",
+    facility: string | null,
+    template: "guiListening" | "listener" | "connectionEstablished" | "connectionLost" | "folderError" | "ready" | "panic" | null
+}
+
+export interface SyncthingLogPage {
+    entries: SyncthingLogEntry[],
+    nextCursor: number,
+    firstSequence: number
+}
+
+export interface SyncthingLogFilter {
+    // Lowest SYNCTHING_LOG_LEVEL returned
+    minLevel?: number,
+    // Facility names such as "model", lines without a facility are skipped
+    facilities?: string[],
+    // SYNCTHING_LOG_TEMPLATE codes, lines matching none of them are skipped, unknown codes reject
+    templates?: number[]
+}
+
+// Parallel columns, index i of every array describes the same line
+export interface SyncthingLogRecords {
+    sequences: number[],
+    // Capture time in ms since the epoch
+    timestamps: number[],
+    // Time written in the line, -1 when it carries no date
+    loggedAts: number[],
+    levels: number[],
+    // Index into facilityNames, -1 without a facility
+    facilities: number[],
+    templates: number[],
+    lines: string[],
+    facilityNames: string[],
+    nextCursor: number,
+    firstSequence: number
+}
+
+export interface SyncthingReadyInfo {
+    address: string,
+    timeToReadyMs: number,
+    source: "stdout" | "health"
+}
+
+export type SyncthingSupervisorStateName = "STOPPED" | "STARTING" | "READY" | "DEGRADED" | "CRASHED" | "STOPPING";
+
+export interface SyncthingSupervisorState {
+    state: SyncthingSupervisorStateName,
+    restartCount: number,
+    lastExitCode: number
+}
+
+export interface SyncthingHistogram {
+    count: number,
+    sum: number,
+    min: number,
+    max: number,
+    mean: number,
+    p50: number,
+    p90: number,
+    p99: number
+}
+
+export interface SyncthingMetricsSnapshot {
+    timestamp: number,
+    counters: { [name: string]: number },
+    gauges: { [name: string]: number },
+    histograms: { [name: string]: SyncthingHistogram }
+}
+
+export interface SyncthingSnapshotDevice {
+    deviceID: string,
+    name: string,
+    paused: boolean,
+    // Entry of system/connections for the device, null if it was never seen
+    connection: Object | null
+}
+
+export interface SyncthingSnapshotFolder {
+    id: string,
+    label: string,
+    path: string,
+    type: string,
+    paused: boolean,
+    devices: string[],
+    // Subset of db/status
+    status?: Object,
+    // Subset of db/completion
+    completion?: Object,
+    // Set instead of status and completion when they could not be fetched
+    error?: string
+}
+
+export interface SyncthingSnapshot {
+    timestamp: number,
+    durationMs: number,
+    devices: SyncthingSnapshotDevice[],
+    folders: SyncthingSnapshotFolder[],
+    total: Object | null
+}
+
+export interface SyncthingStateFolder extends SyncthingSnapshotFolder {
+    // FolderCompletion payloads keyed by remote device ID
+    remoteCompletion?: { [deviceId: string]: Object }
+}
+
+export interface SyncthingState {
+    version: number,
+    seeded: boolean,
+    folders: SyncthingStateFolder[],
+    devices: SyncthingSnapshotDevice[]
+}
+
+export interface SyncthingProgressOptions {
+    // Time between reports while anything transfers, defaults to 2000
+    intervalMs?: number,
+    // Span the rates are averaged over, defaults to 30000
+    windowMs?: number
+}
+
+// etaSeconds is 0 when nothing remains and -1 when nothing is moving
+export interface SyncthingFolderProgress {
+    bytesPerSecond: number,
+    itemsPerSecond: number,
+    needBytes: number,
+    filesInProgress: number,
+    etaSeconds: number
+}
+
+// Progress of a remote device pulling from us
+export interface SyncthingDeviceProgress {
+    bytesPerSecond: number,
+    needBytes: number,
+    // Percentage of the shared folders the device has
+    completion: number,
+    filesInProgress: number,
+    etaSeconds: number
+}
+
+export interface SyncthingProgress {
+    timestamp: number,
+    windowMs: number,
+    global: {
+        downloadBytesPerSecond: number,
+        uploadBytesPerSecond: number,
+        itemsPerSecond: number,
+        needBytes: number,
+        etaSeconds: number,
+        uploadNeedBytes: number,
+        uploadEtaSeconds: number
+    },
+    folders: { [folderId: string]: SyncthingFolderProgress },
+    devices: { [deviceId: string]: SyncthingDeviceProgress }
+}
+
+export interface SyncthingStreamOptions {
+    // Largest chunk in characters, defaults to 16384
+    chunkChars?: number,
+    // Chunks that may be sent before more are granted, at least 1 and defaults to 4
+    credits?: number
+}
+
+export interface SyncthingNetworkPolicy {
+    // Pause all devices while the network is metered, defaults to false
+    pauseOnMetered?: boolean,
+    // Only open local discovery windows over Wi-Fi or Ethernet, defaults to true
+    localAnnounceOnLocalNetworkOnly?: boolean
+}
+
+export interface SyncthingNetworkState {
+    connected: boolean,
+    metered: boolean,
+    localNetwork: boolean,
+    gatewayIpV4: string | null,
+    // Whether the multicast lock is held for local discovery right now
+    discoveryWindowOpen: boolean
+}
+
+export interface SyncthingDiscoveryOptions {
+    // Longest a discovery window stays open, defaults to 1 minute
+    windowMs?: number,
+    // Time between windows when nothing else opens one, defaults to 15 minutes
+    intervalMs?: number
+}
+
+export interface SyncthingBandwidthLimits {
+    // KiB/s, 0 means unlimited
+    sendKbps?: number,
+    recvKbps?: number
+}
+
+export interface SyncthingBandwidthPolicy {
+    // Adapt the rate limits to power and network, defaults to true
+    enabled?: boolean,
+    // On a charger over an unmetered network
+    unlimited?: SyncthingBandwidthLimits,
+    // On battery
+    battery?: SyncthingBandwidthLimits,
+    // Low battery or a hot device
+    constrained?: SyncthingBandwidthLimits,
+    // On a metered network
+    metered?: SyncthingBandwidthLimits
+}
+
+export interface SyncthingBandwidthState {
+    tier: "unlimited" | "battery" | "constrained" | "metered",
+    // -1 when unknown
+    batteryPercent: number,
+    charging: boolean,
+    // PowerManager.THERMAL_STATUS_*, 0 before Android 10
+    thermalStatus: number,
+    metered: boolean,
+    maxSendKbps: number | null,
+    maxRecvKbps: number | null,
+    // Measured KiB/s over the last check interval
+    inKbps: number,
+    outKbps: number
+}
+
+export interface SyncthingSyncWindowOptions {
+    // Time between windows, at least and by default 15 minutes and 1 hour
+    intervalMs?: number,
+    // Longest a window runs without converging, defaults to 10 minutes
+    deadlineMs?: number
+}
+
+export interface SyncthingSyncWindowReport {
+    // Wall clock start in ms since the epoch
+    startedAt: number,
+    elapsedMs: number,
+    converged: boolean,
+    inBytes: number,
+    outBytes: number
+}
+
+// The whole suite runs well past the default call deadline, pass a timeoutMs of a few minutes
+export interface SyncthingBenchmarkOptions extends SyncthingCallOptions {
+    // Samples per latency case, defaults to 50
+    iterations?: number,
+    // Size of the log fixture that is drained and parsed, defaults to 200000 lines
+    logLines?: number,
+    // Size of the event batch that is parsed and converted, defaults to 1000 events
+    events?: number,
+    // Daemon for the REST cases, e.g. the fake daemon from scripts/fake-syncthing over adb reverse
+    baseUrl?: string,
+    apiKey?: string,
+    // How long events are long-polled for, defaults to 10 seconds
+    durationMs?: number
+}
+
+export interface SyncthingBenchmarkCase {
+    iterations: number,
+    // What perSecond counts, e.g. "lines", "events" or "processes"
+    unit: string,
+    units: number,
+    totalMs: number,
+    perSecond: number,
+    p50Ms: number,
+    p90Ms: number,
+    p99Ms: number,
+    maxMs: number
+}
+
+export interface SyncthingBenchmarkResult {
+    startedAt: number,
+    device: string,
+    sdk: number,
+    // spawn and stop of the stand-in daemon script, logDrain, logParse, eventParse, bridgeConversion, and eventThroughput and snapshot with a baseUrl
+    cases: { [name: string]: SyncthingBenchmarkCase }
+}
+
+export type SyncthingConfigSection = "options" | "gui" | "devices" | "folders";
+
+export interface SyncthingConfigCommitOptions extends SyncthingCallOptions {
+    // Restart the daemon if a change needs it, defaults to true
+    restart?: boolean
+}
+
+export interface SyncthingConfigCommitResult {
+    // Sections with at least one value that differed from the daemon's config
+    changedSections: SyncthingConfigSection[],
+    // False when nothing changed and no write was made
+    written: boolean,
+    restarted: boolean,
+    durationMs: number
+}
+
+export interface Spec extends TurboModule {
+    runShellCommand(command: string, options?: SyncthingCallOptions | null): Promise<ShellCommandResponse>;
+    cancelCall(token: string): Promise<boolean>;
+    // Synchronous, tokens are issued natively so callers cannot collide
+    createCallToken(): string;
+    startShellStream(streamId: string, command: string, options: SyncthingStreamOptions): Promise<void>;
+    startSyncthingCommandStream(streamId: string, parameters: Array<string>, options: SyncthingStreamOptions): Promise<void>;
+    // Rejects with GRANT_STREAM_CREDITS_ERROR below 1, outstanding credits are capped at 1024
+    grantStreamCredits(streamId: string, credits: number): Promise<boolean>;
+    cancelStream(streamId: string): Promise<boolean>;
+    spawnSyncthingWorker(environment: SyncthingEnvironmentVariables): Promise<SyncthingSupervisorState>;
+    startSyncthing(environment: SyncthingEnvironmentVariables): Promise<SyncthingSupervisorState>;
+    stopSyncthing(): Promise<void>;
+    restartSyncthing(environment: SyncthingEnvironmentVariables): Promise<void>;
+    startSyncWindows(options: SyncthingSyncWindowOptions): Promise<void>;
+    stopSyncWindows(): Promise<void>;
+    getLastSyncWindowReport(): Promise<SyncthingSyncWindowReport | null>;
+    getSupervisorState(): Promise<SyncthingSupervisorState>;
+    getAPIKey(options?: SyncthingCallOptions | null): Promise<string>;
+    getSnapshot(options: SyncthingCallOptions): Promise<SyncthingSnapshot>;
+    startStateModel(): Promise<SyncthingState>;
+    stopStateModel(): Promise<void>;
+    getState(): Promise<SyncthingState>;
+    startProgress(options: SyncthingProgressOptions): Promise<SyncthingProgress>;
+    stopProgress(): Promise<void>;
+    getProgress(): Promise<SyncthingProgress>;
+    startEventPump(apiKey: string, since: number, eventTypes: Array<string>): Promise<void>;
+    stopEventPump(): Promise<number>;
+    configureEventCoalescing(options: EventCoalescingOptions): Promise<void>;
+    getEventCoalescingStats(): Promise<EventCoalescingStats>;
+    getLogs(cursor: number, limit: number): Promise<SyncthingLogPage>;
+    getLogRecords(cursor: number, limit: number, filter: SyncthingLogFilter | null): Promise<SyncthingLogRecords>;
+    beginConfigTransaction(): Promise<string>;
+    // id is the device or folder ID and null for options and gui, a null patch removes the device or folder
+    stageConfigChange(transactionId: string, section: SyncthingConfigSection, id: string | null, patch: Object | null): Promise<void>;
+    commitConfigTransaction(transactionId: string, options: SyncthingConfigCommitOptions): Promise<SyncthingConfigCommitResult>;
+    abortConfigTransaction(transactionId: string): Promise<boolean>;
+    waitForReady(timeoutMs: number): Promise<SyncthingReadyInfo>;
+    configureNetworkPolicy(policy: SyncthingNetworkPolicy): Promise<void>;
+    getNetworkState(): Promise<SyncthingNetworkState | null>;
+    configureDiscovery(options: SyncthingDiscoveryOptions): Promise<void>;
+    configureBandwidth(policy: SyncthingBandwidthPolicy): Promise<void>;
+    getBandwidthState(): Promise<SyncthingBandwidthState | null>;
+    getMetrics(): Promise<SyncthingMetricsSnapshot>;
+    // Debug builds only, release builds reject with BENCHMARK_UNAVAILABLE. Rejects while Syncthing runs.
+    runBenchmark(options: SyncthingBenchmarkOptions): Promise<SyncthingBenchmarkResult>;
+
+    // Synchronous, they block the JS thread for a native read and skip the promise round trip.
+    // Maps are still copied into a new native map on every call, only the numbers come for free.
+    getMetricsSync(): SyncthingMetricsSnapshot;
+    // Copies the whole state model, call it when getStateVersionSync has moved
+    getStateSync(): SyncthingState;
+    getStateVersionSync(): number;
+    // Sequence the next log line will get, compare against the last cursor before calling getLogs
+    getLogCursorSync(): number;
+
+    addListener(eventName: string): void;
+    removeListeners(count: number): void;
+}
+
+export default TurboModuleRegistry.get<Spec>("SyncthingModule");
@@ -1,29 +1,51 @@
-export type SyncthingFlags = Record<string, string | number | boolean | undefined>;
+import NativeSyncthingModule from "@/specs/NativeSyncthingModule";
+import type { Spec, SyncthingEnvironmentVariables, SyncthingResponse, SyncthingSnapshotDevice, SyncthingStateFolder } from "@/specs/NativeSyncthingModule";
 
-interface SyncthingEnvironmentVariables {
-    HOME?: string,
-    STHOMEDIR?: string,
-    STTRACE?: string,
-    STMONITORED?: "1" | "0",
-    STNOUPGRADE?: "1" | "0",
-    STVERSIONEXTRA?: string,
-    SQLITE_TMPDIR?: string,
-    FALLBACK_NET_GATEWAY_IPV4?: string,
-    ALL_PROXY_NO_FALLBACK?: string,
-    all_proxy?: string,
-    http_proxy?: string,
-    https_proxy?: string,
-    GOGC?: string,
-    PREF_DEBUG_FACILITIES_ENABLED?: "true" | "false",
-}
+// The types crossing the bridge are declared with the codegen spec, which only reads its own file
+export type {
+    SyncthingEnvironmentVariables,
+    SyncthingResponse,
+    ShellCommandResponse,
+    SyncthingCallOptions,
+    EventCoalescingPolicy,
+    EventCoalescingOptions,
+    EventCoalescingStats,
+    SyncthingLogEntry,
+    SyncthingLogPage,
+    SyncthingLogFilter,
+    SyncthingLogRecords,
+    SyncthingReadyInfo,
+    SyncthingSupervisorStateName,
+    SyncthingSupervisorState,
+    SyncthingHistogram,
+    SyncthingMetricsSnapshot,
+    SyncthingSnapshotDevice,
+    SyncthingSnapshotFolder,
+    SyncthingSnapshot,
+    SyncthingStateFolder,
+    SyncthingState,
+    SyncthingProgressOptions,
+    SyncthingFolderProgress,
+    SyncthingDeviceProgress,
+    SyncthingProgress,
+    SyncthingStreamOptions,
+    SyncthingNetworkPolicy,
+    SyncthingNetworkState,
+    SyncthingDiscoveryOptions,
+    SyncthingBandwidthLimits,
+    SyncthingBandwidthPolicy,
+    SyncthingBandwidthState,
+    SyncthingSyncWindowOptions,
+    SyncthingSyncWindowReport,
+    SyncthingBenchmarkOptions,
+    SyncthingBenchmarkCase,
+    SyncthingBenchmarkResult,
+    SyncthingConfigSection,
+    SyncthingConfigCommitOptions,
+    SyncthingConfigCommitResult,
+} from "@/specs/NativeSyncthingModule";
 
-interface SyncthingResponse {
-    command: string[],
-    exitCode: number,
-    logs: string[]
-}
-
-type ShellCommandResponse = SyncthingResponse
+export type SyncthingFlags = Record<string, string | number | boolean | undefined>;
 
 interface KillSyncthingResponse {
     responses: SyncthingResponse
@@ -31,12 +53,75 @@ interface KillSyncthingResponse {
 
 type RunSyncthingResponse = SyncthingResponse
 
-export interface SyncthingModule {
-    runShellCommand(command: string): Promise<ShellCommandResponse>;
-    spawnSyncthingWorker(environment: SyncthingEnvironmentVariables): Promise<void>;
-    getAPIKey(): Promise<string>;
+// Numeric codes of SyncthingLogRecords.levels
+export const SYNCTHING_LOG_LEVEL = {
+    UNKNOWN: -1,
+    DEBUG: 0,
+    INFO: 1,
+    WARNING: 2,
+    ERROR: 3
+} as const;
+
+// Numeric codes of SyncthingLogRecords.templates
+export const SYNCTHING_LOG_TEMPLATE = {
+    NONE: 0,
+    GUI_LISTENING: 1,
+    LISTENER: 2,
+    CONNECTION_ESTABLISHED: 3,
+    CONNECTION_LOST: 4,
+    FOLDER_ERROR: 5,
+    READY: 6,
+    PANIC: 7
+} as const;
+
+export interface SyncthingStateDiff {
+    version: number,
+    baseVersion: number,
+    // The model was reloaded, read it again with getState
+    reset: boolean,
+    // Changed top level fields keyed by folder ID
+    folders: Record<string, Partial<SyncthingStateFolder>>,
+    // Changed top level fields keyed by device ID
+    devices: Record<string, Partial<SyncthingSnapshotDevice>>,
+    removedFolders: string[],
+    removedDevices: string[]
+}
+
+export interface SyncthingStreamChunk {
+    streamId: string,
+    // Starts at 0, the final chunk carries the count of data chunks
+    sequence: number,
+    done: boolean,
+    data?: string,
+    // Only on the final chunk
+    exitCode?: number,
+    error?: string
 }
 
+// The native module is typed by its codegen spec
+export type SyncthingModule = Spec;
+
+// The TurboModule, null in a build without the native module
+export const syncthingModule = NativeSyncthingModule;
+
+// Name of the device event carrying batches of Syncthing events from the native pump
+export const SYNCTHING_EVENTS_EVENT = "SyncthingEvents";
+
+// Name of the device event sent once the REST API of a new launch is reachable
+export const SYNCTHING_READY_EVENT = "SyncthingReady";
+
+// Name of the device event sent whenever the supervisor changes state
+export const SYNCTHING_SUPERVISOR_STATE_EVENT = "SyncthingSupervisorState";
+
+// Name of the device event carrying SyncthingStateDiff updates of the native state model
+export const SYNCTHING_STATE_DIFF_EVENT = "SyncthingStateDiff";
+
+// Name of the device event carrying SyncthingProgress reports of the native progress aggregator
+export const SYNCTHING_PROGRESS_EVENT = "SyncthingProgress";
+
+// Name of the device event carrying SyncthingStreamChunk output of running streams
+export const SYNCTHING_STREAM_CHUNK_EVENT = "SyncthingStreamChunk";
+
 // Function to generate Syncthing environment variables
 export function generateSyncthingEnvironment(
     home: string = "",
@@ -59,7 +144,7 @@ export function generateSyncthingEnvironment(
         STNOUPGRADE: syncthingNoupGrade,
         STVERSIONEXTRA: syncthingVersionExtra,
         SQLITE_TMPDIR: sqlLiteTmpDirectory,
-        GOGC: "100"
+        // GOGC and GOMEMLIMIT are left to the native memory governor unless set explicitly
     };
 
     if (useTor) {
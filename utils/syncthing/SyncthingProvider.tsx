@@ -1,6 +1,5 @@
 import React, { createContext, useContext, useEffect, useState } from 'react';
-import { NativeModules } from 'react-native';
-import { SyncthingModule as ReactSyncthingModule } from './SyncthingModule';
+import { SyncthingModule as ReactSyncthingModule, syncthingModule } from './SyncthingModule';
 import SyncthingAPI from './api/SyncthingAPI';
 
 // Define the context type
@@ -24,10 +23,9 @@ export const SyncthingProvider: React.FC<{ children: React.ReactNode }> = ({ chi
 
   // Generate random API key on component mount
   useEffect(() => {
-    const { SyncthingModule } = NativeModules;
-    if (!SyncthingModule) return
+    if (!syncthingModule) return
     console.log("Syncthing module found")
-    setModule(SyncthingModule);  
+    setModule(syncthingModule);
   }, []);
 
   useEffect(() => {
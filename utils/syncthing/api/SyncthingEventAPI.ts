@@ -1,4 +1,7 @@
 import { ClusterConfigReceivedEventData, ConfigSavedEventData, DeviceConnectedEventData, DeviceDisconnectedEventData, DeviceDiscoveredEventData, DevicePausedEventData, DeviceRejectedEventData, DeviceResumedEventData, DownloadProgressEventData, FailureEventData, FolderCompletionEventData, FolderErrorsEventData, FolderPausedEventData, FolderRejectedEventData, FolderResumedEventData, FolderScanProgressEventData, FolderSummaryEventData, FolderWatchStateChangedEventData, ItemFinishedEventData, ItemStartedEventData, ListenAddressesChangedEventData, LocalChangeDetectedEventData, LocalIndexUpdatedEventData, LoginAttemptEventData, PendingDevicesChangedEventData, PendingFoldersChangedEventData, RemoteChangeDetectedEventData, RemoteDownloadProgressEventData, RemoteIndexUpdatedEventData, StartingEventData, StartupCompleteEventData, StateChangedEventData, SyncthingEvent } from "./SyncthingAPITypes";
+import { NativeEventEmitter } from "react-native";
+import NativeSyncthingModule from "@/specs/NativeSyncthingModule";
+import { SYNCTHING_EVENTS_EVENT, syncthingModule } from "../SyncthingModule";
 
 // Event API class
 export class SyncthingEventAPI {
@@ -56,13 +59,37 @@ export class SyncthingEventAPI {
     return response.json();
   }
 
-  // Start long polling for events
+  // Start receiving batches of events from the native event pump
+  async startEventStream(
+    callback: (events: SyncthingEvent[]) => void,
+    since: number = 0,
+    eventTypes: string[] = []
+  ): Promise<() => void> {
+    const module = syncthingModule!;
+    const emitter = new NativeEventEmitter(NativeSyncthingModule);
+    const subscription = emitter.addListener(SYNCTHING_EVENTS_EVENT, callback);
+
+    await module.startEventPump(this.apiKey, since, eventTypes);
+
+    return () => {
+      subscription.remove();
+      module.stopEventPump();
+    };
+  }
+
+  // Start long polling for events, delegating to the native pump when it is available
   async startEventPolling(
     callback: (event: SyncthingEvent) => void,
     since?: number,
     eventTypes?: string[]
-  ): Promise<void> {
+  ): Promise<() => void> {
+    if (syncthingModule) {
+      return this.startEventStream(events => events.forEach(callback), since, eventTypes);
+    }
+
+    let stopped = false;
     const poll = async () => {
+      if (stopped) return;
       try {
         const eventList = await this.getEvents(since, 30000, eventTypes);
         for (const event of eventList) {
@@ -79,6 +106,7 @@ export class SyncthingEventAPI {
     };
 
     poll();
+    return () => { stopped = true; };
   }
 
   // Event type guards for type safety